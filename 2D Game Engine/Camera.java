@@ -0,0 +1,125 @@
+/*************************************************************************
+  *  Compilation:  javac Camera.java
+  *  Execution:    java Camera
+  *
+  *  The point a Game's display is centered on, in fractional tiles. A
+  *  Player's position jumps a whole tile per move, but the camera glides
+  *  after it at a steady speed, moved once per simulation tick. Between
+  *  ticks, its position is interpolated from where it was at the last two
+  *  ticks, so each frame shows it a little further along and scrolling is
+  *  smooth at any frame rate. It never falls more than one tile behind,
+  *  and it jumps straight to the player when the player changes board.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+public class Camera {
+  public static final double DEFAULT_SPEED = 0.125; // tiles per tick, one tile per 8 ticks
+
+  private double speed; // tiles the camera moves per tick
+  private TileBoard board; // the board followed, or null before the first tick
+  private double x; // position along the first index at the last tick
+  private double y; // position along the second index at the last tick
+  private double previousX; // position along the first index at the tick before
+  private double previousY; // position along the second index at the tick before
+
+  /**
+   * Creates a new Camera moving DEFAULT_SPEED tiles per tick.
+   */
+  public Camera() {
+    this(DEFAULT_SPEED);
+  }
+
+  /**
+   * Creates a new Camera.
+   * @param speed, how many tiles the camera moves per tick, greater than 0
+   */
+  public Camera(double speed) {
+    this.setSpeed(speed);
+  }
+
+  /**
+   * Retrieves how many tiles the camera moves per tick.
+   */
+  public double getSpeed() {
+    return this.speed;
+  }
+
+  /**
+   * Sets how many tiles the camera moves per tick.
+   * @param speed, the speed in tiles per tick, greater than 0
+   */
+  public void setSpeed(double speed) {
+    if(!(speed > 0)) {
+      throw new IllegalArgumentException("Camera speed must be greater than 0");
+    }
+    this.speed = speed;
+  }
+
+  /**
+   * Moves the camera one tick's worth towards a Player.
+   * @param player, the player followed
+   * @return true if the camera moved during this tick or the one before, so frames
+   * drawn until the next tick show it in a different place than the last tick did
+   */
+  public boolean tick(Player player) {
+    if(player.getBoard() != this.board) {
+      this.snap(player);
+      return true;
+    }
+    boolean moving = this.previousX != this.x || this.previousY != this.y;
+    this.previousX = this.x;
+    this.previousY = this.y;
+    this.x = approach(this.x, player.getFirstTileIndex(), this.speed);
+    this.y = approach(this.y, player.getSecondTileIndex(), this.speed);
+    return moving || this.previousX != this.x || this.previousY != this.y;
+  }
+
+  /**
+   * Moves the camera straight onto a Player, with no glide.
+   * @param player, the player followed
+   */
+  public void snap(Player player) {
+    this.board = player.getBoard();
+    this.x = player.getFirstTileIndex();
+    this.y = player.getSecondTileIndex();
+    this.previousX = this.x;
+    this.previousY = this.y;
+  }
+
+  /**
+   * Retrieves the board the camera is following a player on, or null before it first
+   * follows one.
+   */
+  public TileBoard getBoard() {
+    return this.board;
+  }
+
+  /**
+   * Retrieves the camera's position along the first index, between the last two ticks.
+   * @param interpolation, fraction (0 to 1) of a tick elapsed since the last tick
+   */
+  public double getX(double interpolation) {
+    return this.previousX + (this.x - this.previousX) * interpolation;
+  }
+
+  /**
+   * Retrieves the camera's position along the second index, between the last two ticks.
+   * @param interpolation, fraction (0 to 1) of a tick elapsed since the last tick
+   */
+  public double getY(double interpolation) {
+    return this.previousY + (this.y - this.previousY) * interpolation;
+  }
+
+  // Moves a coordinate towards a target by step, or further if it is more than a tile behind.
+  private static double approach(double from, int to, double step) {
+    double distance = to - from;
+    if(Math.abs(distance) > 1) {
+      step += Math.abs(distance) - 1;
+    }
+    if(Math.abs(distance) <= step) {
+      return to;
+    }
+    return from + Math.signum(distance) * step;
+  }
+}
@@ -0,0 +1,293 @@
+/*************************************************************************
+  *  Compilation:  javac ChunkBitmapCache.java
+  *  Execution:    java ChunkBitmapCache
+  *
+  *  Pictures of square chunks of a TileBoard with every layer already
+  *  drawn on top of each other, so that drawing a layered board takes one
+  *  copy per chunk instead of one per tile per layer. A chunk's picture is
+  *  only redrawn after the board reports that an image in that chunk has
+  *  changed (see TileBoard.getChunkVersion). Least recently used pictures
+  *  are dropped once their size exceeds the byte limit.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class ChunkBitmapCache {
+  public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024; // 128 MB of pixels
+
+  private static final int CHUNK_SIZE = TileBoard.CACHE_CHUNK_SIZE;
+
+  private SpriteAtlas atlas; // where the images drawn into the pictures come from
+  private LinkedHashMap<Long, Bitmap> bitmaps; // access-ordered, eldest is least recently used
+  private long maxBytes; // upper bound on the size of all cached pictures
+  private long currentBytes; // size of all cached pictures
+
+  // What the cached pictures show: every picture is of this board, at this tile size.
+  private TileBoard board;
+  private int tileWidth;
+  private int tileHeight;
+
+  private long builds; // number of pictures drawn
+  private long hits; // number of times a cached picture could be used
+  private long evictions;
+
+  /**
+   * Creates a new, empty ChunkBitmapCache with the default byte limit.
+   * @param atlas, the atlas images are drawn from; it decides the tile size
+   */
+  public ChunkBitmapCache(SpriteAtlas atlas) {
+    this(atlas, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Creates a new, empty ChunkBitmapCache.
+   * @param atlas, the atlas images are drawn from; it decides the tile size
+   * @param maxBytes, the maximum size of all cached pictures, in bytes
+   */
+  public ChunkBitmapCache(SpriteAtlas atlas, long maxBytes) {
+    if(maxBytes < 0) {
+      throw new IllegalArgumentException("Cache size limit must not be negative");
+    }
+    this.atlas = atlas;
+    this.bitmaps = new LinkedHashMap<Long, Bitmap>(16, 0.75f, true);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Draws a rectangle of a board's tiles, every layer included, into the canvas.
+   * The rectangle must lie within the board.
+   * @param board, the board in question
+   * @param left, the horizontal index of the leftmost tile drawn
+   * @param bottom, the vertical index of the lowest tile drawn
+   * @param right, the horizontal index of the rightmost tile drawn
+   * @param top, the vertical index of the highest tile drawn
+   * @param canvas, the image drawn into
+   * @param x, the pixel column of the left edge of the rectangle in the canvas
+   * @param y, the pixel row of the top edge of the rectangle in the canvas
+   */
+  public void draw(TileBoard board, int left, int bottom, int right, int top, BufferedImage canvas, int x, int y) {
+    if(board != this.board || this.atlas.getTileWidth() != this.tileWidth ||
+       this.atlas.getTileHeight() != this.tileHeight) {
+      this.clear();
+      this.board = board;
+      this.tileWidth = this.atlas.getTileWidth();
+      this.tileHeight = this.atlas.getTileHeight();
+    }
+    int[] canvasPixels = StripeRasterizer.getPixels(canvas);
+    Graphics2D g = null; // only created if a picture has to be blended
+    try {
+      for(int chunkX = left / CHUNK_SIZE; chunkX <= right / CHUNK_SIZE; chunkX++) {
+        for(int chunkY = bottom / CHUNK_SIZE; chunkY <= top / CHUNK_SIZE; chunkY++) {
+          Bitmap bitmap = this.get(chunkX, chunkY);
+          // The part of the rectangle in this chunk, and where it is in the picture and on the canvas.
+          int fromI = Math.max(left, bitmap.left);
+          int toI = Math.min(right, bitmap.right);
+          int fromJ = Math.max(bottom, bitmap.bottom);
+          int toJ = Math.min(top, bitmap.top);
+          int sx = (fromI - bitmap.left) * this.tileWidth;
+          int sy = (bitmap.top - toJ) * this.tileHeight;
+          int tx = x + (fromI - left) * this.tileWidth;
+          int ty = y + (top - toJ) * this.tileHeight;
+          int w = (toI - fromI + 1) * this.tileWidth;
+          int h = (toJ - fromJ + 1) * this.tileHeight;
+
+          if(bitmap.opaque && canvasPixels != null) {
+            // Clip to the canvas, then copy the rows straight across.
+            int clipX = Math.max(0, -tx);
+            int clipY = Math.max(0, -ty);
+            int clipW = Math.min(w, canvas.getWidth() - tx) - clipX;
+            int clipH = Math.min(h, canvas.getHeight() - ty) - clipY;
+            if(clipW > 0 && clipH > 0) {
+              StripeRasterizer.copyPixels(StripeRasterizer.getPixels(bitmap.image), bitmap.image.getWidth(),
+                                          sx + clipX, sy + clipY, canvasPixels, canvas.getWidth(),
+                                          tx + clipX, ty + clipY, clipW, clipH);
+            }
+          }
+          else {
+            if(g == null) {
+              g = canvas.createGraphics();
+            }
+            g.drawImage(bitmap.image, tx, ty, tx + w, ty + h, sx, sy, sx + w, sy + h, null);
+          }
+        }
+      }
+    }
+    finally {
+      if(g != null) {
+        g.dispose();
+      }
+    }
+  }
+
+  /**
+   * Drops every cached picture. Counters are left untouched.
+   */
+  public void clear() {
+    this.bitmaps.clear();
+    this.currentBytes = 0;
+  }
+
+  /**
+   * Retrieves the cache's byte limit.
+   */
+  public long getMaxBytes() {
+    return this.maxBytes;
+  }
+
+  /**
+   * Sets the cache's byte limit, dropping pictures if the cache no longer fits.
+   * @param maxBytes, the maximum size of all cached pictures, in bytes
+   */
+  public void setMaxBytes(long maxBytes) {
+    if(maxBytes < 0) {
+      throw new IllegalArgumentException("Cache size limit must not be negative");
+    }
+    this.maxBytes = maxBytes;
+    this.evict(null);
+  }
+
+  /**
+   * Retrieves the size of all cached pictures, in bytes.
+   */
+  public long getCurrentBytes() {
+    return this.currentBytes;
+  }
+
+  /**
+   * Retrieves the number of cached pictures.
+   */
+  public int size() {
+    return this.bitmaps.size();
+  }
+
+  /**
+   * Retrieves the number of chunk pictures drawn, including ones drawn again after a change.
+   */
+  public long getBuildCount() {
+    return this.builds;
+  }
+
+  /**
+   * Retrieves the number of times a cached picture was up to date and could be used.
+   */
+  public long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Retrieves the number of pictures dropped to stay within the byte limit.
+   */
+  public long getEvictions() {
+    return this.evictions;
+  }
+
+  // The up to date picture of a chunk of the current board, drawing it if needed.
+  private Bitmap get(int chunkX, int chunkY) {
+    Long key = ((long) chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+    Bitmap bitmap = this.bitmaps.get(key);
+    if(bitmap != null && bitmap.version == this.board.getVersion() &&
+       bitmap.chunkVersion == this.board.getChunkVersion(chunkX, chunkY)) {
+      this.hits++;
+      return bitmap;
+    }
+    if(bitmap != null) {
+      this.bitmaps.remove(key);
+      this.currentBytes -= sizeOf(bitmap);
+    }
+    bitmap = this.build(chunkX, chunkY);
+    this.bitmaps.put(key, bitmap);
+    this.currentBytes += sizeOf(bitmap);
+    this.evict(bitmap);
+    return bitmap;
+  }
+
+  // Draws every layer of every tile of a chunk, bottom layer first.
+  private Bitmap build(int chunkX, int chunkY) {
+    Bitmap bitmap = new Bitmap();
+    bitmap.left = chunkX * CHUNK_SIZE;
+    bitmap.bottom = chunkY * CHUNK_SIZE;
+    bitmap.right = Math.min(bitmap.left + CHUNK_SIZE, this.board.getNumTilesWidth()) - 1;
+    bitmap.top = Math.min(bitmap.bottom + CHUNK_SIZE, this.board.getNumTilesHeight()) - 1;
+    bitmap.version = this.board.getVersion();
+    bitmap.chunkVersion = this.board.getChunkVersion(chunkX, chunkY);
+    int columns = bitmap.right - bitmap.left + 1;
+    int rows = bitmap.top - bitmap.bottom + 1;
+    int layers = this.board.getLayerCount();
+
+    String[] images = new String[columns * rows * layers];
+    Set<String> used = new HashSet<String>();
+    for(int k = 0; k < images.length; k++) {
+      images[k] = this.board.getLayerImage(k % layers, bitmap.left + k / layers / rows,
+                                           bitmap.bottom + k / layers % rows);
+      if(images[k] != null) {
+        used.add(images[k]);
+      }
+    }
+    this.atlas.pack(used);
+
+    BufferedImage sheet = this.atlas.getSheet();
+    bitmap.image = new BufferedImage(columns * this.tileWidth, rows * this.tileHeight, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = bitmap.image.createGraphics();
+    for(int k = 0; k < images.length; k++) {
+      if(images[k] == null) {
+        continue;
+      }
+      int cell = this.atlas.getCell(images[k]);
+      int x = k / layers / rows * this.tileWidth;
+      int y = (rows - 1 - k / layers % rows) * this.tileHeight;
+      int sx = this.atlas.getCellX(cell);
+      int sy = this.atlas.getCellY(cell);
+      g.drawImage(sheet, x, y, x + this.tileWidth, y + this.tileHeight, sx, sy, sx + this.tileWidth,
+                  sy + this.tileHeight, null);
+    }
+    g.dispose();
+
+    bitmap.opaque = true;
+    for(int pixel : StripeRasterizer.getPixels(bitmap.image)) {
+      if(pixel >>> 24 != 0xFF) {
+        bitmap.opaque = false;
+        break;
+      }
+    }
+    this.builds++;
+    return bitmap;
+  }
+
+  // Drops least recently used pictures, other than the one about to be drawn, until the cache fits.
+  private void evict(Bitmap keep) {
+    Iterator<Map.Entry<Long, Bitmap>> eldest = this.bitmaps.entrySet().iterator();
+    while(this.currentBytes > this.maxBytes && eldest.hasNext()) {
+      Bitmap bitmap = eldest.next().getValue();
+      if(bitmap == keep) {
+        continue;
+      }
+      this.currentBytes -= sizeOf(bitmap);
+      eldest.remove();
+      this.evictions++;
+    }
+  }
+
+  private static long sizeOf(Bitmap bitmap) {
+    return 4L * bitmap.image.getWidth() * bitmap.image.getHeight();
+  }
+
+  // The picture of one chunk, and which tiles and which version of the board it shows.
+  private static class Bitmap {
+    private BufferedImage image;
+    private boolean opaque; // whether it has no transparent pixels, and so can be copied without blending
+    private int left;
+    private int bottom;
+    private int right;
+    private int top;
+    private long version;
+    private int chunkVersion;
+  }
+}
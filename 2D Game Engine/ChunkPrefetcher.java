@@ -0,0 +1,300 @@
+/*************************************************************************
+  *  Compilation:  javac ChunkPrefetcher.java
+  *  Execution:    java ChunkPrefetcher
+  *
+  *  Loads the chunks of a TileBoard ahead of a moving Player on a
+  *  background thread, together with the images their tiles use, so that
+  *  by the time the display scrolls onto them nothing has to be read from
+  *  disk on the render path. Chunks are prefetched in the direction the
+  *  Player last moved (or faces), just past the edge of its display.
+  *  Only boards read from disk are prefetched: those kept in a
+  *  ChunkedTileStorage or a MappedTileStorage. A chunk is queued once; a
+  *  chunked board's chunk is queued again only after it has been unloaded,
+  *  and a mapped board's only after the player has gone far from it or
+  *  to another board.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChunkPrefetcher {
+  public static final int DEFAULT_LOOK_AHEAD = 2; // chunks prefetched past the edge of the display
+
+  private static final int CHUNK_SIZE = ChunkedTileStorage.CHUNK_SIZE;
+
+  private ExecutorService executor; // the single background loader thread
+  private int lookAhead; // how many chunks past the edge of the display are prefetched
+  // For the displayed board, the chunks queued or being loaded, and the chunks of a mapped board
+  // paged in near the player, so each is only queued once. Loaded chunks of chunked boards are
+  // told by the storage.
+  private Map<TileBoard, Set<Long>> queued;
+
+  // Where the player was at the last update, to tell which way it is moving.
+  private TileBoard lastBoard;
+  private int lastFirstTileIndex;
+  private int lastSecondTileIndex;
+
+  private AtomicInteger queueDepth; // chunks waiting to be loaded
+  private AtomicLong chunksPrefetched; // chunks loaded by the background thread
+  private AtomicLong imagesPrefetched; // images decoded by the background thread
+  private AtomicLong stalls; // display chunks that were not loaded when a frame was drawn
+
+  /**
+   * Creates a new ChunkPrefetcher with the default look-ahead.
+   */
+  public ChunkPrefetcher() {
+    this(DEFAULT_LOOK_AHEAD);
+  }
+
+  /**
+   * Creates a new ChunkPrefetcher.
+   * @param lookAhead, how many chunks past the edge of the display are prefetched
+   */
+  public ChunkPrefetcher(int lookAhead) {
+    if(lookAhead <= 0) {
+      throw new IllegalArgumentException("Look-ahead must be at least one chunk");
+    }
+    this.lookAhead = lookAhead;
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "chunk-prefetcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+      }
+    });
+    this.queued = new ConcurrentHashMap<TileBoard, Set<Long>>();
+    this.queueDepth = new AtomicInteger();
+    this.chunksPrefetched = new AtomicLong();
+    this.imagesPrefetched = new AtomicLong();
+    this.stalls = new AtomicLong();
+  }
+
+  /**
+   * Queues the chunks ahead of the Player's display for loading. Call after every move.
+   * @param player, the player whose display is drawn
+   */
+  public void update(Player player) {
+    TileBoard board = player.getBoard();
+    int dx = 0;
+    int dy = 0;
+    if(board == this.lastBoard) {
+      dx = Integer.signum(player.getFirstTileIndex() - this.lastFirstTileIndex);
+      dy = Integer.signum(player.getSecondTileIndex() - this.lastSecondTileIndex);
+      if(player.getFirstTileIndex() / CHUNK_SIZE != this.lastFirstTileIndex / CHUNK_SIZE ||
+         player.getSecondTileIndex() / CHUNK_SIZE != this.lastSecondTileIndex / CHUNK_SIZE) {
+        this.forgetOutside(board, player.getFirstTileIndex() / CHUNK_SIZE, player.getSecondTileIndex() / CHUNK_SIZE);
+      }
+    }
+    else if(this.lastBoard != null) {
+      // The last board is no longer displayed; forget its chunks so it can be freed.
+      this.queued.remove(this.lastBoard);
+    }
+    // Standing still, or just arrived: look the way the player faces (0 up, 1 right, 2 down, 3 left).
+    if(dx == 0 && dy == 0) {
+      int facing = player.getFacingValue();
+      dx = facing == 1 ? 1 : facing == 3 ? -1 : 0;
+      dy = facing == 0 ? 1 : facing == 2 ? -1 : 0;
+    }
+    this.lastBoard = board;
+    this.lastFirstTileIndex = player.getFirstTileIndex();
+    this.lastSecondTileIndex = player.getSecondTileIndex();
+
+    int halfWidth = (player.getDisplayWidth() - 1) / 2;
+    int halfHeight = (player.getDisplayHeight() - 1) / 2;
+    int left = player.getFirstTileIndex() - halfWidth;
+    int right = player.getFirstTileIndex() + halfWidth;
+    int bottom = player.getSecondTileIndex() - halfHeight;
+    int top = player.getSecondTileIndex() + halfHeight;
+    int reach = this.lookAhead * CHUNK_SIZE;
+
+    // The band past the display edge the player is heading towards, as wide as the display.
+    if(dx > 0) {
+      this.queueRegion(board, right + 1, right + reach, bottom, top);
+    }
+    if(dx < 0) {
+      this.queueRegion(board, left - reach, left - 1, bottom, top);
+    }
+    if(dy > 0) {
+      this.queueRegion(board, left, right, top + 1, top + reach);
+    }
+    if(dy < 0) {
+      this.queueRegion(board, left, right, bottom - reach, bottom - 1);
+    }
+  }
+
+  /**
+   * Counts the chunks under the Player's display that are not loaded yet, and so will
+   * be loaded synchronously while drawing. Call just before drawing a frame.
+   * @param player, the player whose display is about to be drawn
+   */
+  public void recordFrame(Player player) {
+    TileBoard board = player.getBoard();
+    if(!(board.getStorage() instanceof ChunkedTileStorage)) {
+      return;
+    }
+    ChunkedTileStorage storage = (ChunkedTileStorage) board.getStorage();
+    int halfWidth = (player.getDisplayWidth() - 1) / 2;
+    int halfHeight = (player.getDisplayHeight() - 1) / 2;
+    int left = Math.max(player.getFirstTileIndex() - halfWidth, 0);
+    int right = Math.min(player.getFirstTileIndex() + halfWidth, board.getNumTilesWidth() - 1);
+    int bottom = Math.max(player.getSecondTileIndex() - halfHeight, 0);
+    int top = Math.min(player.getSecondTileIndex() + halfHeight, board.getNumTilesHeight() - 1);
+    for(int x = left / CHUNK_SIZE; x <= right / CHUNK_SIZE; x++) {
+      for(int y = bottom / CHUNK_SIZE; y <= top / CHUNK_SIZE; y++) {
+        if(!storage.isLoaded(x * CHUNK_SIZE, y * CHUNK_SIZE)) {
+          this.stalls.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the background thread. Chunks already queued are dropped.
+   */
+  public void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Retrieves the number of chunks waiting to be loaded.
+   */
+  public int getQueueDepth() {
+    return this.queueDepth.get();
+  }
+
+  /**
+   * Retrieves the number of chunks loaded by the background thread.
+   */
+  public long getChunksPrefetched() {
+    return this.chunksPrefetched.get();
+  }
+
+  /**
+   * Retrieves the number of images decoded by the background thread.
+   */
+  public long getImagesPrefetched() {
+    return this.imagesPrefetched.get();
+  }
+
+  /**
+   * Retrieves the number of times a frame was drawn over a chunk that was not loaded yet.
+   */
+  public long getStallCount() {
+    return this.stalls.get();
+  }
+
+  // Forgets the paged-in chunks of a board further than the unload radius of a ChunkedTileStorage
+  // from the player's chunk, since the system may page them out again by the time the player
+  // comes back; this also keeps the set small however far the player travels.
+  private void forgetOutside(TileBoard board, int centerX, int centerY) {
+    Set<Long> boardQueued = this.queued.get(board);
+    if(boardQueued == null) {
+      return;
+    }
+    Iterator<Long> chunks = boardQueued.iterator();
+    while(chunks.hasNext()) {
+      long key = chunks.next();
+      if(Math.abs((int) (key >> 32) - centerX) > ChunkedTileStorage.DEFAULT_UNLOAD_RADIUS ||
+         Math.abs((int) key - centerY) > ChunkedTileStorage.DEFAULT_UNLOAD_RADIUS) {
+        chunks.remove();
+      }
+    }
+  }
+
+  // Queues every chunk overlapping a rectangle of tiles, clipped to the board.
+  private void queueRegion(TileBoard board, int left, int right, int bottom, int top) {
+    left = Math.max(left, 0);
+    bottom = Math.max(bottom, 0);
+    right = Math.min(right, board.getNumTilesWidth() - 1);
+    top = Math.min(top, board.getNumTilesHeight() - 1);
+    if(left > right || bottom > top) {
+      return;
+    }
+    for(int x = left / CHUNK_SIZE; x <= right / CHUNK_SIZE; x++) {
+      for(int y = bottom / CHUNK_SIZE; y <= top / CHUNK_SIZE; y++) {
+        this.queueChunk(board, x, y);
+      }
+    }
+  }
+
+  private void queueChunk(final TileBoard board, final int x, final int y) {
+    TileStorage storage = board.getStorage();
+    final boolean chunked = storage instanceof ChunkedTileStorage;
+    if(!chunked && !(storage instanceof MappedTileStorage)) {
+      // Kept in memory, so there is nothing to read ahead, and the tiles may not be read off the game thread.
+      return;
+    }
+    if(chunked && ((ChunkedTileStorage) storage).isLoaded(x * CHUNK_SIZE, y * CHUNK_SIZE)) {
+      return;
+    }
+    final Long key = ((long) x << 32) | (y & 0xFFFFFFFFL);
+    final Set<Long> boardQueued = this.queued.computeIfAbsent(board, b -> ConcurrentHashMap.newKeySet());
+    if(!boardQueued.add(key)) {
+      return;
+    }
+    this.queueDepth.incrementAndGet();
+    this.executor.execute(new Runnable() {
+      public void run() {
+        try {
+          prefetch(board, x, y);
+        }
+        finally {
+          queueDepth.decrementAndGet();
+          // A mapped chunk stays paged in, but a loaded chunk may be unloaded and need loading again.
+          if(chunked) {
+            boardQueued.remove(key);
+          }
+        }
+      }
+    });
+  }
+
+  // Runs on the background thread: loads one chunk, then decodes any of its images not yet cached.
+  // The game thread may change the chunk's tiles meanwhile; the storages publish their tile
+  // arrays and palettes safely, so the worst case is reading a tile's old image.
+  private void prefetch(TileBoard board, int x, int y) {
+    TileStorage storage = board.getStorage();
+    int left = x * CHUNK_SIZE;
+    int bottom = y * CHUNK_SIZE;
+    if(storage instanceof ChunkedTileStorage) {
+      ((ChunkedTileStorage) storage).load(left, bottom);
+    }
+    else if(storage instanceof MappedTileStorage) {
+      ((MappedTileStorage) storage).touchChunk(left, bottom);
+    }
+    this.chunksPrefetched.incrementAndGet();
+
+    Set<String> images = new HashSet<String>();
+    int right = Math.min(left + CHUNK_SIZE, board.getNumTilesWidth());
+    int top = Math.min(bottom + CHUNK_SIZE, board.getNumTilesHeight());
+    for(int i = left; i < right; i++) {
+      for(int j = bottom; j < top; j++) {
+        if(storage.isPopulated(i, j)) {
+          images.add(storage.getImage(i, j));
+        }
+      }
+    }
+    for(String image : images) {
+      if(!PennDraw.getImageCache().contains(image)) {
+        try {
+          PennDraw.loadImage(image);
+          this.imagesPrefetched.incrementAndGet();
+        }
+        catch(IllegalArgumentException e) {
+          // Missing or corrupt: leave it for the render path to report.
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,520 @@
+/*************************************************************************
+  *  Compilation:  javac ChunkedTileStorage.java
+  *  Execution:    java ChunkedTileStorage
+  *
+  *  A TileStorage for very large boards. Tiles are grouped into square
+  *  chunks that are only created the first time one of their tiles is
+  *  touched, so memory grows with the part of the board that is visited
+  *  rather than with the board's size. A chunk whose tiles are all alike is
+  *  a single value until one of its tiles is changed, and becomes one
+  *  again once its tiles are all alike. Chunks that have not been changed
+  *  can be unloaded again once they are far from the player, since they can
+  *  be recreated from the fill value or the source storage. Players and
+  *  entities standing on a tile do not change it; they only keep its chunk
+  *  loaded until they leave.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChunkedTileStorage implements TileStorage {
+  public static final int CHUNK_SIZE = 32; // tiles along each side of a chunk
+  public static final int DEFAULT_UNLOAD_RADIUS = 8; // in chunks
+
+  private static final int CHUNK_SHIFT = 5; // log2 of CHUNK_SIZE
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  // Flag bits of each tile.
+  private static final int HAS_PLAYER = 1;
+  private static final int HAS_ENEMY = 2;
+  private static final int PASSABLE = 4;
+
+  private int width;
+  private int height;
+  private TileStorage source; // where unloaded chunks are read from, or null to use the fill value
+  private short fillImage; // image id of tiles in chunks without a source, 0 for unpopulated
+  private byte fillFlags; // flags of tiles in chunks without a source
+  private ConcurrentHashMap<Long, Chunk> chunks; // loaded chunks, keyed by chunk coordinates
+  private int unloadRadius; // chunks further than this from the player may be unloaded
+
+  // Image names are shared by all chunks. The array is replaced, never changed, when a name is
+  // added, so tiles can be read without locking.
+  private volatile String[] palette;
+  private HashMap<String, Integer> paletteIds;
+
+  private AtomicLong chunksCreated; // number of chunks created, including ones created again after unloading
+  private AtomicLong chunksUnloaded;
+
+  /**
+   * Creates a new ChunkedTileStorage of unpopulated tiles.
+   * @param width, the number of tiles along the width
+   * @param height, the number of tiles along the height
+   */
+  public ChunkedTileStorage(int width, int height) {
+    this(width, height, null);
+  }
+
+  /**
+   * Creates a new ChunkedTileStorage whose chunks are copied from another storage
+   * when first touched, for example a MappedTileStorage over a map file.
+   * @param width, the number of tiles along the width
+   * @param height, the number of tiles along the height
+   * @param source, the storage chunks are loaded from, or null for unpopulated tiles
+   */
+  public ChunkedTileStorage(int width, int height, TileStorage source) {
+    if(width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Board dimensions must be positive");
+    }
+    this.width = width;
+    this.height = height;
+    this.source = source;
+    this.chunks = new ConcurrentHashMap<Long, Chunk>();
+    this.unloadRadius = DEFAULT_UNLOAD_RADIUS;
+    this.palette = new String[0];
+    this.paletteIds = new HashMap<String, Integer>();
+    this.chunksCreated = new AtomicLong();
+    this.chunksUnloaded = new AtomicLong();
+  }
+
+  public int getWidth() {
+    return this.width;
+  }
+
+  public int getHeight() {
+    return this.height;
+  }
+
+  public boolean isPopulated(int i, int j) {
+    return this.chunkAt(i, j).image(local(i, j)) != 0;
+  }
+
+  public Tile getTile(int i, int j) {
+    this.chunkAt(i, j);
+    return new TileView(this, i, j);
+  }
+
+  public String getImage(int i, int j) {
+    int id = this.chunkAt(i, j).image(local(i, j)) & 0xFFFF;
+    return id == 0 ? null : this.palette[id - 1];
+  }
+
+  public void setImage(int i, int j, String image) {
+    this.chunkAt(i, j).setImage(local(i, j), (short) (this.intern(image) + 1));
+  }
+
+  public boolean getHasPlayer(int i, int j) {
+    return (this.chunkAt(i, j).flags(local(i, j)) & HAS_PLAYER) != 0;
+  }
+
+  public void setHasPlayer(int i, int j, boolean hasPlayer) {
+    this.setFlag(i, j, HAS_PLAYER, hasPlayer);
+  }
+
+  public boolean getHasEnemy(int i, int j) {
+    return (this.chunkAt(i, j).flags(local(i, j)) & HAS_ENEMY) != 0;
+  }
+
+  public void setHasEnemy(int i, int j, boolean hasEnemy) {
+    this.setFlag(i, j, HAS_ENEMY, hasEnemy);
+  }
+
+  public boolean getPassable(int i, int j) {
+    return (this.chunkAt(i, j).flags(local(i, j)) & PASSABLE) != 0;
+  }
+
+  public void setPassable(int i, int j, boolean passable) {
+    this.setFlag(i, j, PASSABLE, passable);
+  }
+
+  /**
+   * Marks the tile at the inputted location as stood on by a player or entity, or no
+   * longer stood on: the tile is made unpassable or passable again, and has a player or
+   * an enemy on it or not, as asked. Unlike the other setters this does not count as a
+   * change to the chunk, which can still be unloaded once nobody stands in it.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param hasPlayer, whether the one standing on the tile is a player
+   * @param hasEnemy, whether the one standing on the tile is an enemy
+   * @param occupied, true when arriving on the tile, false when leaving it
+   */
+  public void setOccupied(int i, int j, boolean hasPlayer, boolean hasEnemy, boolean occupied) {
+    Chunk chunk = this.chunkAt(i, j);
+    int local = local(i, j);
+    int marks = (hasPlayer ? HAS_PLAYER : 0) | (hasEnemy ? HAS_ENEMY : 0);
+    int flags = chunk.flags(local);
+    flags = occupied ? (flags | marks) & ~PASSABLE : (flags & ~marks) | PASSABLE;
+    chunk.setOccupancy(local, (byte) flags, occupied);
+  }
+
+  public void populate(int i, int j, String image, boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    Chunk chunk = this.chunkAt(i, j);
+    int local = local(i, j);
+    chunk.setImage(local, (short) (this.intern(image) + 1));
+    chunk.setFlags(local, (byte) CompactTileStorage.packFlags(hasPlayer, hasEnemy, passable));
+  }
+
+  /**
+   * Fills the whole board by dropping every chunk and the source, and remembering the
+   * fill value. Takes constant time no matter how large the board is.
+   */
+  public void populateAll(String image, boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    this.source = null;
+    this.fillImage = (short) (this.intern(image) + 1);
+    this.fillFlags = (byte) CompactTileStorage.packFlags(hasPlayer, hasEnemy, passable);
+    this.chunks.clear();
+  }
+
+  /**
+   * Adds every image name the storage has used, and every image of its source, to the
+   * inputted set. Unloaded chunks are not read back in to do this.
+   */
+  public void collectImages(Set<String> images) {
+    for(String image : this.palette) {
+      images.add(image);
+    }
+    if(this.source != null) {
+      this.source.collectImages(images);
+    }
+  }
+
+  /**
+   * Checks if the chunk containing the tile at the inputted location is loaded.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public boolean isLoaded(int i, int j) {
+    return this.chunks.containsKey(key(i >> CHUNK_SHIFT, j >> CHUNK_SHIFT));
+  }
+
+  /**
+   * Loads the chunk containing the tile at the inputted location, if it is not loaded.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public void load(int i, int j) {
+    this.chunkAt(i, j);
+  }
+
+  /**
+   * Unloads every unchanged chunk further than the unload radius, in chunks, from the
+   * chunk containing the tile at the inputted location. Changed chunks stay loaded,
+   * since they cannot be recreated from the fill value or the source, and so do
+   * chunks a player or entity stands in.
+   * @param i, the horizontal index of the tile, usually the player's
+   * @param j, the vertical index of the tile, usually the player's
+   */
+  public void unloadOutside(int i, int j) {
+    int centerX = i >> CHUNK_SHIFT;
+    int centerY = j >> CHUNK_SHIFT;
+    Iterator<Chunk> loaded = this.chunks.values().iterator();
+    while(loaded.hasNext()) {
+      Chunk chunk = loaded.next();
+      if(!chunk.modified && chunk.occupants == 0 && (Math.abs(chunk.x - centerX) > this.unloadRadius ||
+                             Math.abs(chunk.y - centerY) > this.unloadRadius)) {
+        loaded.remove();
+        this.chunksUnloaded.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Copies the image ids and flags of every tile of a chunk into the inputted arrays,
+   * without loading the chunk if it is not loaded: an unloaded chunk is read from the
+   * source, or is all the fill value. Tiles are in the order of a chunk's own arrays,
+   * column by column, and those of an edge chunk that fall outside of the board are
+   * unpopulated.
+   * @param chunkX, the horizontal index of the chunk
+   * @param chunkY, the vertical index of the chunk
+   * @param images, receives each tile's image id, 0 if unpopulated (see getPaletteImage)
+   * @param flags, receives each tile's flags (see CompactTileStorage.packFlags)
+   */
+  public void copyChunk(int chunkX, int chunkY, short[] images, byte[] flags) {
+    Chunk chunk = this.chunks.get(key(chunkX, chunkY));
+    if(chunk == null && this.source != null) {
+      chunk = this.readChunk(chunkX, chunkY);
+    }
+    for(int local = 0; local < CHUNK_SIZE * CHUNK_SIZE; local++) {
+      int i = (chunkX << CHUNK_SHIFT) | (local >> CHUNK_SHIFT);
+      int j = (chunkY << CHUNK_SHIFT) | (local & CHUNK_MASK);
+      if(i >= this.width || j >= this.height) {
+        images[local] = 0;
+        flags[local] = 0;
+      }
+      else if(chunk == null) {
+        images[local] = this.fillImage;
+        flags[local] = this.fillFlags;
+      }
+      else {
+        images[local] = chunk.image(local);
+        flags[local] = chunk.flags(local);
+      }
+    }
+  }
+
+  /**
+   * Retrieves the name of the image with the inputted id, as copied by copyChunk.
+   * @param id, the image id, from 1
+   */
+  public String getPaletteImage(int id) {
+    return this.palette[id - 1];
+  }
+
+  /**
+   * Retrieves the unload radius, in chunks.
+   */
+  public int getUnloadRadius() {
+    return this.unloadRadius;
+  }
+
+  /**
+   * Sets how many chunks away from the player a chunk must be before it may be unloaded.
+   * @param unloadRadius, the unload radius, in chunks
+   */
+  public void setUnloadRadius(int unloadRadius) {
+    if(unloadRadius < 0) {
+      throw new IllegalArgumentException("Unload radius must not be negative");
+    }
+    this.unloadRadius = unloadRadius;
+  }
+
+  /**
+   * Retrieves the number of chunks currently loaded.
+   */
+  public int getLoadedChunkCount() {
+    return this.chunks.size();
+  }
+
+  /**
+   * Retrieves the number of loaded chunks whose tiles are not all alike, and so keep
+   * per-tile arrays.
+   */
+  public int getExpandedChunkCount() {
+    int expanded = 0;
+    for(Chunk chunk : this.chunks.values()) {
+      if(chunk.images != null) {
+        expanded++;
+      }
+    }
+    return expanded;
+  }
+
+  /**
+   * Retrieves the number of chunks created so far.
+   */
+  public long getChunksCreated() {
+    return this.chunksCreated.get();
+  }
+
+  /**
+   * Retrieves the number of chunks unloaded so far.
+   */
+  public long getChunksUnloaded() {
+    return this.chunksUnloaded.get();
+  }
+
+  // The chunk holding a tile, creating it on first touch.
+  private Chunk chunkAt(int i, int j) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the board");
+    }
+    int x = i >> CHUNK_SHIFT;
+    int y = j >> CHUNK_SHIFT;
+    Long key = key(x, y);
+    Chunk chunk = this.chunks.get(key);
+    if(chunk == null) {
+      chunk = this.chunks.computeIfAbsent(key, k -> this.createChunk(x, y));
+    }
+    return chunk;
+  }
+
+  // Builds a chunk to be loaded.
+  private Chunk createChunk(int x, int y) {
+    this.chunksCreated.incrementAndGet();
+    return this.readChunk(x, y);
+  }
+
+  // Builds a chunk from the source, or from the fill value if there is no source.
+  private Chunk readChunk(int x, int y) {
+    Chunk chunk = new Chunk(x, y, this.fillImage, this.fillFlags);
+    if(this.source == null) {
+      return chunk;
+    }
+
+    int left = x << CHUNK_SHIFT;
+    int bottom = y << CHUNK_SHIFT;
+    int right = Math.min(left + CHUNK_SIZE, this.width);
+    int top = Math.min(bottom + CHUNK_SIZE, this.height);
+    boolean first = true;
+    for(int i = left; i < right; i++) {
+      for(int j = bottom; j < top; j++) {
+        short image = 0;
+        byte flags = 0;
+        if(this.source.isPopulated(i, j)) {
+          image = (short) (this.intern(this.source.getImage(i, j)) + 1);
+          flags = (byte) CompactTileStorage.packFlags(this.source.getHasPlayer(i, j),
+                                                      this.source.getHasEnemy(i, j),
+                                                      this.source.getPassable(i, j));
+        }
+        if(first) {
+          chunk.uniformImage = image;
+          chunk.uniformFlags = flags;
+          first = false;
+        }
+        else {
+          chunk.load(local(i, j), image, flags);
+        }
+      }
+    }
+    chunk.modified = false; // loading is not a change
+    return chunk;
+  }
+
+  private void setFlag(int i, int j, int flag, boolean set) {
+    Chunk chunk = this.chunkAt(i, j);
+    int local = local(i, j);
+    int flags = chunk.flags(local);
+    chunk.setFlags(local, (byte) (set ? flags | flag : flags & ~flag));
+  }
+
+  // Palette index of an image name, adding it to the palette on first use.
+  private synchronized int intern(String image) {
+    Integer id = this.paletteIds.get(image);
+    if(id == null) {
+      if(this.palette.length >= CompactTileStorage.MAX_IMAGES) {
+        throw new RuntimeException("A chunked board cannot use more than " + CompactTileStorage.MAX_IMAGES +
+                                   " images");
+      }
+      String[] palette = new String[this.palette.length + 1];
+      System.arraycopy(this.palette, 0, palette, 0, this.palette.length);
+      id = this.palette.length;
+      palette[id] = image;
+      this.paletteIds.put(image, id);
+      this.palette = palette;
+    }
+    return id;
+  }
+
+  // Position of a tile within its chunk.
+  private static int local(int i, int j) {
+    return ((i & CHUNK_MASK) << CHUNK_SHIFT) | (j & CHUNK_MASK);
+  }
+
+  private static Long key(int x, int y) {
+    return ((long) x << 32) | (y & 0xFFFFFFFFL);
+  }
+
+  /**
+   * A CHUNK_SIZE by CHUNK_SIZE block of tiles. While all of its tiles are alike it
+   * only stores their shared image and flags; the per-tile arrays are created the
+   * first time one tile differs.
+   */
+  private static class Chunk {
+    private int x; // chunk coordinates, in chunks
+    private int y;
+    private short uniformImage;
+    private byte uniformFlags;
+    // Volatile, as a ChunkPrefetcher reads tiles while the game thread changes them: the arrays
+    // are filled before they are set, and the shared values set before they are dropped.
+    private volatile short[] images; // null while the chunk is uniform
+    private volatile byte[] flags; // null while the chunk is uniform
+    private boolean modified; // whether a tile was changed after the chunk was created
+    private int occupants; // number of players and entities standing in the chunk
+
+    private Chunk(int x, int y, short image, byte flags) {
+      this.x = x;
+      this.y = y;
+      this.uniformImage = image;
+      this.uniformFlags = flags;
+    }
+
+    // The arrays are read once, since collapse may drop them while another thread reads a tile.
+    private short image(int local) {
+      short[] images = this.images;
+      return images == null ? this.uniformImage : images[local];
+    }
+
+    private byte flags(int local) {
+      byte[] flags = this.flags;
+      return flags == null ? this.uniformFlags : flags[local];
+    }
+
+    private void setImage(int local, short image) {
+      if(this.image(local) == image) {
+        return;
+      }
+      this.expand();
+      this.images[local] = image;
+      this.modified = true;
+    }
+
+    private void setFlags(int local, byte flags) {
+      if(this.flags(local) == flags) {
+        return;
+      }
+      this.expand();
+      this.flags[local] = flags;
+      this.modified = true;
+    }
+
+    // Sets the flags of a tile a player or entity arrives on or leaves, without marking the chunk changed.
+    private void setOccupancy(int local, byte flags, boolean occupied) {
+      this.occupants = occupied ? this.occupants + 1 : Math.max(this.occupants - 1, 0);
+      if(this.flags(local) != flags) {
+        this.expand();
+        this.flags[local] = flags;
+      }
+      if(this.occupants == 0) {
+        this.collapse();
+      }
+    }
+
+    // Sets a tile while the chunk is being loaded.
+    private void load(int local, short image, byte flags) {
+      if(this.image(local) != image) {
+        this.expand();
+        this.images[local] = image;
+      }
+      if(this.flags(local) != flags) {
+        this.expand();
+        this.flags[local] = flags;
+      }
+    }
+
+    // Gives the chunk per-tile arrays, filled with the shared values.
+    private void expand() {
+      if(this.images != null) {
+        return;
+      }
+      short[] images = new short[CHUNK_SIZE * CHUNK_SIZE];
+      byte[] flags = new byte[CHUNK_SIZE * CHUNK_SIZE];
+      Arrays.fill(images, this.uniformImage);
+      Arrays.fill(flags, this.uniformFlags);
+      this.images = images;
+      this.flags = flags;
+    }
+
+    // Drops the per-tile arrays if the chunk's tiles are all alike again.
+    private void collapse() {
+      short[] images = this.images;
+      byte[] flags = this.flags;
+      if(images == null) {
+        return;
+      }
+      for(int local = 1; local < images.length; local++) {
+        if(images[local] != images[0] || flags[local] != flags[0]) {
+          return;
+        }
+      }
+      this.uniformImage = images[0];
+      this.uniformFlags = flags[0];
+      this.images = null;
+      this.flags = null;
+    }
+  }
+}
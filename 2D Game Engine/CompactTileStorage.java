@@ -0,0 +1,203 @@
+/*************************************************************************
+  *  Compilation:  javac CompactTileStorage.java
+  *  Execution:    java CompactTileStorage
+  *
+  *  A TileStorage that keeps tiles as primitive arrays instead of objects:
+  *  one 16-bit image id per tile, indexing an interned palette of image
+  *  names, and 4 bits of flags per tile. That is 2.5 bytes per tile, so a
+  *  4096x4096 board takes 40 MB and no per-tile objects at all. Tiles are
+  *  handed out as TileView flyweights. A tile's flags share a long with 15
+  *  other tiles, so flags are changed with compare-and-set, and threads may
+  *  change the flags of different tiles at once.
+  * 
+  *  Version 1.01
+  *************************************************************************/
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+public class CompactTileStorage implements TileStorage {
+  public static final int MAX_IMAGES = 65535; // image ids are 16 bits, and id 0 means unpopulated
+  
+  // Flag bits within each tile's 4 bits.
+  private static final int HAS_PLAYER = 1;
+  private static final int HAS_ENEMY = 2;
+  private static final int PASSABLE = 4;
+  
+  private static final VarHandle FLAG_WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+  
+  private int width;
+  private int height;
+  private short[] imageIds; // palette index + 1 of each tile's image, 0 if unpopulated
+  private long[] flags; // 16 tiles per long, 4 bits each
+  private ArrayList<String> palette; // every distinct image name, in order of first use
+  private HashMap<String, Integer> paletteIds; // image name to palette index
+  
+  /**
+   * Creates a new CompactTileStorage of unpopulated tiles.
+   * @param width, the number of tiles along the width
+   * @param height, the number of tiles along the height
+   */
+  public CompactTileStorage(int width, int height) {
+    if(width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE - 16) {
+      throw new IllegalArgumentException("Board dimensions must be positive and hold at most 2^31 tiles");
+    }
+    this.width = width;
+    this.height = height;
+    int tiles = width * height;
+    this.imageIds = new short[tiles];
+    this.flags = new long[(tiles + 15) / 16];
+    this.palette = new ArrayList<String>();
+    this.paletteIds = new HashMap<String, Integer>();
+  }
+  
+  public int getWidth() {
+    return this.width;
+  }
+  
+  public int getHeight() {
+    return this.height;
+  }
+  
+  /**
+   * Retrieves the number of distinct images used by the storage.
+   */
+  public int getPaletteSize() {
+    return this.palette.size();
+  }
+  
+  /**
+   * Retrieves the image name with the inputted palette index.
+   * @param id, the palette index
+   */
+  public String getPaletteImage(int id) {
+    return this.palette.get(id);
+  }
+  
+  /**
+   * Retrieves the palette index of the image of the tile at the inputted location,
+   * or -1 if the tile is unpopulated.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public int getImageId(int i, int j) {
+    return (this.imageIds[this.index(i, j)] & 0xFFFF) - 1;
+  }
+  
+  public boolean isPopulated(int i, int j) {
+    return this.imageIds[this.index(i, j)] != 0;
+  }
+  
+  public Tile getTile(int i, int j) {
+    this.index(i, j);
+    return new TileView(this, i, j);
+  }
+  
+  public String getImage(int i, int j) {
+    int id = this.imageIds[this.index(i, j)] & 0xFFFF;
+    return id == 0 ? null : this.palette.get(id - 1);
+  }
+  
+  public void setImage(int i, int j, String image) {
+    this.imageIds[this.index(i, j)] = (short) (this.intern(image) + 1);
+  }
+  
+  public boolean getHasPlayer(int i, int j) {
+    return (this.getFlags(this.index(i, j)) & HAS_PLAYER) != 0;
+  }
+  
+  public void setHasPlayer(int i, int j, boolean hasPlayer) {
+    this.setFlag(this.index(i, j), HAS_PLAYER, hasPlayer);
+  }
+  
+  public boolean getHasEnemy(int i, int j) {
+    return (this.getFlags(this.index(i, j)) & HAS_ENEMY) != 0;
+  }
+  
+  public void setHasEnemy(int i, int j, boolean hasEnemy) {
+    this.setFlag(this.index(i, j), HAS_ENEMY, hasEnemy);
+  }
+  
+  public boolean getPassable(int i, int j) {
+    return (this.getFlags(this.index(i, j)) & PASSABLE) != 0;
+  }
+  
+  public void setPassable(int i, int j, boolean passable) {
+    this.setFlag(this.index(i, j), PASSABLE, passable);
+  }
+  
+  public void populate(int i, int j, String image, boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    int index = this.index(i, j);
+    this.imageIds[index] = (short) (this.intern(image) + 1);
+    this.setFlags(index, packFlags(hasPlayer, hasEnemy, passable));
+  }
+  
+  public void populateAll(String image, boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    Arrays.fill(this.imageIds, (short) (this.intern(image) + 1));
+    // Repeat the 4 flag bits across all 16 positions of each long.
+    Arrays.fill(this.flags, packFlags(hasPlayer, hasEnemy, passable) * 0x1111111111111111L);
+  }
+  
+  /**
+   * Adds every image name in the palette to the inputted set, without reading any tiles.
+   */
+  public void collectImages(Set<String> images) {
+    images.addAll(this.palette);
+  }
+  
+  /**
+   * Packs the three tile flags into their 4-bit form.
+   */
+  public static int packFlags(boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    return (hasPlayer ? HAS_PLAYER : 0) | (hasEnemy ? HAS_ENEMY : 0) | (passable ? PASSABLE : 0);
+  }
+  
+  // Position of a tile within the arrays, checking the tile is on the board.
+  private int index(int i, int j) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the board");
+    }
+    return i * this.height + j;
+  }
+  
+  // Palette index of an image name, adding it to the palette on first use.
+  private int intern(String image) {
+    Integer id = this.paletteIds.get(image);
+    if(id == null) {
+      if(this.palette.size() >= MAX_IMAGES) {
+        throw new RuntimeException("A compact board cannot use more than " + MAX_IMAGES + " images");
+      }
+      id = this.palette.size();
+      this.palette.add(image);
+      this.paletteIds.put(image, id);
+    }
+    return id;
+  }
+  
+  private int getFlags(int index) {
+    return (int) (this.flags[index >>> 4] >>> ((index & 15) << 2)) & 0xF;
+  }
+  
+  private void setFlags(int index, int value) {
+    int shift = (index & 15) << 2;
+    this.updateFlags(index, ~(0xFL << shift), (long) value << shift);
+  }
+  
+  private void setFlag(int index, int flag, boolean set) {
+    int shift = (index & 15) << 2;
+    this.updateFlags(index, set ? -1L : ~((long) flag << shift), set ? (long) flag << shift : 0L);
+  }
+  
+  // Replaces a tile's long with (long & keep) | add, retrying if another tile of it changes meanwhile.
+  private void updateFlags(int index, long keep, long add) {
+    int word = index >>> 4;
+    long bits;
+    do {
+      bits = (long) FLAG_WORDS.getVolatile(this.flags, word);
+    } while(!FLAG_WORDS.compareAndSet(this.flags, word, bits, (bits & keep) | add));
+  }
+}
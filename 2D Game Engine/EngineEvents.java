@@ -0,0 +1,157 @@
+/*************************************************************************
+  *  Compilation:  javac EngineEvents.java
+  *  Execution:    java EngineEvents
+  *
+  *  Java Flight Recorder events for the engine's hot paths: frames, each
+  *  pass that draws tiles, image loads, board population and movement.
+  *  A recording (java -XX:StartFlightRecording, or jcmd JFR.start) then
+  *  shows which board, image or player position a slow frame was spent
+  *  on, next to the JVM's own events. Each event is timed from begin to
+  *  end and only fills in its fields if it is going to be committed, so
+  *  with no recording running they cost next to nothing.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+public class EngineEvents {
+  // Only holds the event types.
+  private EngineEvents() { }
+
+  /**
+   * One Game.drawPlayerDisplay call.
+   */
+  @Name("engine.Frame")
+  @Label("Frame")
+  @Category({"2D Game Engine", "Rendering"})
+  @Description("The display drawn around a player")
+  @StackTrace(false)
+  public static class FrameEvent extends Event {
+    @Label("Board Id")
+    public int boardId;
+
+    @Label("Player First Tile Index")
+    public int playerI;
+
+    @Label("Player Second Tile Index")
+    public int playerJ;
+
+    @Label("Tiles Drawn")
+    public long tiles;
+
+    @Label("Presents")
+    @Description("Times the offscreen buffer was copied on screen")
+    public long presents;
+  }
+
+  /**
+   * One pass of ViewportRenderer drawing tiles onto the canvas or into its cached tile layer.
+   */
+  @Name("engine.TilePass")
+  @Label("Tile Pass")
+  @Category({"2D Game Engine", "Rendering"})
+  @Description("Tiles of a display drawn at once: in full, by scrolling, or into the camera's cached layer")
+  @StackTrace(false)
+  public static class TilePassEvent extends Event {
+    @Label("Kind")
+    @Description("full, layered, scroll, layer or layerScroll")
+    public String kind;
+
+    @Label("Board Id")
+    public int boardId;
+
+    @Label("Center First Tile Index")
+    public int centerI;
+
+    @Label("Center Second Tile Index")
+    public int centerJ;
+
+    @Label("Tiles Drawn")
+    public long tiles;
+  }
+
+  /**
+   * One image read and decoded by PennDraw, because it was not in the image cache.
+   */
+  @Name("engine.ImageLoad")
+  @Label("Image Load")
+  @Category({"2D Game Engine", "Assets"})
+  @Description("An image read from disk and decoded")
+  public static class ImageLoadEvent extends Event {
+    @Label("Image")
+    public String image;
+
+    @Label("Width")
+    public int width;
+
+    @Label("Height")
+    public int height;
+
+    @Label("Decoded Size")
+    @DataAmount
+    public long bytes;
+  }
+
+  /**
+   * One TileBoard.populateEntireBoard call.
+   */
+  @Name("engine.BoardPopulate")
+  @Label("Board Populate")
+  @Category({"2D Game Engine", "World"})
+  @Description("Every tile of a board filled with one image")
+  public static class BoardPopulateEvent extends Event {
+    @Label("Board Id")
+    public int boardId;
+
+    @Label("Image")
+    public String image;
+
+    @Label("Width")
+    @Description("Tiles along the first index")
+    public int width;
+
+    @Label("Height")
+    @Description("Tiles along the second index")
+    public int height;
+  }
+
+  /**
+   * One move of a Player through a Game, including any redraw it causes.
+   */
+  @Name("engine.Move")
+  @Label("Move")
+  @Category({"2D Game Engine", "World"})
+  @Description("A player moving, or trying to move, one tile")
+  @StackTrace(false)
+  public static class MoveEvent extends Event {
+    @Label("Board Id")
+    public int boardId;
+
+    @Label("Direction")
+    @Description("up, right, down or left")
+    public String direction;
+
+    @Label("From First Tile Index")
+    public int fromI;
+
+    @Label("From Second Tile Index")
+    public int fromJ;
+
+    @Label("To First Tile Index")
+    public int toI;
+
+    @Label("To Second Tile Index")
+    public int toJ;
+
+    @Label("Moved")
+    @Description("False if the move was blocked")
+    public boolean moved;
+  }
+}
@@ -0,0 +1,170 @@
+/*************************************************************************
+  *  Compilation:  javac Entity.java
+  *  Execution:    java Entity
+  *
+  *  Anything that stands on a TileBoard's tiles and can move between them:
+  *  enemies, non-player characters, items. An Entity occupies its tile the
+  *  same way a Player does, and is listed in its board's EntityIndex so it
+  *  can be found by location without scanning the board.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+public class Entity {
+  // Kinds of entity. Any other number may be used for kinds of a game's own.
+  public static final int PLAYER = 0;
+  public static final int ENEMY = 1;
+  public static final int ITEM = 2;
+
+  private int kind;
+  private String image;
+  private TileBoard board; // the board the entity is on, or null if it was not placed on one
+  private int id; // id within the board's EntityIndex, or -1 if not in one
+  private int firstTileIndex;
+  private int secondTileIndex;
+
+  /**
+   * Creates a new Entity and places it on a TileBoard: its tile becomes unpassable, and
+   * is marked as having an enemy (for ENEMY) or a player (for PLAYER).
+   * @param kind, the kind of entity
+   * @param image, the name of the image to be drawn at the entity's location
+   * @param board, the TileBoard the entity is on
+   * @param firstTileIndex, the first index of the tile the entity is placed on
+   * @param secondTileIndex, the second index of the tile the entity is placed on
+   */
+  public Entity(int kind, String image, TileBoard board, int firstTileIndex, int secondTileIndex) {
+    this(kind, image);
+    this.board = board;
+    board.getEntities().add(this, firstTileIndex, secondTileIndex);
+    board.occupyTile(firstTileIndex, secondTileIndex, kind);
+  }
+
+  /**
+   * Creates a new Entity that is not on any board, to be added to an EntityIndex directly.
+   * @param kind, the kind of entity
+   * @param image, the name of the image to be drawn at the entity's location
+   */
+  public Entity(int kind, String image) {
+    this.kind = kind;
+    this.image = image;
+    this.id = -1;
+  }
+
+  /**
+   * Retrieves the given entity's kind.
+   */
+  public int getKind() {
+    return this.kind;
+  }
+
+  /**
+   * Retrieves the given entity's image name.
+   */
+  public String getImage() {
+    return this.image;
+  }
+
+  /**
+   * Sets the given entity's image name.
+   * @param image, the name of the new image
+   */
+  public void setImage(String image) {
+    this.image = image;
+  }
+
+  /**
+   * Retrieves the given entity's TileBoard, or null if it was not placed on one.
+   */
+  public TileBoard getBoard() {
+    return this.board;
+  }
+
+  /**
+   * Retrieves the given entity's id within its EntityIndex, or -1 if it is not in one.
+   */
+  public int getId() {
+    return this.id;
+  }
+
+  /**
+   * Retrieves the first index of the given entity's location.
+   */
+  public int getFirstTileIndex() {
+    return this.firstTileIndex;
+  }
+
+  /**
+   * Retrieves the second index of the given entity's location.
+   */
+  public int getSecondTileIndex() {
+    return this.secondTileIndex;
+  }
+
+  /**
+   * Moves the entity 1 space up on its TileBoard, if possible.
+   * @return true if the entity moved
+   */
+  public boolean moveUp() {
+    return this.moveTo(this.firstTileIndex, this.secondTileIndex + 1);
+  }
+
+  /**
+   * Moves the entity 1 space down on its TileBoard, if possible.
+   * @return true if the entity moved
+   */
+  public boolean moveDown() {
+    return this.moveTo(this.firstTileIndex, this.secondTileIndex - 1);
+  }
+
+  /**
+   * Moves the entity 1 space to the left on its TileBoard, if possible.
+   * @return true if the entity moved
+   */
+  public boolean moveLeft() {
+    return this.moveTo(this.firstTileIndex - 1, this.secondTileIndex);
+  }
+
+  /**
+   * Moves the entity 1 space to the right on its TileBoard, if possible.
+   * @return true if the entity moved
+   */
+  public boolean moveRight() {
+    return this.moveTo(this.firstTileIndex + 1, this.secondTileIndex);
+  }
+
+  /**
+   * Moves the entity to any tile of its TileBoard, if that tile is passable. The tile is
+   * claimed atomically, so entities moved on different threads never end up on one tile;
+   * the board's EntityIndex is not locked, though, so such threads must move entities in
+   * different cells of it, as an EntityScheduler does.
+   * @param firstTileIndex, the first index of the new tile
+   * @param secondTileIndex, the second index of the new tile
+   * @return true if the entity moved
+   */
+  public boolean moveTo(int firstTileIndex, int secondTileIndex) {
+    // If the tile goes beyond the board's bounds or is unpassable (has player/enemy/wall), do nothing.
+    if(firstTileIndex < 0 || firstTileIndex >= this.board.getNumTilesWidth() || secondTileIndex < 0 ||
+       secondTileIndex >= this.board.getNumTilesHeight() ||
+       !this.board.claimTile(firstTileIndex, secondTileIndex, this.kind)) {
+      return false;
+    }
+    this.board.releaseTile(this.firstTileIndex, this.secondTileIndex, this.kind);
+    this.board.getEntities().move(this, firstTileIndex, secondTileIndex);
+    return true;
+  }
+
+  /**
+   * Takes the entity off its TileBoard, freeing its tile.
+   */
+  public void remove() {
+    this.board.releaseTile(this.firstTileIndex, this.secondTileIndex, this.kind);
+    this.board.getEntities().remove(this);
+  }
+
+  // Called by EntityIndex whenever the entity is added, moved or removed.
+  void indexed(int id, int firstTileIndex, int secondTileIndex) {
+    this.id = id;
+    this.firstTileIndex = firstTileIndex;
+    this.secondTileIndex = secondTileIndex;
+  }
+}
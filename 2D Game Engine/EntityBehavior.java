@@ -0,0 +1,28 @@
+/*************************************************************************
+  *  Compilation:  javac EntityBehavior.java
+  *  Execution:    java EntityBehavior
+  *
+  *  Decides where an Entity moves each tick of an EntityScheduler. The
+  *  decisions of every entity are made in parallel before any of them
+  *  moves, so a behavior may read the board but must not change it.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+public interface EntityBehavior {
+  // Moves, numbered like a Player's facing value.
+  int STAY = -1;
+  int UP = 0;
+  int RIGHT = 1;
+  int DOWN = 2;
+  int LEFT = 3;
+
+  /**
+   * Decides which way an entity tries to move this tick. To keep simulations
+   * repeatable, the answer should depend only on the board, the entity and the tick.
+   * @param entity, the entity in question
+   * @param tick, the number of ticks run before this one
+   * @return STAY, UP, RIGHT, DOWN or LEFT
+   */
+  int nextMove(Entity entity, long tick);
+}
@@ -0,0 +1,326 @@
+/*************************************************************************
+  *  Compilation:  javac EntityIndex.java
+  *  Execution:    java EntityIndex
+  *
+  *  Finds the Entities on a TileBoard by location without scanning its
+  *  tiles. The board is divided into a uniform grid of square cells, and
+  *  each cell keeps a linked list of the entities in it. The lists are
+  *  threaded through int arrays indexed by entity id, so moving an entity
+  *  is a constant time unlink and relink, and queries only visit the cells
+  *  that overlap the area asked about.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EntityIndex {
+  public static final int ANY_KIND = -1; // matches entities of every kind in queries
+  public static final int MAX_CELLS = 1 << 20; // cells get larger on huge boards to stay under this many
+
+  private static final int NONE = -1;
+
+  private int width;
+  private int height;
+  private int cellShift; // log2 of the number of tiles along each side of a cell
+  private int cellsHigh; // number of cells along the height of the board
+  private int[] heads; // first entity id in each cell, or NONE
+
+  // Per entity id. Ids of removed entities are reused.
+  private Entity[] entities;
+  private int[] xs; // horizontal tile index
+  private int[] ys; // vertical tile index
+  private int[] kinds;
+  private int[] cells; // cell the entity is listed in
+  private int[] next; // next entity id in the same cell, or NONE
+  private int[] previous; // previous entity id in the same cell, or NONE
+  private int[] freeIds; // stack of ids free for reuse
+  private int freeCount;
+  private int idCount; // ids handed out so far, including freed ones
+  private int size;
+
+  /**
+   * Creates a new, empty EntityIndex for a width by height board.
+   * @param width, the number of tiles along the width of the board
+   * @param height, the number of tiles along the height of the board
+   */
+  public EntityIndex(int width, int height) {
+    if(width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Board dimensions must be positive");
+    }
+    this.width = width;
+    this.height = height;
+    // Cells of 8x8 tiles, or larger if the board would otherwise need more than MAX_CELLS of them.
+    this.cellShift = 3;
+    while((long) cellCount(width, this.cellShift) * cellCount(height, this.cellShift) > MAX_CELLS) {
+      this.cellShift++;
+    }
+    this.cellsHigh = cellCount(height, this.cellShift);
+    this.heads = new int[cellCount(width, this.cellShift) * this.cellsHigh];
+    Arrays.fill(this.heads, NONE);
+
+    int capacity = 16;
+    this.entities = new Entity[capacity];
+    this.xs = new int[capacity];
+    this.ys = new int[capacity];
+    this.kinds = new int[capacity];
+    this.cells = new int[capacity];
+    this.next = new int[capacity];
+    this.previous = new int[capacity];
+    this.freeIds = new int[capacity];
+  }
+
+  /**
+   * Retrieves the number of tiles along each side of a cell.
+   */
+  public int getCellSize() {
+    return 1 << this.cellShift;
+  }
+
+  /**
+   * Retrieves the number of entities in the index.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Adds an entity to the index at the inputted location, giving it an id.
+   * @param entity, the entity to be added; it must not be in any index yet
+   * @param i, the horizontal index of the entity's tile
+   * @param j, the vertical index of the entity's tile
+   */
+  public void add(Entity entity, int i, int j) {
+    if(entity.getId() != NONE) {
+      throw new IllegalArgumentException("Entity is already in an index");
+    }
+    this.check(i, j);
+    int id;
+    if(this.freeCount > 0) {
+      id = this.freeIds[--this.freeCount];
+    }
+    else {
+      if(this.idCount == this.entities.length) {
+        this.grow();
+      }
+      id = this.idCount++;
+    }
+    this.entities[id] = entity;
+    this.kinds[id] = entity.getKind();
+    this.xs[id] = i;
+    this.ys[id] = j;
+    this.link(id, this.cell(i, j));
+    entity.indexed(id, i, j);
+    this.size++;
+  }
+
+  /**
+   * Removes an entity from the index. Its id may be given to another entity.
+   * @param entity, the entity to be removed
+   */
+  public void remove(Entity entity) {
+    int id = this.idOf(entity);
+    this.unlink(id);
+    this.entities[id] = null;
+    this.freeIds[this.freeCount++] = id;
+    entity.indexed(NONE, entity.getFirstTileIndex(), entity.getSecondTileIndex());
+    this.size--;
+  }
+
+  /**
+   * Moves an entity to the inputted location. Takes constant time, however far it moves.
+   * @param entity, the entity to be moved
+   * @param i, the horizontal index of the new tile
+   * @param j, the vertical index of the new tile
+   */
+  public void move(Entity entity, int i, int j) {
+    int id = this.idOf(entity);
+    this.check(i, j);
+    int cell = this.cell(i, j);
+    if(cell != this.cells[id]) {
+      this.unlink(id);
+      this.link(id, cell);
+    }
+    this.xs[id] = i;
+    this.ys[id] = j;
+    entity.indexed(id, i, j);
+  }
+
+  /**
+   * Retrieves every entity on the tile at the inputted location.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public List<Entity> getEntitiesAt(int i, int j) {
+    List<Entity> found = new ArrayList<Entity>();
+    this.check(i, j);
+    for(int id = this.heads[this.cell(i, j)]; id != NONE; id = this.next[id]) {
+      if(this.xs[id] == i && this.ys[id] == j) {
+        found.add(this.entities[id]);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Retrieves every entity of a kind within a radius of a tile.
+   * @param i, the horizontal index of the tile at the center
+   * @param j, the vertical index of the tile at the center
+   * @param radius, the largest straight-line distance, in tiles, of an entity found
+   * @param kind, the kind of entity found, or ANY_KIND
+   */
+  public List<Entity> getEntitiesWithin(int i, int j, int radius, int kind) {
+    List<Entity> found = new ArrayList<Entity>();
+    this.collectWithin(i, j, radius, kind, found);
+    return found;
+  }
+
+  /**
+   * Adds every entity of a kind within a radius of a tile to a list, so that queries
+   * made every tick can reuse one list.
+   * @param i, the horizontal index of the tile at the center
+   * @param j, the vertical index of the tile at the center
+   * @param radius, the largest straight-line distance, in tiles, of an entity found
+   * @param kind, the kind of entity found, or ANY_KIND
+   * @param found, the list entities are added to
+   * @return the number of entities added
+   */
+  public int collectWithin(int i, int j, int radius, int kind, List<Entity> found) {
+    if(radius < 0) {
+      return 0;
+    }
+    long limit = (long) radius * radius;
+    int fromX = Math.max(i - radius, 0) >> this.cellShift;
+    int toX = Math.min(i + radius, this.width - 1) >> this.cellShift;
+    int fromY = Math.max(j - radius, 0) >> this.cellShift;
+    int toY = Math.min(j + radius, this.height - 1) >> this.cellShift;
+    int count = 0;
+    for(int cellX = fromX; cellX <= toX; cellX++) {
+      for(int cellY = fromY; cellY <= toY; cellY++) {
+        for(int id = this.heads[cellX * this.cellsHigh + cellY]; id != NONE; id = this.next[id]) {
+          if((kind == ANY_KIND || this.kinds[id] == kind) && distanceSquared(this.xs[id] - i, this.ys[id] - j) <= limit) {
+            found.add(this.entities[id]);
+            count++;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Retrieves the entity of a kind closest to a tile, searching outward cell by cell.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param maxRadius, the largest straight-line distance, in tiles, searched
+   * @param kind, the kind of entity found, or ANY_KIND
+   * @param exclude, an entity never returned (e.g. the one asking), or null
+   * @return the closest entity, or null if there is none within maxRadius
+   */
+  public Entity nearest(int i, int j, int maxRadius, int kind, Entity exclude) {
+    int cellSize = 1 << this.cellShift;
+    int centerX = i >> this.cellShift;
+    int centerY = j >> this.cellShift;
+    int cellsWide = this.heads.length / this.cellsHigh;
+    long limit = (long) maxRadius * maxRadius;
+    long best = Long.MAX_VALUE;
+    int bestId = NONE;
+    for(int ring = 0; ; ring++) {
+      // Everything in this ring of cells and beyond is at least this far away.
+      long nearestPossible = ring == 0 ? 0 : (long) (ring - 1) * cellSize + 1;
+      if(nearestPossible * nearestPossible > Math.min(best, limit)) {
+        break;
+      }
+      if(centerX - ring < 0 && centerY - ring < 0 && centerX + ring >= cellsWide && centerY + ring >= this.cellsHigh) {
+        break;
+      }
+      for(int cellX = centerX - ring; cellX <= centerX + ring; cellX++) {
+        if(cellX < 0 || cellX >= cellsWide) {
+          continue;
+        }
+        // Only the edge of the ring: every cell for its first and last column, two cells otherwise.
+        int step = cellX == centerX - ring || cellX == centerX + ring ? 1 : Math.max(2 * ring, 1);
+        for(int cellY = centerY - ring; cellY <= centerY + ring; cellY += step) {
+          if(cellY < 0 || cellY >= this.cellsHigh) {
+            continue;
+          }
+          for(int id = this.heads[cellX * this.cellsHigh + cellY]; id != NONE; id = this.next[id]) {
+            if((kind == ANY_KIND || this.kinds[id] == kind) && this.entities[id] != exclude) {
+              long distance = distanceSquared(this.xs[id] - i, this.ys[id] - j);
+              if(distance < best || (distance == best && id < bestId)) {
+                best = distance;
+                bestId = id;
+              }
+            }
+          }
+        }
+      }
+    }
+    return bestId == NONE || best > limit ? null : this.entities[bestId];
+  }
+
+  private static long distanceSquared(int dx, int dy) {
+    return (long) dx * dx + (long) dy * dy;
+  }
+
+  private static int cellCount(int tiles, int shift) {
+    return (int) (((long) tiles + (1 << shift) - 1) >> shift);
+  }
+
+  private int cell(int i, int j) {
+    return (i >> this.cellShift) * this.cellsHigh + (j >> this.cellShift);
+  }
+
+  private int idOf(Entity entity) {
+    int id = entity.getId();
+    if(id < 0 || id >= this.idCount || this.entities[id] != entity) {
+      throw new IllegalArgumentException("Entity is not in this index");
+    }
+    return id;
+  }
+
+  private void check(int i, int j) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the board");
+    }
+  }
+
+  // Puts an entity at the front of a cell's list.
+  private void link(int id, int cell) {
+    int head = this.heads[cell];
+    this.cells[id] = cell;
+    this.previous[id] = NONE;
+    this.next[id] = head;
+    if(head != NONE) {
+      this.previous[head] = id;
+    }
+    this.heads[cell] = id;
+  }
+
+  // Takes an entity out of its cell's list.
+  private void unlink(int id) {
+    if(this.previous[id] != NONE) {
+      this.next[this.previous[id]] = this.next[id];
+    }
+    else {
+      this.heads[this.cells[id]] = this.next[id];
+    }
+    if(this.next[id] != NONE) {
+      this.previous[this.next[id]] = this.previous[id];
+    }
+  }
+
+  private void grow() {
+    int capacity = this.entities.length * 2;
+    this.entities = Arrays.copyOf(this.entities, capacity);
+    this.xs = Arrays.copyOf(this.xs, capacity);
+    this.ys = Arrays.copyOf(this.ys, capacity);
+    this.kinds = Arrays.copyOf(this.kinds, capacity);
+    this.cells = Arrays.copyOf(this.cells, capacity);
+    this.next = Arrays.copyOf(this.next, capacity);
+    this.previous = Arrays.copyOf(this.previous, capacity);
+    this.freeIds = Arrays.copyOf(this.freeIds, capacity);
+  }
+}
@@ -0,0 +1,311 @@
+/*************************************************************************
+  *  Compilation:  javac EntityScheduler.java
+  *  Execution:    java EntityScheduler
+  *
+  *  Moves many Entities on one TileBoard every tick, in parallel. A tick
+  *  has three steps:
+  *    1. every entity's EntityBehavior decides its move, in parallel, while
+  *       nothing on the board changes;
+  *    2. the board is divided into square regions, and moves that stay
+  *       within a region are made region by region in parallel. Tiles are
+  *       claimed atomically, and each region is only ever touched by one
+  *       worker, so the board's EntityIndex needs no locking either;
+  *    3. moves that cross into another region are made one at a time.
+  *  Within each step, moves are made in the order entities were added, and
+  *  a move onto a tile that is no longer passable is blocked. The outcome
+  *  of a tick is therefore the same however many workers run it.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+public class EntityScheduler {
+  public static final int MIN_REGION_SIZE = 64; // tiles along each side of a region, at least
+
+  private static final int BATCH = 1024; // decisions or moves a task makes itself rather than splitting
+
+  private TileBoard board;
+  private ForkJoinPool pool; // runs the parallel steps, or null to run every step on the calling thread
+  private int regionSize; // tiles along each side of a region
+  private long regionsHigh; // number of regions along the height of the board
+
+  private ArrayList<Entity> entities; // in the order they were added
+  private ArrayList<EntityBehavior> behaviors; // behavior of the entity at the same position
+
+  private long ticks;
+  private long moves; // moves made
+  private long blocked; // moves not made because the tile was taken or off the board
+  private long crossRegionMoves; // moves made in the serial step
+
+  /**
+   * Creates a new EntityScheduler that runs ticks on the common ForkJoinPool.
+   * @param board, the board whose entities are moved
+   */
+  public EntityScheduler(TileBoard board) {
+    this(board, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a new EntityScheduler.
+   * @param board, the board whose entities are moved
+   * @param pool, the pool ticks run on, or null to run them on the calling thread only
+   */
+  public EntityScheduler(TileBoard board, ForkJoinPool pool) {
+    this.board = board;
+    this.pool = pool;
+    // Regions line up with the cells of the entity index and the chunks of tile storages, so no
+    // list or packed word is ever shared by two regions.
+    this.regionSize = Math.max(MIN_REGION_SIZE, board.getEntities().getCellSize());
+    this.regionsHigh = (board.getNumTilesHeight() + this.regionSize - 1) / this.regionSize;
+    this.entities = new ArrayList<Entity>();
+    this.behaviors = new ArrayList<EntityBehavior>();
+  }
+
+  /**
+   * Adds an entity to be moved every tick.
+   * @param entity, an entity placed on this scheduler's board
+   * @param behavior, decides the entity's moves
+   */
+  public void add(Entity entity, EntityBehavior behavior) {
+    if(entity.getBoard() != this.board) {
+      throw new IllegalArgumentException("Entity is not on this scheduler's board");
+    }
+    this.entities.add(entity);
+    this.behaviors.add(behavior);
+  }
+
+  /**
+   * Stops moving an entity. The entity stays on the board.
+   * @param entity, the entity in question
+   */
+  public void remove(Entity entity) {
+    int position = this.entities.indexOf(entity);
+    if(position >= 0) {
+      this.entities.remove(position);
+      this.behaviors.remove(position);
+    }
+  }
+
+  /**
+   * Retrieves the number of entities moved every tick.
+   */
+  public int size() {
+    return this.entities.size();
+  }
+
+  /**
+   * Retrieves the number of tiles along each side of a region.
+   */
+  public int getRegionSize() {
+    return this.regionSize;
+  }
+
+  /**
+   * Decides and makes one move for every entity.
+   */
+  public void tick() {
+    int count = this.entities.size();
+    Entity[] entities = this.entities.toArray(new Entity[count]);
+    EntityBehavior[] behaviors = this.behaviors.toArray(new EntityBehavior[count]);
+    int[] targetI = new int[count];
+    int[] targetJ = new int[count];
+
+    // 1. Decide, against a board that does not change until every entity has decided.
+    this.run(new Decide(entities, behaviors, this.ticks, targetI, targetJ, 0, count));
+
+    // Sort the moves that stay in one region by region, keeping the order entities were added in.
+    long[] local = new long[count];
+    int localCount = 0;
+    int[] crossing = new int[count];
+    int crossingCount = 0;
+    for(int k = 0; k < count; k++) {
+      int i = entities[k].getFirstTileIndex();
+      int j = entities[k].getSecondTileIndex();
+      if(targetI[k] == i && targetJ[k] == j) {
+        continue;
+      }
+      if(!this.isOnBoard(targetI[k], targetJ[k])) {
+        this.blocked++;
+        continue;
+      }
+      long region = this.region(i, j);
+      if(region == this.region(targetI[k], targetJ[k])) {
+        local[localCount++] = region * count + k;
+      }
+      else {
+        crossing[crossingCount++] = k;
+      }
+    }
+    Arrays.sort(local, 0, localCount);
+
+    // 2. Make the moves within each region, the regions in parallel.
+    int runs = 0;
+    int[] runStarts = new int[localCount + 1];
+    for(int m = 0; m < localCount; m++) {
+      if(m == 0 || local[m] / count != local[m - 1] / count) {
+        runStarts[runs++] = m;
+      }
+    }
+    runStarts[runs] = localCount;
+    long[] made = new long[Math.max(runs, 1)];
+    this.run(new Regions(entities, targetI, targetJ, local, count, runStarts, made, 0, runs));
+    long localMoves = 0;
+    for(int r = 0; r < runs; r++) {
+      localMoves += made[r];
+    }
+    this.moves += localMoves;
+    this.blocked += localCount - localMoves;
+
+    // 3. Make the moves between regions, one at a time.
+    for(int m = 0; m < crossingCount; m++) {
+      int k = crossing[m];
+      if(entities[k].moveTo(targetI[k], targetJ[k])) {
+        this.moves++;
+        this.crossRegionMoves++;
+      }
+      else {
+        this.blocked++;
+      }
+    }
+    this.ticks++;
+  }
+
+  /**
+   * Retrieves the number of ticks run.
+   */
+  public long getTickCount() {
+    return this.ticks;
+  }
+
+  /**
+   * Retrieves the number of moves made.
+   */
+  public long getMoveCount() {
+    return this.moves;
+  }
+
+  /**
+   * Retrieves the number of moves not made because the tile was taken, unpassable or
+   * off the board.
+   */
+  public long getBlockedCount() {
+    return this.blocked;
+  }
+
+  /**
+   * Retrieves the number of moves made from one region into another.
+   */
+  public long getCrossRegionMoveCount() {
+    return this.crossRegionMoves;
+  }
+
+  private void run(RecursiveAction task) {
+    if(this.pool == null) {
+      task.invoke();
+    }
+    else {
+      this.pool.invoke(task);
+    }
+  }
+
+  private boolean isOnBoard(int i, int j) {
+    return i >= 0 && i < this.board.getNumTilesWidth() && j >= 0 && j < this.board.getNumTilesHeight();
+  }
+
+  private long region(int i, int j) {
+    return (i / this.regionSize) * this.regionsHigh + (j / this.regionSize);
+  }
+
+  // Decides the moves of the entities in [from, to), splitting the range across workers.
+  private static class Decide extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private Entity[] entities;
+    private EntityBehavior[] behaviors;
+    private long tick;
+    private int[] targetI;
+    private int[] targetJ;
+    private int from;
+    private int to;
+
+    Decide(Entity[] entities, EntityBehavior[] behaviors, long tick, int[] targetI, int[] targetJ, int from, int to) {
+      this.entities = entities;
+      this.behaviors = behaviors;
+      this.tick = tick;
+      this.targetI = targetI;
+      this.targetJ = targetJ;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      // Only split when running in a pool; otherwise forking would borrow the common pool.
+      if(this.to - this.from > BATCH && ForkJoinTask.inForkJoinPool()) {
+        int middle = (this.from + this.to) >>> 1;
+        invokeAll(new Decide(this.entities, this.behaviors, this.tick, this.targetI, this.targetJ, this.from, middle),
+                  new Decide(this.entities, this.behaviors, this.tick, this.targetI, this.targetJ, middle, this.to));
+        return;
+      }
+      for(int k = this.from; k < this.to; k++) {
+        int i = this.entities[k].getFirstTileIndex();
+        int j = this.entities[k].getSecondTileIndex();
+        int move = this.behaviors[k].nextMove(this.entities[k], this.tick);
+        this.targetI[k] = move == EntityBehavior.RIGHT ? i + 1 : move == EntityBehavior.LEFT ? i - 1 : i;
+        this.targetJ[k] = move == EntityBehavior.UP ? j + 1 : move == EntityBehavior.DOWN ? j - 1 : j;
+      }
+    }
+  }
+
+  // Makes the moves of the regions in [first, last), each region on one worker.
+  private static class Regions extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private Entity[] entities;
+    private int[] targetI;
+    private int[] targetJ;
+    private long[] moves; // region * count + entity position, sorted
+    private int count;
+    private int[] runStarts; // where each region's moves start within moves
+    private long[] made; // moves made in each region
+    private int first;
+    private int last;
+
+    Regions(Entity[] entities, int[] targetI, int[] targetJ, long[] moves, int count, int[] runStarts,
+            long[] made, int first, int last) {
+      this.entities = entities;
+      this.targetI = targetI;
+      this.targetJ = targetJ;
+      this.moves = moves;
+      this.count = count;
+      this.runStarts = runStarts;
+      this.made = made;
+      this.first = first;
+      this.last = last;
+    }
+
+    protected void compute() {
+      if(this.last - this.first > 1 && this.runStarts[this.last] - this.runStarts[this.first] > BATCH &&
+         ForkJoinTask.inForkJoinPool()) {
+        int middle = (this.first + this.last) >>> 1;
+        invokeAll(new Regions(this.entities, this.targetI, this.targetJ, this.moves, this.count, this.runStarts,
+                              this.made, this.first, middle),
+                  new Regions(this.entities, this.targetI, this.targetJ, this.moves, this.count, this.runStarts,
+                              this.made, middle, this.last));
+        return;
+      }
+      for(int r = this.first; r < this.last; r++) {
+        for(int m = this.runStarts[r]; m < this.runStarts[r + 1]; m++) {
+          int k = (int) (this.moves[m] % this.count);
+          if(this.entities[k].moveTo(this.targetI[k], this.targetJ[k])) {
+            this.made[r]++;
+          }
+        }
+      }
+    }
+  }
+}
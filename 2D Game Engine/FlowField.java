@@ -0,0 +1,147 @@
+/*************************************************************************
+  *  Compilation:  javac FlowField.java
+  *  Execution:    java FlowField
+  *
+  *  Routes any number of movers to one goal tile at once. A breadth-first
+  *  search out from the goal records, for every walkable tile, how many
+  *  steps it is from the goal and which way to step to get closer. After
+  *  that, each mover's next move is a single array lookup, however many
+  *  movers there are, so a FlowField can serve as the EntityBehavior of a
+  *  whole crowd. Tiles are walkable as for a Pathfinder. Computing the
+  *  field again for a new goal reuses its arrays.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.Arrays;
+
+public class FlowField implements EntityBehavior {
+  private TileBoard board;
+  private int width;
+  private int height;
+  private int goalI;
+  private int goalJ;
+
+  // Per tile, indexed by i * height + j.
+  private int[] distances; // steps to the goal, or -1 if it cannot be reached
+  private byte[] moves; // the EntityBehavior move one step closer to the goal
+  private int[] queue; // tiles waiting to be searched from, in order of distance
+
+  /**
+   * Creates a new FlowField for a TileBoard, leading to a goal tile.
+   * @param board, the board the movers are on
+   * @param goalI, the horizontal index of the goal tile
+   * @param goalJ, the vertical index of the goal tile
+   */
+  public FlowField(TileBoard board, int goalI, int goalJ) {
+    this.board = board;
+    this.width = board.getNumTilesWidth();
+    this.height = board.getNumTilesHeight();
+    if((long) this.width * this.height > Pathfinder.MAX_TILES) {
+      throw new IllegalArgumentException("Board is too large for a flow field; it has over " + Pathfinder.MAX_TILES + " tiles");
+    }
+    int tiles = this.width * this.height;
+    this.distances = new int[tiles];
+    this.moves = new byte[tiles];
+    this.queue = new int[tiles];
+    this.compute(goalI, goalJ);
+  }
+
+  /**
+   * Leads the field to a new goal tile, or recomputes it after the board's walls change.
+   * The goal tile need not be walkable.
+   * @param goalI, the horizontal index of the goal tile
+   * @param goalJ, the vertical index of the goal tile
+   */
+  public void compute(int goalI, int goalJ) {
+    if(goalI < 0 || goalI >= this.width || goalJ < 0 || goalJ >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + goalI + "][" + goalJ + "] is outside of the board");
+    }
+    this.goalI = goalI;
+    this.goalJ = goalJ;
+    Arrays.fill(this.distances, -1);
+    int goal = goalI * this.height + goalJ;
+    this.distances[goal] = 0;
+    this.moves[goal] = (byte) STAY;
+    this.queue[0] = goal;
+    int head = 0;
+    int tail = 1;
+    while(head < tail) {
+      int tile = this.queue[head++];
+      int i = tile / this.height;
+      int j = tile - i * this.height;
+      int distance = this.distances[tile] + 1;
+      // A neighbour reached from this tile steps back towards it, the opposite way.
+      if(j + 1 < this.height) {
+        tail = this.reach(tile + 1, i, j + 1, distance, DOWN, tail);
+      }
+      if(i + 1 < this.width) {
+        tail = this.reach(tile + this.height, i + 1, j, distance, LEFT, tail);
+      }
+      if(j > 0) {
+        tail = this.reach(tile - 1, i, j - 1, distance, UP, tail);
+      }
+      if(i > 0) {
+        tail = this.reach(tile - this.height, i - 1, j, distance, RIGHT, tail);
+      }
+    }
+  }
+
+  /**
+   * Retrieves the horizontal index of the goal tile.
+   */
+  public int getGoalI() {
+    return this.goalI;
+  }
+
+  /**
+   * Retrieves the vertical index of the goal tile.
+   */
+  public int getGoalJ() {
+    return this.goalJ;
+  }
+
+  /**
+   * Retrieves the number of steps from a tile to the goal.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @return the number of steps, or -1 if the goal cannot be reached from the tile
+   */
+  public int getDistance(int i, int j) {
+    return this.distances[this.index(i, j)];
+  }
+
+  /**
+   * Retrieves the move one step closer to the goal from a tile.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @return EntityBehavior.UP, RIGHT, DOWN or LEFT, or STAY at the goal or where it
+   * cannot be reached
+   */
+  public int getMove(int i, int j) {
+    int tile = this.index(i, j);
+    return this.distances[tile] <= 0 ? STAY : this.moves[tile];
+  }
+
+  public int nextMove(Entity entity, long tick) {
+    return this.getMove(entity.getFirstTileIndex(), entity.getSecondTileIndex());
+  }
+
+  // Reaches a neighbouring tile for the first time, queueing it; returns the new end of the queue.
+  private int reach(int tile, int i, int j, int distance, int move, int tail) {
+    if(this.distances[tile] >= 0 || !Pathfinder.isWalkable(this.board, i, j)) {
+      return tail;
+    }
+    this.distances[tile] = distance;
+    this.moves[tile] = (byte) move;
+    this.queue[tail] = tile;
+    return tail + 1;
+  }
+
+  private int index(int i, int j) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the board");
+    }
+    return i * this.height + j;
+  }
+}
@@ -9,28 +9,60 @@
   *  Version 1.01
   *************************************************************************/
 
-import java.awt.Toolkit;
-import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class Game {
+  public static final long DEFAULT_WARM_UP_MILLIS = 250; // time spent drawing the display before the first frame
+  
   private int width;
   private int height;
+  private RenderTarget target; // where the game is drawn
   private TileBoard[] gameAreas; // given set of game areas (each being a tileboard)
   private int boardCounter; // used for determining if gameArea array is full
+  private ViewportRenderer renderer; // draws the display around a player, scrolling it when possible
+  private boolean frameBatching; // if true, a whole display is shown on screen at once
+  private boolean renderOnMove; // if false, moves only mark the display as changed until render is called
+  private boolean displayDirty; // whether the display has changed since it was last drawn
+  private ChunkPrefetcher prefetcher; // loads chunks ahead of the player, or null
+  private InputQueue.Batch input; // the keyboard events of the current tick
+  private MovementController movement; // moves the player while keys are held, or null to move per key typed
+  private Camera camera; // glides the display after the player between tiles, or null to snap it to the player
+  private boolean gliding; // whether the camera moved during the last two ticks, so every frame differs
+  private Metrics metrics; // where frames and moves are timed and counted
   
   // numGameAreas is how many tileboards this game has
   // Obtains user's screen resolution automatically
   // Ex. for a 1920x1080 display, width = 1920, height = 1080
+  // Without a display (java.awt.headless=true), draws offscreen at 1920x1080 instead
   public Game(int numGameAreas) {
-    Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-    this.width = (int) screenSize.getWidth();
-    this.height = (int) screenSize.getHeight();
-    
-    PennDraw.setCanvasSize(width, height); 
-    PennDraw.setXscale(0, width);
-    PennDraw.setYscale(0, height);
+    this(numGameAreas, GraphicsEnvironment.isHeadless() ? new HeadlessRenderTarget(1920, 1080)
+                                                        : new WindowRenderTarget());
+  }
+  
+  // numGameAreas is how many tileboards this game has
+  // target is where the game is drawn: a window, or an offscreen image
+  public Game(int numGameAreas, RenderTarget target) {
+    this.target = target;
+    this.width = target.getWidth();
+    this.height = target.getHeight();
+    target.attach();
     
     this.gameAreas = new TileBoard[numGameAreas]; 
+    this.renderer = new ViewportRenderer(this, width, height);
+    this.frameBatching = true;
+    this.renderOnMove = true;
+    this.displayDirty = true;
+    this.input = new InputQueue.Batch();
+    this.metrics = Metrics.getDefault();
+  }
+  
+  /**
+   * Retrieves where a given Game is drawn.
+   */
+  public RenderTarget getRenderTarget() {
+    return this.target;
   }
   
   /**
@@ -58,9 +90,113 @@ public class Game {
    * @param player, the player in question
    */
   public void drawPlayerDisplay(Player player) {
-    double pixelPerTileWidth = this.width / player.getDisplayWidth();
-    double pixelPerTileHeight = this.height / player.getDisplayHeight();
+    this.drawPlayerDisplay(player, 1.0);
+  }
+  
+  // Draws the display, centered on the camera's position at the given fraction of a tick if there is one.
+  private void drawPlayerDisplay(Player player, double interpolation) {
+    checkDisplay(player);
+    
+    if(this.prefetcher != null) {
+      this.prefetcher.recordFrame(player);
+    }
+    
+    EngineEvents.FrameEvent event = new EngineEvents.FrameEvent();
+    event.begin();
+    boolean record = this.metrics.isEnabled();
+    long start = System.nanoTime();
+    long tiles = this.renderer.getTileDrawCount();
+    long presents = PennDraw.getPresentCount();
+    long allocated = record ? Metrics.getThreadAllocatedBytes() : -1;
+    
+    // Tiles are only drawn to the offscreen buffer, and the finished display is shown once.
+    if(this.frameBatching) {
+      PennDraw.beginFrame();
+      try {
+        this.drawView(player, interpolation);
+      }
+      finally {
+        PennDraw.endFrame();
+      }
+    }
+    else {
+      this.drawView(player, interpolation);
+    }
+    this.displayDirty = false;
+    
+    // Boards loaded in chunks only keep what is near the player.
+    player.getBoard().unloadFarChunks(player.getFirstTileIndex(), player.getSecondTileIndex());
     
+    if(record) {
+      this.recordFrame(start, tiles, presents, allocated);
+    }
+    event.end();
+    if(event.shouldCommit()) {
+      event.boardId = player.getBoard().getId();
+      event.playerI = player.getFirstTileIndex();
+      event.playerJ = player.getSecondTileIndex();
+      event.tiles = this.renderer.getTileDrawCount() - tiles;
+      event.presents = PennDraw.getPresentCount() - presents;
+      event.commit();
+    }
+  }
+  
+  // Records a frame's time, tiles drawn, presents and bytes allocated, from the counts at its start.
+  private void recordFrame(long start, long tiles, long presents, long allocated) {
+    this.metrics.histogram("frame.nanos").record(System.nanoTime() - start);
+    this.metrics.histogram("frame.tiles").record(this.renderer.getTileDrawCount() - tiles);
+    this.metrics.histogram("frame.presents").record(PennDraw.getPresentCount() - presents);
+    if(allocated >= 0) {
+      this.metrics.histogram("frame.allocatedBytes").record(Metrics.getThreadAllocatedBytes() - allocated);
+    }
+    this.metrics.counter("frames").increment();
+  }
+  
+  // Records the time a Player took to make a move.
+  private void recordMove(long start) {
+    if(this.metrics.isEnabled()) {
+      this.metrics.histogram("move.nanos").record(System.nanoTime() - start);
+      this.metrics.counter("moves").increment();
+    }
+  }
+  
+  // Commits a flight recorder event for a move, if one is being recorded.
+  private static void commitMove(EngineEvents.MoveEvent event, Player player, String direction,
+                                 int firstTileIndex, int secondTileIndex) {
+    event.end();
+    if(event.shouldCommit()) {
+      event.boardId = player.getBoard().getId();
+      event.direction = direction;
+      event.fromI = firstTileIndex;
+      event.fromJ = secondTileIndex;
+      event.toI = player.getFirstTileIndex();
+      event.toJ = player.getSecondTileIndex();
+      event.moved = firstTileIndex != event.toI || secondTileIndex != event.toJ;
+      event.commit();
+    }
+  }
+  
+  /**
+   * Retrieves the metrics registry the given Game times and counts its frames and moves in.
+   */
+  public Metrics getMetrics() {
+    return this.metrics;
+  }
+  
+  /**
+   * Sets the metrics registry the given Game times and counts its frames and moves in.
+   * Defaults to Metrics.getDefault(), which PennDraw's image and picture metrics also go to.
+   * @param metrics, the registry to be used
+   */
+  public void setMetrics(Metrics metrics) {
+    if(metrics == null) {
+      throw new IllegalArgumentException("Metrics registry must not be null");
+    }
+    this.metrics = metrics;
+  }
+  
+  // Checks that a Player's display has a center tile along both sides.
+  private static void checkDisplay(Player player) {
     if(player.getDisplayWidth() % 2 == 0 || player.getDisplayWidth() <= 0) {
       throw new RuntimeException("Display square side length must be an odd, natural number");
     }
@@ -68,37 +204,266 @@ public class Game {
     if(player.getDisplayHeight() % 2 == 0 || player.getDisplayHeight() <= 0) {
       throw new RuntimeException("Display square side length must be an odd, natural number");
     }
+  }
+  
+  /**
+   * Prepares the given Game to show its first frame without stalling, then shows it. Use
+   * this instead of the first drawPlayerDisplay. Waits DEFAULT_WARM_UP_MILLIS to compile the render path.
+   * @param player, the player the display is drawn around
+   * @return the number of times the display was drawn while warming up
+   */
+  public int warmUp(Player player) {
+    return this.warmUp(player, DEFAULT_WARM_UP_MILLIS);
+  }
+  
+  /**
+   * Prepares the given Game to show its first frame without stalling, then shows it. Every
+   * image that its game areas and the Player may draw is decoded, several at once, so no
+   * frame waits for the disk. Then the display is drawn over and over offscreen, so the JIT
+   * compiles the render path before it counts. Only the last drawing is shown.
+   * @param player, the player the display is drawn around
+   * @param millis, how long to spend drawing the display; it is always drawn at least once
+   * @return the number of times the display was drawn while warming up
+   */
+  public int warmUp(Player player, long millis) {
+    checkDisplay(player);
+    PennDraw.preloadImages(this.getReferencedImages(player), Runtime.getRuntime().availableProcessors());
     
-    // Draws numTilesWidth by numTilesHeight rectangle around player, such that said rectangle occupies
-    // entire screen.
-    for(int a = -(player.getDisplayWidth() - 1) / 2; a < ((player.getDisplayWidth() - 1) / 2) + 1; a++) {
-      for(int b = -(player.getDisplayHeight() - 1) / 2; b < ((player.getDisplayHeight()- 1) / 2) + 1; b++) {
-        // If tile is past tileboard's bounds, draw past border image.
-        if(a + player.getFirstTileIndex() < 0  ||  a + player.getFirstTileIndex() >=
-           player.getBoard().getNumTilesWidth() || b + player.getSecondTileIndex() < 0 ||
-           b + player.getSecondTileIndex() >= player.getBoard().getNumTilesHeight()) {
-          PennDraw.picture(((a + ((player.getDisplayWidth() - 1) / 2)) * pixelPerTileWidth) +
-                           (pixelPerTileWidth / 2), ((b + ((player.getDisplayHeight() - 1) / 2)) *
-                                                     pixelPerTileHeight) + (pixelPerTileHeight / 2),
-                           player.getBoard().getPastBorderImage(),
-                           pixelPerTileWidth, pixelPerTileHeight);
+    // Nothing drawn inside a frame is shown before it ends.
+    int draws = 0;
+    long end = System.nanoTime() + millis * 1000000;
+    PennDraw.beginFrame();
+    try {
+      do {
+        this.renderer.invalidate();
+        if(this.camera == null) {
+          this.renderer.draw(player);
         }
-        
         else {
-          // If tile is not past tileboard's bounds, draw tile's image.
-          PennDraw.picture(((a + ((player.getDisplayWidth() - 1) / 2)) * pixelPerTileWidth) +
-                           (pixelPerTileWidth / 2), ((b + ((player.getDisplayHeight() - 1) / 2)) *
-                                                     pixelPerTileHeight) + (pixelPerTileHeight / 2),
-                           player.getBoard().getTileBoard()
-                             [a + player.getFirstTileIndex()][b + player.getSecondTileIndex()].getImage(),
-                           pixelPerTileWidth, pixelPerTileHeight);
+          // Glide into the next tile diagonally and back, so the layer is drawn, scrolled and copied.
+          this.camera.snap(player);
+          double x = player.getFirstTileIndex();
+          double y = player.getSecondTileIndex();
+          this.renderer.draw(player, x + 0.5, y + 0.5);
+          this.renderer.draw(player, x + 1.5, y + 1.5);
+          this.renderer.draw(player, x, y);
         }
+        draws++;
+      } while(System.nanoTime() - end < 0);
+    }
+    finally {
+      PennDraw.endFrame();
+    }
+    this.displayDirty = false;
+    player.getBoard().unloadFarChunks(player.getFirstTileIndex(), player.getSecondTileIndex());
+    return draws;
+  }
+  
+  // Has the renderer draw the display, around the player's tile or the camera.
+  private void drawView(Player player, double interpolation) {
+    if(this.camera == null) {
+      this.renderer.draw(player);
+      return;
+    }
+    if(this.camera.getBoard() != player.getBoard()) {
+      this.camera.snap(player);
+    }
+    this.renderer.draw(player, this.camera.getX(interpolation), this.camera.getY(interpolation));
+  }
+  
+  /**
+   * Retrieves the given Game's chunk prefetcher, or null if it has none.
+   */
+  public ChunkPrefetcher getPrefetcher() {
+    return this.prefetcher;
+  }
+  
+  /**
+   * Sets a prefetcher that loads the chunks and images ahead of a moving Player on a
+   * background thread, so scrolling onto them does not wait for the disk.
+   * @param prefetcher, the prefetcher to be used, or null for none
+   */
+  public void setPrefetcher(ChunkPrefetcher prefetcher) {
+    this.prefetcher = prefetcher;
+  }
+  
+  /**
+   * Retrieves the given Game's held-key movement controller, or null if it has none.
+   */
+  public MovementController getMovementController() {
+    return this.movement;
+  }
+  
+  /**
+   * Sets a controller that moves a Player steadily while a movement key is held down,
+   * at a rate set in ticks, instead of once per key typed.
+   * @param movement, the controller to be used, or null to move once per key typed
+   */
+  public void setMovementController(MovementController movement) {
+    this.movement = movement;
+  }
+  
+  /**
+   * Retrieves the given Game's camera, or null if it has none.
+   */
+  public Camera getCamera() {
+    return this.camera;
+  }
+  
+  /**
+   * Sets a camera that glides the display after a Player over several frames when it
+   * moves, instead of snapping it a whole tile per move. The camera moves on ticks, so
+   * it is meant for games run by a GameLoop.
+   * @param camera, the camera to be used, or null to snap the display to the player
+   */
+  public void setCamera(Camera camera) {
+    this.camera = camera;
+    this.displayDirty = true;
+  }
+  
+  /**
+   * Advances the given Game by one simulation tick, applying the keyboard events since
+   * the last tick. With a movement controller, held keys move the player; otherwise
+   * every key typed is applied as a movement (W, A, S, D move up, left, down and right).
+   * Then the camera, if any, moves towards the player.
+   * @param player, the player controlled by the keyboard
+   */
+  public void tick(Player player) {
+    // Take the whole tick's keys at once, without locking the event thread out or allocating.
+    PennDraw.getInputQueue().drainTo(this.input);
+    if(this.movement != null) {
+      this.movement.tick(this, player, this.input);
+    }
+    else {
+      this.applyTypedKeys(player);
+    }
+    // While the camera glides, every frame shows it somewhere new.
+    this.gliding = this.camera != null && this.camera.tick(player);
+  }
+  
+  // Applies every key typed this tick as a movement.
+  private void applyTypedKeys(Player player) {
+    for(int k = 0; k < this.input.size(); k++) {
+      if(this.input.getType(k) != InputQueue.KEY_TYPED) {
+        continue;
+      }
+      int input = this.input.getCode(k);
+      if(input == 'w' || input == 'W') {
+        this.movementUp(player);
       }
+      if(input == 'a' || input == 'A') {
+        this.movementLeft(player);
+      }
+      if(input == 's' || input == 'S') {
+        this.movementDown(player);
+      }
+      if(input == 'd' || input == 'D') {
+        this.movementRight(player);
+      }
+    }
+  }
+  
+  /**
+   * Renders one frame: redraws the display around the Player if it has changed
+   * since it was last drawn or the camera is gliding, otherwise does nothing. With a
+   * camera, the display is centered where the camera is that far between the last two ticks.
+   * @param player, the player in question
+   * @param interpolation, fraction (0 to 1) of a tick elapsed since the last tick
+   */
+  public void render(Player player, double interpolation) {
+    if(this.displayDirty || this.gliding) {
+      this.drawPlayerDisplay(player, interpolation);
+    }
+  }
+  
+  /**
+   * Retrieves whether the given Game redraws the display as soon as a Player moves.
+   */
+  public boolean getRenderOnMove() {
+    return this.renderOnMove;
+  }
+  
+  /**
+   * Changes whether the given Game redraws the display as soon as a Player moves (the
+   * default), or only marks it as changed so the next render call redraws it.
+   * @param renderOnMove, whether or not moves redraw the display immediately
+   */
+  public void setRenderOnMove(boolean renderOnMove) {
+    this.renderOnMove = renderOnMove;
+  }
+  
+  /**
+   * Retrieves whether the given Game shows each display on screen at once.
+   */
+  public boolean getFrameBatching() {
+    return this.frameBatching;
+  }
+  
+  /**
+   * Changes whether the given Game shows each display on screen at once (the default),
+   * or lets PennDraw show every tile as soon as it is drawn.
+   * @param frameBatching, whether or not displays are shown all at once
+   */
+  public void setFrameBatching(boolean frameBatching) {
+    this.frameBatching = frameBatching;
+  }
+  
+  /**
+   * Retrieves the most threads the given Game draws a full display with.
+   */
+  public int getRenderThreads() {
+    return this.renderer.getRasterizer().getStripes();
+  }
+  
+  /**
+   * Changes the most threads the given Game draws a full display with. The display is
+   * split into that many horizontal stripes, drawn in parallel; 1 draws it serially.
+   * Defaults to the number of available processors.
+   * @param threads, the most threads a display is drawn with
+   */
+  public void setRenderThreads(int threads) {
+    this.renderer.setRasterizer(new StripeRasterizer(threads));
+  }
+  
+  /**
+   * Makes the next drawPlayerDisplay repaint every tile instead of scrolling the
+   * previous display. Call this after drawing over the display or changing the
+   * image of a tile inside it without going through its board.
+   */
+  public void invalidateDisplay() {
+    this.renderer.invalidate();
+  }
+  
+  /**
+   * Retrieves the names of every image the given Game may draw for a Player: the images
+   * of all of its game areas and the player's own image.
+   * @param player, the player in question
+   */
+  public Set<String> getReferencedImages(Player player) {
+    Set<String> images = new LinkedHashSet<String>();
+    for(int i = 0; i < this.boardCounter; i++) {
+      images.addAll(this.gameAreas[i].getReferencedImages());
+    }
+    images.addAll(player.getBoard().getReferencedImages());
+    images.add(player.getImage());
+    return images;
+  }
+  
+  /**
+   * Redraws the display after a Player has moved, or marks it as changed if
+   * rendering is left to render calls.
+   * @param player, the player that moved
+   */
+  private void displayChanged(Player player) {
+    if(this.prefetcher != null) {
+      this.prefetcher.update(player);
+    }
+    if(this.renderOnMove) {
+      this.drawPlayerDisplay(player);
+    }
+    else {
+      this.displayDirty = true;
     }
-    // Draws player in the center of the display rectangle.
-    PennDraw.picture((((player.getDisplayWidth() - 1) / 2) * pixelPerTileWidth) + (pixelPerTileWidth / 2),
-                     (((player.getDisplayHeight() - 1) / 2) * pixelPerTileHeight) + (pixelPerTileHeight / 2),
-                     player.getImage(), pixelPerTileWidth, pixelPerTileHeight);
   }
   
   /**
@@ -106,10 +471,20 @@ public class Game {
    * @param player, the player in question
    */
   public void movementLeft(Player player) {
+    EngineEvents.MoveEvent event = new EngineEvents.MoveEvent();
+    event.begin();
+    int firstTileIndex = player.getFirstTileIndex();
+    int secondTileIndex = player.getSecondTileIndex();
     if(player.canMoveLeft()) {
+      long start = System.nanoTime();
       player.moveLeft();
-      this.drawPlayerDisplay(player);
+      this.recordMove(start);
+      // A blocked move leaves the display as it is.
+      if(player.getFirstTileIndex() != firstTileIndex || player.getSecondTileIndex() != secondTileIndex) {
+        this.displayChanged(player);
+      }
     }
+    commitMove(event, player, "left", firstTileIndex, secondTileIndex);
   }
   
   /**
@@ -117,10 +492,20 @@ public class Game {
    * @param player, the player in question
    */
   public void movementRight(Player player) {
+    EngineEvents.MoveEvent event = new EngineEvents.MoveEvent();
+    event.begin();
+    int firstTileIndex = player.getFirstTileIndex();
+    int secondTileIndex = player.getSecondTileIndex();
     if(player.canMoveRight()) {
+      long start = System.nanoTime();
       player.moveRight();
-      this.drawPlayerDisplay(player);
+      this.recordMove(start);
+      // A blocked move leaves the display as it is.
+      if(player.getFirstTileIndex() != firstTileIndex || player.getSecondTileIndex() != secondTileIndex) {
+        this.displayChanged(player);
+      }
     }
+    commitMove(event, player, "right", firstTileIndex, secondTileIndex);
   }
   
   /*
@@ -129,10 +514,20 @@ public class Game {
    * @param player, the player in question
    */  
   public void movementUp(Player player) {
+    EngineEvents.MoveEvent event = new EngineEvents.MoveEvent();
+    event.begin();
+    int firstTileIndex = player.getFirstTileIndex();
+    int secondTileIndex = player.getSecondTileIndex();
     if(player.canMoveUp()) {
+      long start = System.nanoTime();
       player.moveUp();
-      this.drawPlayerDisplay(player);
+      this.recordMove(start);
+      // A blocked move leaves the display as it is.
+      if(player.getFirstTileIndex() != firstTileIndex || player.getSecondTileIndex() != secondTileIndex) {
+        this.displayChanged(player);
+      }
     }
+    commitMove(event, player, "up", firstTileIndex, secondTileIndex);
   }
   
   /**
@@ -140,10 +535,20 @@ public class Game {
    * @param player, the player in question
    */
   public void movementDown(Player player) {
+    EngineEvents.MoveEvent event = new EngineEvents.MoveEvent();
+    event.begin();
+    int firstTileIndex = player.getFirstTileIndex();
+    int secondTileIndex = player.getSecondTileIndex();
     if(player.canMoveDown()) {
+      long start = System.nanoTime();
       player.moveDown();
-      this.drawPlayerDisplay(player);
+      this.recordMove(start);
+      // A blocked move leaves the display as it is.
+      if(player.getFirstTileIndex() != firstTileIndex || player.getSecondTileIndex() != secondTileIndex) {
+        this.displayChanged(player);
+      }
     }
+    commitMove(event, player, "down", firstTileIndex, secondTileIndex);
   }
   
   /**
@@ -0,0 +1,185 @@
+/*************************************************************************
+  *  Compilation:  javac GameLoop.java
+  *  Execution:    java GameLoop
+  *
+  *  Runs a Game for a Player at a fixed simulation rate, separately from
+  *  how often the display is rendered. Between deadlines the loop thread
+  *  is parked rather than spinning, so an idle game uses almost no CPU.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.concurrent.locks.LockSupport;
+
+public class GameLoop {
+  public static final int DEFAULT_TICKS_PER_SECOND = 60;
+  public static final int DEFAULT_MAX_FRAMES_PER_SECOND = 60;
+  public static final int DEFAULT_MAX_TICKS_PER_FRAME = 5;
+
+  private Game game; // the game being run
+  private Player player; // the player whose display is rendered
+  private long tickNanos; // simulation time step
+  private long frameNanos; // minimum time between two rendered frames
+  private int maxTicksPerFrame; // catch-up limit, after which simulation time is dropped
+  private volatile boolean running;
+  private volatile boolean stopping; // stop was called and run has not returned because of it yet
+  private volatile Thread loopThread;
+  private long nextTick; // when the next tick is due, in System.nanoTime
+  private long nextFrame; // when the next frame may be rendered
+  private double interpolation; // fraction of a tick elapsed since the last one, at the last frame
+
+  private long ticks; // number of simulation ticks run
+  private long frames; // number of frames rendered
+  private long droppedTicks; // number of ticks skipped because the loop fell too far behind
+
+  /**
+   * Creates a new GameLoop with the default tick rate and frame cap.
+   * @param game, the game to be run
+   * @param player, the player whose display is rendered
+   */
+  public GameLoop(Game game, Player player) {
+    this(game, player, DEFAULT_TICKS_PER_SECOND, DEFAULT_MAX_FRAMES_PER_SECOND);
+  }
+
+  /**
+   * Creates a new GameLoop with the inputted tick rate and frame cap.
+   * @param game, the game to be run
+   * @param player, the player whose display is rendered
+   * @param ticksPerSecond, how many simulation ticks are run per second
+   * @param maxFramesPerSecond, the most frames rendered per second
+   */
+  public GameLoop(Game game, Player player, int ticksPerSecond, int maxFramesPerSecond) {
+    if(ticksPerSecond <= 0 || maxFramesPerSecond <= 0) {
+      throw new IllegalArgumentException("Tick rate and frame cap must be positive");
+    }
+    this.game = game;
+    this.player = player;
+    this.tickNanos = 1000000000L / ticksPerSecond;
+    this.frameNanos = 1000000000L / maxFramesPerSecond;
+    this.maxTicksPerFrame = DEFAULT_MAX_TICKS_PER_FRAME;
+  }
+
+  /**
+   * Runs the loop on the calling thread until stop is called. Moves made during a
+   * tick only mark the display as changed; it is redrawn at most once per frame.
+   */
+  public void run() {
+    this.loopThread = Thread.currentThread();
+    this.running = true;
+    boolean renderOnMove = this.game.getRenderOnMove();
+    this.game.setRenderOnMove(false);
+    try {
+      this.begin(System.nanoTime());
+      while(!this.stopping) {
+        // Sleep until whichever comes first, the next tick or the next frame.
+        long idle = this.step(System.nanoTime()) - System.nanoTime();
+        if(idle > 0) {
+          LockSupport.parkNanos(this, idle);
+        }
+      }
+    }
+    finally {
+      this.running = false;
+      this.stopping = false;
+      this.loopThread = null;
+      this.game.setRenderOnMove(renderOnMove);
+    }
+  }
+
+  /**
+   * Asks the loop to return from run after the current iteration, or, if it is not
+   * running yet, to return from the next call to run at once. May be called from any thread.
+   */
+  public void stop() {
+    this.stopping = true;
+    Thread thread = this.loopThread;
+    if(thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  // Starts the clock: the first tick and frame are due at the inputted time.
+  void begin(long now) {
+    this.nextTick = now;
+    this.nextFrame = now;
+  }
+
+  // One iteration of the loop at the inputted time: runs the ticks due, then renders a frame
+  // if one is due. Returns when the next tick or frame is due. Kept apart from run so the
+  // loop can be driven with simulated time.
+  long step(long now) {
+    // Catch the simulation up to real time, one fixed step at a time.
+    int caughtUp = 0;
+    while(now - this.nextTick >= 0 && caughtUp < this.maxTicksPerFrame) {
+      this.game.tick(this.player);
+      this.nextTick += this.tickNanos;
+      this.ticks++;
+      caughtUp++;
+    }
+    // Too far behind to catch up: drop the missed time instead of spiralling.
+    if(now - this.nextTick >= 0) {
+      long behind = (now - this.nextTick) / this.tickNanos + 1;
+      this.droppedTicks += behind;
+      this.nextTick += behind * this.tickNanos;
+    }
+
+    if(now - this.nextFrame >= 0) {
+      this.interpolation = 1.0 - (double) (this.nextTick - now) / this.tickNanos;
+      this.game.render(this.player, this.interpolation);
+      this.frames++;
+      this.nextFrame += this.frameNanos;
+      if(now - this.nextFrame >= 0) {
+        this.nextFrame = now + this.frameNanos; // rendering is slower than the cap, don't burst
+      }
+    }
+    return this.nextTick - this.nextFrame < 0 ? this.nextTick : this.nextFrame;
+  }
+
+  /**
+   * Checks if the loop is currently running.
+   */
+  public boolean isRunning() {
+    return this.running;
+  }
+
+  /**
+   * Sets how many ticks may be run back to back to catch up before the
+   * remaining simulation time is dropped.
+   * @param maxTicksPerFrame, the catch-up limit
+   */
+  public void setMaxTicksPerFrame(int maxTicksPerFrame) {
+    if(maxTicksPerFrame <= 0) {
+      throw new IllegalArgumentException("Catch-up limit must be positive");
+    }
+    this.maxTicksPerFrame = maxTicksPerFrame;
+  }
+
+  /**
+   * Retrieves the fraction (0 to 1) of a tick that had elapsed when the last frame
+   * was rendered, for interpolating between the previous and the current tick.
+   */
+  public double getInterpolation() {
+    return this.interpolation;
+  }
+
+  /**
+   * Retrieves the number of simulation ticks run.
+   */
+  public long getTickCount() {
+    return this.ticks;
+  }
+
+  /**
+   * Retrieves the number of frames rendered.
+   */
+  public long getFrameCount() {
+    return this.frames;
+  }
+
+  /**
+   * Retrieves the number of ticks skipped because the loop fell too far behind.
+   */
+  public long getDroppedTickCount() {
+    return this.droppedTicks;
+  }
+}
@@ -0,0 +1,62 @@
+/*************************************************************************
+  *  Compilation:  javac HeadlessRenderTarget.java
+  *  Execution:    java HeadlessRenderTarget
+  *
+  *  A RenderTarget that draws into an offscreen image of a fixed
+  *  resolution, without opening a window or starting the Swing event
+  *  thread. Works with java.awt.headless=true. What was drawn can be read
+  *  with getImage or written to a file with save.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.awt.image.BufferedImage;
+
+public class HeadlessRenderTarget implements RenderTarget {
+  private int width;
+  private int height;
+
+  /**
+   * Creates a new HeadlessRenderTarget.
+   * @param width, the width of the offscreen image, in pixels
+   * @param height, the height of the offscreen image, in pixels
+   */
+  public HeadlessRenderTarget(int width, int height) {
+    if(width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Resolution must be positive");
+    }
+    this.width = width;
+    this.height = height;
+  }
+
+  public int getWidth() {
+    return this.width;
+  }
+
+  public int getHeight() {
+    return this.height;
+  }
+
+  public boolean isHeadless() {
+    return true;
+  }
+
+  public void attach() {
+    PennDraw.setHeadless(true);
+    PennDraw.setCanvasSize(this.width, this.height);
+    PennDraw.setXscale(0, this.width);
+    PennDraw.setYscale(0, this.height);
+  }
+
+  public BufferedImage getImage() {
+    return PennDraw.getCanvasImage();
+  }
+
+  /**
+   * Writes the image last shown to a file; the suffix (.png or .jpg) picks the format.
+   * @param filename, the name of the file
+   */
+  public void save(String filename) {
+    PennDraw.save(filename);
+  }
+}
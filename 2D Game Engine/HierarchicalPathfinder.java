@@ -0,0 +1,645 @@
+/*************************************************************************
+  *  Compilation:  javac HierarchicalPathfinder.java
+  *  Execution:    java HierarchicalPathfinder
+  *
+  *  Finds routes across large TileBoards in two levels (HPA*). The board
+  *  is cut into square clusters. Wherever walkable tiles meet across the
+  *  border of two clusters there is an entrance, marked by a node on each
+  *  side, and each cluster caches how far apart its nodes are inside it.
+  *  A query searches that small graph of nodes with A*, then fills in the
+  *  tiles of each leg within one cluster. Routes come out a few percent
+  *  longer than the shortest, for a fraction of the search on long ones;
+  *  for routes of a few clusters or less, a Pathfinder is faster.
+  *
+  *  The graph is kept between queries. When tiles change whether they are
+  *  passable (see TileBoard.getPassableChunkVersion), only the clusters
+  *  holding them and their neighbours, whose entrances they share, are
+  *  built again. Tiles are walkable as for a Pathfinder. Not thread-safe.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.Arrays;
+
+public class HierarchicalPathfinder {
+  public static final int DEFAULT_CLUSTER_SIZE = 32; // tiles along each side of a cluster
+  public static final int LONG_ENTRANCE = 6; // entrances at least this wide get a node at each end, not one in the middle
+
+  private TileBoard board;
+  private int width;
+  private int height;
+  private int clusterSize;
+  private int clustersWide;
+  private int clustersHigh;
+  private int stride; // node ids per cluster: a node's id is its cluster's index * stride + its index in the cluster
+  private Cluster[] clusters; // indexed by cluster x * clustersHigh + cluster y, or null before the first query
+  private long seenVersion; // the board's passable version when the clusters were built
+  private long seenChanges; // the board's passable change count when the clusters were last brought up to date
+  private long builds; // clusters built, counting ones built again
+
+  // Breadth-first search within a window of at most 2x2 clusters, indexed by
+  // (i - windowLeft) * 2 * clusterSize + (j - windowBottom).
+  private int windowLeft;
+  private int windowBottom;
+  private int[] localDistances;
+  private byte[] localMoves; // the EntityBehavior move that reached each tile
+  private int[] localSeen; // generation in which each tile was reached
+  private int[] localQueue;
+  private int localGeneration;
+
+  // A* over the nodes, indexed by node id; the start and goal tiles are the two ids after the last node.
+  private int[] opened;
+  private int[] closed;
+  private int[] costs;
+  private int[] parents;
+  private int generation;
+  private long[] heapKeys;
+  private int[] heapNodes;
+  private int heapSize;
+  private int[] startWindow = new int[4]; // clusters around the start tile, as x and y bounds, inclusive
+  private int[] goalWindow = new int[4]; // clusters around the goal tile, the same way
+  private int[] startCosts; // steps from the start tile to each node of its window, at its cluster's slot * stride + n, or -1
+  private int[] goalCosts; // steps from each node of the goal's window to the goal tile, the same way, or -1
+
+  private int[] route; // moves of the route being filled in
+  private int routeLength;
+
+  /**
+   * Creates a new HierarchicalPathfinder with clusters of DEFAULT_CLUSTER_SIZE tiles.
+   * @param board, the board routes are found on
+   */
+  public HierarchicalPathfinder(TileBoard board) {
+    this(board, DEFAULT_CLUSTER_SIZE);
+  }
+
+  /**
+   * Creates a new HierarchicalPathfinder. Larger clusters make a smaller graph but take
+   * longer to build again after a change.
+   * @param board, the board routes are found on
+   * @param clusterSize, tiles along each side of a cluster, a multiple of TileBoard.CACHE_CHUNK_SIZE
+   */
+  public HierarchicalPathfinder(TileBoard board, int clusterSize) {
+    if(clusterSize <= 0 || clusterSize % TileBoard.CACHE_CHUNK_SIZE != 0) {
+      throw new IllegalArgumentException("Cluster size must be a positive multiple of " + TileBoard.CACHE_CHUNK_SIZE);
+    }
+    this.board = board;
+    this.width = board.getNumTilesWidth();
+    this.height = board.getNumTilesHeight();
+    this.clusterSize = clusterSize;
+    this.clustersWide = (this.width + clusterSize - 1) / clusterSize;
+    this.clustersHigh = (this.height + clusterSize - 1) / clusterSize;
+    // A border of n tiles has at most (n + 1) / 2 entrances, each with at most 2 nodes.
+    this.stride = 4 * (clusterSize + 1);
+    long nodes = (long) this.clustersWide * this.clustersHigh * this.stride + 2;
+    if(nodes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Board has too many clusters; use larger ones");
+    }
+    int tiles = 4 * clusterSize * clusterSize;
+    this.localDistances = new int[tiles];
+    this.localMoves = new byte[tiles];
+    this.localSeen = new int[tiles];
+    this.localQueue = new int[tiles];
+    this.opened = new int[(int) nodes];
+    this.closed = new int[(int) nodes];
+    this.costs = new int[(int) nodes];
+    this.parents = new int[(int) nodes];
+    this.heapKeys = new long[64];
+    this.heapNodes = new int[64];
+    this.startCosts = new int[4 * this.stride];
+    this.goalCosts = new int[4 * this.stride];
+    this.route = new int[64];
+  }
+
+  /**
+   * Finds a route between two tiles. The start and goal tiles need not be walkable,
+   * since the mover and often its target stand on them.
+   * @param fromI, the horizontal index of the start tile
+   * @param fromJ, the vertical index of the start tile
+   * @param toI, the horizontal index of the goal tile
+   * @param toJ, the vertical index of the goal tile
+   * @return the moves of the route in order, each EntityBehavior.UP, RIGHT, DOWN or LEFT;
+   * empty if the start is the goal, or null if the goal cannot be reached
+   */
+  public int[] findPath(int fromI, int fromJ, int toI, int toJ) {
+    this.check(fromI, fromJ);
+    this.check(toI, toJ);
+    this.update();
+    if(fromI == toI && fromJ == toJ) {
+      return new int[0];
+    }
+    this.routeLength = 0;
+    // Nearby tiles on either side of a border would otherwise be routed through an entrance
+    // that may be out of the way, so search the tiles around both of them directly first.
+    if(Math.abs(fromI - toI) < this.clusterSize && Math.abs(fromJ - toJ) < this.clusterSize) {
+      int left = Math.max(Math.min(fromI, toI) - this.clusterSize / 2, 0);
+      int bottom = Math.max(Math.min(fromJ, toJ) - this.clusterSize / 2, 0);
+      this.search(left, bottom, Math.min(left + 2 * this.clusterSize, this.width),
+                  Math.min(bottom + 2 * this.clusterSize, this.height), fromI, fromJ, toI, toJ);
+      if(this.localDistance(toI, toJ) >= 0) {
+        this.appendLocalRoute(toI, toJ);
+        return Arrays.copyOf(this.route, this.routeLength);
+      }
+    }
+    // Connect the start and goal tiles to the nodes of the clusters around them, and to each
+    // other if the goal is among the start's.
+    this.setWindow(this.startWindow, fromI, fromJ);
+    this.setWindow(this.goalWindow, toI, toJ);
+    this.search(this.startWindow, fromI, fromJ, -1, -1);
+    this.windowCosts(this.startWindow, this.startCosts);
+    int direct = this.slot(this.startWindow, this.clusterOf(toI, toJ)) >= 0 ? this.localDistance(toI, toJ) : -1;
+    this.search(this.goalWindow, toI, toJ, -1, -1);
+    this.windowCosts(this.goalWindow, this.goalCosts);
+
+    int startNode = this.opened.length - 2;
+    int goalNode = this.opened.length - 1;
+    if(!this.searchNodes(startNode, goalNode, direct, toI, toJ)) {
+      return null;
+    }
+
+    // Fill in the tiles of each leg, from the start.
+    int[] chain = new int[this.chainLength(goalNode)];
+    for(int node = goalNode, k = chain.length - 1; k >= 0; node = this.parents[node], k--) {
+      chain[k] = node;
+    }
+    int i = fromI;
+    int j = fromJ;
+    for(int k = 1; k < chain.length; k++) {
+      int node = chain[k];
+      int previous = chain[k - 1];
+      int nextI = node == goalNode ? toI : this.clusters[node / this.stride].tileI[node % this.stride];
+      int nextJ = node == goalNode ? toJ : this.clusters[node / this.stride].tileJ[node % this.stride];
+      if(previous != startNode && node != goalNode && previous / this.stride != node / this.stride) {
+        // Crossing an entrance: one step over the border.
+        this.append(this.clusters[previous / this.stride].border(previous % this.stride));
+      }
+      else {
+        if(previous == startNode) {
+          this.search(this.startWindow, i, j, nextI, nextJ);
+        }
+        else if(node == goalNode) {
+          this.search(this.goalWindow, i, j, nextI, nextJ);
+        }
+        else {
+          this.search(this.clusters[node / this.stride], i, j, nextI, nextJ);
+        }
+        this.appendLocalRoute(nextI, nextJ);
+      }
+      i = nextI;
+      j = nextJ;
+    }
+    return Arrays.copyOf(this.route, this.routeLength);
+  }
+
+  /**
+   * Retrieves the number of tiles along each side of a cluster.
+   */
+  public int getClusterSize() {
+    return this.clusterSize;
+  }
+
+  /**
+   * Retrieves the number of clusters built so far, counting ones built again after a change.
+   */
+  public long getClusterBuildCount() {
+    return this.builds;
+  }
+
+  /**
+   * Retrieves the number of nodes in the graph, i.e. sides of entrances between clusters.
+   */
+  public int getNodeCount() {
+    this.update();
+    int nodes = 0;
+    for(Cluster cluster : this.clusters) {
+      nodes += cluster.count;
+    }
+    return nodes;
+  }
+
+  // Builds every cluster on the first query or after the whole board changed; otherwise builds
+  // again the clusters whose chunks changed, with their neighbours.
+  private void update() {
+    if(this.clusters != null && this.seenVersion == this.board.getPassableVersion()) {
+      if(this.seenChanges == this.board.getPassableChangeCount()) {
+        return;
+      }
+      boolean[] stale = new boolean[this.clusters.length];
+      for(int c = 0; c < this.clusters.length; c++) {
+        if(this.clusters[c].chunkVersions != this.chunkVersions(this.clusters[c])) {
+          stale[c] = true;
+          int x = c / this.clustersHigh;
+          int y = c % this.clustersHigh;
+          for(int b = 0; b < 4; b++) {
+            int neighbour = this.neighbour(x, y, b);
+            if(neighbour >= 0) {
+              stale[neighbour] = true;
+            }
+          }
+        }
+      }
+      for(int c = 0; c < this.clusters.length; c++) {
+        if(stale[c]) {
+          this.build(c);
+        }
+      }
+    }
+    else {
+      this.clusters = new Cluster[this.clustersWide * this.clustersHigh];
+      for(int c = 0; c < this.clusters.length; c++) {
+        this.build(c);
+      }
+      this.seenVersion = this.board.getPassableVersion();
+    }
+    this.seenChanges = this.board.getPassableChangeCount();
+  }
+
+  // Sum of the passable versions of a cluster's chunks. They only count up, so any change raises it.
+  private long chunkVersions(Cluster cluster) {
+    long sum = 0;
+    int chunk = TileBoard.CACHE_CHUNK_SIZE;
+    for(int chunkX = cluster.left / chunk; chunkX * chunk < cluster.right; chunkX++) {
+      for(int chunkY = cluster.bottom / chunk; chunkY * chunk < cluster.top; chunkY++) {
+        sum += this.board.getPassableChunkVersion(chunkX, chunkY);
+      }
+    }
+    return sum;
+  }
+
+  // Finds a cluster's entrances and how far apart they are inside it.
+  private void build(int c) {
+    int x = c / this.clustersHigh;
+    int y = c % this.clustersHigh;
+    Cluster cluster = new Cluster(x * this.clusterSize, y * this.clusterSize,
+                                  Math.min((x + 1) * this.clusterSize, this.width),
+                                  Math.min((y + 1) * this.clusterSize, this.height), this.stride);
+    for(int b = 0; b < 4; b++) {
+      cluster.borderStarts[b] = cluster.count;
+      if(this.neighbour(x, y, b) >= 0) {
+        this.addEntrances(cluster, b);
+      }
+    }
+    cluster.borderStarts[4] = cluster.count;
+    cluster.costs = new int[cluster.count * cluster.count];
+    for(int n = 0; n < cluster.count; n++) {
+      this.search(cluster, cluster.tileI[n], cluster.tileJ[n], -1, -1);
+      for(int m = 0; m < cluster.count; m++) {
+        cluster.costs[n * cluster.count + m] = this.localDistance(cluster.tileI[m], cluster.tileJ[m]);
+      }
+    }
+    cluster.chunkVersions = this.chunkVersions(cluster);
+    this.clusters[c] = cluster;
+    this.builds++;
+  }
+
+  // Adds a node for each entrance along one border of a cluster. Both clusters sharing the border
+  // scan it the same way, so the k-th node on one side faces the k-th node on the other.
+  private void addEntrances(Cluster cluster, int b) {
+    boolean vertical = b == EntityBehavior.UP || b == EntityBehavior.DOWN;
+    int from = vertical ? cluster.left : cluster.bottom;
+    int to = vertical ? cluster.right : cluster.top;
+    int inside = b == EntityBehavior.UP ? cluster.top - 1 : b == EntityBehavior.RIGHT ? cluster.right - 1 :
+                 b == EntityBehavior.DOWN ? cluster.bottom : cluster.left;
+    int outside = b == EntityBehavior.UP || b == EntityBehavior.RIGHT ? inside + 1 : inside - 1;
+    int runStart = -1;
+    for(int along = from; along <= to; along++) {
+      boolean open = along < to &&
+                     (vertical ? Pathfinder.isWalkable(this.board, along, inside) && Pathfinder.isWalkable(this.board, along, outside)
+                               : Pathfinder.isWalkable(this.board, inside, along) && Pathfinder.isWalkable(this.board, outside, along));
+      if(open && runStart < 0) {
+        runStart = along;
+      }
+      else if(!open && runStart >= 0) {
+        if(along - runStart >= LONG_ENTRANCE) {
+          cluster.add(vertical, runStart, inside);
+          cluster.add(vertical, along - 1, inside);
+        }
+        else {
+          cluster.add(vertical, (runStart + along - 1) / 2, inside);
+        }
+        runStart = -1;
+      }
+    }
+  }
+
+  // Index of the cluster across a border (an EntityBehavior move) of cluster (x, y), or -1 at the board's edge.
+  private int neighbour(int x, int y, int b) {
+    x += b == EntityBehavior.RIGHT ? 1 : b == EntityBehavior.LEFT ? -1 : 0;
+    y += b == EntityBehavior.UP ? 1 : b == EntityBehavior.DOWN ? -1 : 0;
+    return x < 0 || x >= this.clustersWide || y < 0 || y >= this.clustersHigh ? -1 : x * this.clustersHigh + y;
+  }
+
+  private int clusterOf(int i, int j) {
+    return (i / this.clusterSize) * this.clustersHigh + j / this.clusterSize;
+  }
+
+  // Sets the clusters searched around a start or goal tile: its own, and when it is not walkable
+  // also the ones across any border it lies on, since its walkable neighbours may all be there.
+  private void setWindow(int[] window, int i, int j) {
+    int x = i / this.clusterSize;
+    int y = j / this.clusterSize;
+    window[0] = x;
+    window[1] = y;
+    window[2] = x;
+    window[3] = y;
+    if(!Pathfinder.isWalkable(this.board, i, j)) {
+      if(i % this.clusterSize == 0 && x > 0) {
+        window[0]--;
+      }
+      else if(i % this.clusterSize == this.clusterSize - 1 && x + 1 < this.clustersWide) {
+        window[2]++;
+      }
+      if(j % this.clusterSize == 0 && y > 0) {
+        window[1]--;
+      }
+      else if(j % this.clusterSize == this.clusterSize - 1 && y + 1 < this.clustersHigh) {
+        window[3]++;
+      }
+    }
+  }
+
+  // Position of a cluster among the at most 2x2 of a window, or -1 if it is outside.
+  private int slot(int[] window, int c) {
+    int x = c / this.clustersHigh;
+    int y = c % this.clustersHigh;
+    if(x < window[0] || x > window[2] || y < window[1] || y > window[3]) {
+      return -1;
+    }
+    return (x - window[0]) * 2 + (y - window[1]);
+  }
+
+  // Copies the last search's steps to each node of a window's clusters.
+  private void windowCosts(int[] window, int[] costs) {
+    for(int x = window[0]; x <= window[2]; x++) {
+      for(int y = window[1]; y <= window[3]; y++) {
+        Cluster cluster = this.clusters[x * this.clustersHigh + y];
+        int base = ((x - window[0]) * 2 + (y - window[1])) * this.stride;
+        for(int n = 0; n < cluster.count; n++) {
+          costs[base + n] = this.localDistance(cluster.tileI[n], cluster.tileJ[n]);
+        }
+      }
+    }
+  }
+
+  // Id of the node facing a node across its border.
+  private int partner(int node) {
+    int c = node / this.stride;
+    Cluster cluster = this.clusters[c];
+    int n = node % this.stride;
+    int b = cluster.border(n);
+    int other = this.neighbour(c / this.clustersHigh, c % this.clustersHigh, b);
+    return other * this.stride + this.clusters[other].borderStarts[(b + 2) & 3] + n - cluster.borderStarts[b];
+  }
+
+  // A* from the start tile to the goal tile over the nodes; leaves parents set along the route found.
+  private boolean searchNodes(int startNode, int goalNode, int direct, int toI, int toJ) {
+    if(this.generation == Integer.MAX_VALUE) {
+      Arrays.fill(this.opened, 0);
+      Arrays.fill(this.closed, 0);
+      this.generation = 0;
+    }
+    this.generation++;
+    this.heapSize = 0;
+    this.opened[startNode] = this.generation;
+    this.costs[startNode] = 0;
+    this.push(startNode, 0);
+    while(this.heapSize > 0) {
+      int node = this.pop();
+      if(this.closed[node] == this.generation) {
+        continue;
+      }
+      this.closed[node] = this.generation;
+      if(node == goalNode) {
+        return true;
+      }
+      int cost = this.costs[node];
+      if(node == startNode) {
+        for(int x = this.startWindow[0]; x <= this.startWindow[2]; x++) {
+          for(int y = this.startWindow[1]; y <= this.startWindow[3]; y++) {
+            int c = x * this.clustersHigh + y;
+            Cluster start = this.clusters[c];
+            int base = ((x - this.startWindow[0]) * 2 + (y - this.startWindow[1])) * this.stride;
+            for(int m = 0; m < start.count; m++) {
+              if(this.startCosts[base + m] >= 0) {
+                this.relax(c * this.stride + m, node, cost + this.startCosts[base + m], start.tileI[m], start.tileJ[m], toI, toJ);
+              }
+            }
+          }
+        }
+        if(direct >= 0) {
+          this.relax(goalNode, node, cost + direct, toI, toJ, toI, toJ);
+        }
+        continue;
+      }
+      int c = node / this.stride;
+      int n = node % this.stride;
+      Cluster cluster = this.clusters[c];
+      for(int m = 0; m < cluster.count; m++) {
+        int step = cluster.costs[n * cluster.count + m];
+        if(m != n && step >= 0) {
+          this.relax(c * this.stride + m, node, cost + step, cluster.tileI[m], cluster.tileJ[m], toI, toJ);
+        }
+      }
+      int partner = this.partner(node);
+      Cluster across = this.clusters[partner / this.stride];
+      this.relax(partner, node, cost + 1, across.tileI[partner % this.stride], across.tileJ[partner % this.stride], toI, toJ);
+      int slot = this.slot(this.goalWindow, c);
+      if(slot >= 0 && this.goalCosts[slot * this.stride + n] >= 0) {
+        this.relax(goalNode, node, cost + this.goalCosts[slot * this.stride + n], toI, toJ, toI, toJ);
+      }
+    }
+    return false;
+  }
+
+  private void relax(int node, int parent, int cost, int i, int j, int toI, int toJ) {
+    if(this.closed[node] == this.generation || (this.opened[node] == this.generation && this.costs[node] <= cost)) {
+      return;
+    }
+    this.opened[node] = this.generation;
+    this.costs[node] = cost;
+    this.parents[node] = parent;
+    this.push(node, cost + Math.abs(i - toI) + Math.abs(j - toJ));
+  }
+
+  private int chainLength(int goalNode) {
+    int length = 1;
+    for(int node = goalNode; node != this.opened.length - 2; node = this.parents[node]) {
+      length++;
+    }
+    return length;
+  }
+
+  // Breadth-first search within a cluster from a tile, stopping early once the target tile, if
+  // any, is reached. The source and target tiles need not be walkable.
+  private void search(Cluster cluster, int fromI, int fromJ, int targetI, int targetJ) {
+    this.search(cluster.left, cluster.bottom, cluster.right, cluster.top, fromI, fromJ, targetI, targetJ);
+  }
+
+  // The same within the tiles of a window of clusters (see setWindow).
+  private void search(int[] window, int fromI, int fromJ, int targetI, int targetJ) {
+    this.search(window[0] * this.clusterSize, window[1] * this.clusterSize,
+                Math.min((window[2] + 1) * this.clusterSize, this.width),
+                Math.min((window[3] + 1) * this.clusterSize, this.height), fromI, fromJ, targetI, targetJ);
+  }
+
+  // The same within any window of tiles, left and bottom inclusive, at most 2x2 clusters large.
+  private void search(int left, int bottom, int right, int top, int fromI, int fromJ, int targetI, int targetJ) {
+    if(++this.localGeneration == Integer.MAX_VALUE) {
+      Arrays.fill(this.localSeen, 0);
+      this.localGeneration = 1;
+    }
+    this.windowLeft = left;
+    this.windowBottom = bottom;
+    int size = 2 * this.clusterSize;
+    int first = (fromI - left) * size + (fromJ - bottom);
+    int target = targetI < 0 ? -1 : (targetI - left) * size + (targetJ - bottom);
+    this.localSeen[first] = this.localGeneration;
+    this.localDistances[first] = 0;
+    this.localQueue[0] = first;
+    int head = 0;
+    int tail = 1;
+    while(head < tail) {
+      int local = this.localQueue[head++];
+      if(local == target) {
+        return;
+      }
+      int i = left + local / size;
+      int j = bottom + local % size;
+      for(int move = 0; move < 4; move++) {
+        int nextI = i + (move == EntityBehavior.RIGHT ? 1 : move == EntityBehavior.LEFT ? -1 : 0);
+        int nextJ = j + (move == EntityBehavior.UP ? 1 : move == EntityBehavior.DOWN ? -1 : 0);
+        if(nextI < left || nextI >= right || nextJ < bottom || nextJ >= top) {
+          continue;
+        }
+        int next = (nextI - left) * size + (nextJ - bottom);
+        if(this.localSeen[next] == this.localGeneration ||
+           (next != target && !Pathfinder.isWalkable(this.board, nextI, nextJ))) {
+          continue;
+        }
+        this.localSeen[next] = this.localGeneration;
+        this.localDistances[next] = this.localDistances[local] + 1;
+        this.localMoves[next] = (byte) move;
+        this.localQueue[tail++] = next;
+      }
+    }
+  }
+
+  // Steps from the last search's source to a tile in its window, or -1 if it was not reached.
+  private int localDistance(int i, int j) {
+    int local = (i - this.windowLeft) * 2 * this.clusterSize + (j - this.windowBottom);
+    return this.localSeen[local] == this.localGeneration ? this.localDistances[local] : -1;
+  }
+
+  // Appends the moves of the last search's route from its source to a tile.
+  private void appendLocalRoute(int toI, int toJ) {
+    int size = 2 * this.clusterSize;
+    int end = this.routeLength + this.localDistance(toI, toJ);
+    while(this.route.length < end) {
+      this.route = Arrays.copyOf(this.route, this.route.length * 2);
+    }
+    int local = (toI - this.windowLeft) * size + (toJ - this.windowBottom);
+    for(int k = end - 1; k >= this.routeLength; k--) {
+      int move = this.localMoves[local];
+      this.route[k] = move;
+      local -= move == EntityBehavior.UP ? 1 : move == EntityBehavior.DOWN ? -1 : move == EntityBehavior.RIGHT ? size : -size;
+    }
+    this.routeLength = end;
+  }
+
+  private void append(int move) {
+    if(this.routeLength == this.route.length) {
+      this.route = Arrays.copyOf(this.route, this.route.length * 2);
+    }
+    this.route[this.routeLength++] = move;
+  }
+
+  private void check(int i, int j) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the board");
+    }
+  }
+
+  private void push(int node, int estimate) {
+    if(this.heapSize == this.heapKeys.length) {
+      this.heapKeys = Arrays.copyOf(this.heapKeys, this.heapSize * 2);
+      this.heapNodes = Arrays.copyOf(this.heapNodes, this.heapSize * 2);
+    }
+    long key = (long) estimate << 32 | node;
+    int child = this.heapSize++;
+    while(child > 0) {
+      int parent = (child - 1) >>> 1;
+      if(this.heapKeys[parent] <= key) {
+        break;
+      }
+      this.heapKeys[child] = this.heapKeys[parent];
+      this.heapNodes[child] = this.heapNodes[parent];
+      child = parent;
+    }
+    this.heapKeys[child] = key;
+    this.heapNodes[child] = node;
+  }
+
+  private int pop() {
+    int top = this.heapNodes[0];
+    int size = --this.heapSize;
+    long key = this.heapKeys[size];
+    int node = this.heapNodes[size];
+    int parent = 0;
+    while(true) {
+      int child = 2 * parent + 1;
+      if(child >= size) {
+        break;
+      }
+      if(child + 1 < size && this.heapKeys[child + 1] < this.heapKeys[child]) {
+        child++;
+      }
+      if(this.heapKeys[child] >= key) {
+        break;
+      }
+      this.heapKeys[parent] = this.heapKeys[child];
+      this.heapNodes[parent] = this.heapNodes[child];
+      parent = child;
+    }
+    this.heapKeys[parent] = key;
+    this.heapNodes[parent] = node;
+    return top;
+  }
+
+  // The nodes of one cluster and the steps between them within it.
+  private static class Cluster {
+    private int left; // tile bounds: left and bottom inclusive, right and top exclusive
+    private int bottom;
+    private int right;
+    private int top;
+    private int count; // number of nodes
+    private int[] tileI;
+    private int[] tileJ;
+    private int[] borderStarts = new int[5]; // first node on each border (as EntityBehavior moves), then count
+    private int[] costs; // steps from node n to node m at [n * count + m], or -1 if not connected inside
+    private long chunkVersions; // sum of the chunk versions the cluster was built from
+
+    private Cluster(int left, int bottom, int right, int top, int capacity) {
+      this.left = left;
+      this.bottom = bottom;
+      this.right = right;
+      this.top = top;
+      this.tileI = new int[capacity];
+      this.tileJ = new int[capacity];
+    }
+
+    // Adds a node on a border, at a position along it.
+    private void add(boolean vertical, int along, int inside) {
+      this.tileI[this.count] = vertical ? along : inside;
+      this.tileJ[this.count] = vertical ? inside : along;
+      this.count++;
+    }
+
+    // The border (as an EntityBehavior move) a node is on.
+    private int border(int n) {
+      int b = 0;
+      while(n >= this.borderStarts[b + 1]) {
+        b++;
+      }
+      return b;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*************************************************************************
+  *  Compilation:  javac Histogram.java
+  *  Execution:    java Histogram
+  *
+  *  Records a distribution of non-negative values, such as frame times in
+  *  nanoseconds, in the manner of HdrHistogram: a fixed array of counts in
+  *  buckets whose width doubles with each power of two, each split into 64
+  *  sub-buckets, so any value is kept to within 1/64 (about 1.6%) of itself
+  *  from 1 up to Long.MAX_VALUE in 30 KB. Recording is one atomic increment
+  *  with no allocation or locking, so any number of threads may record at
+  *  once; percentiles are read from the counts at any time.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+  private static final int SUB_BUCKET_BITS = 6; // 64 sub-buckets per power of two
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+  private AtomicLongArray counts; // values recorded in each bucket
+  private LongAdder count; // values recorded
+  private LongAdder sum; // total of the values recorded
+  private AtomicLong max; // largest value recorded
+
+  /**
+   * Creates a new, empty Histogram.
+   */
+  public Histogram() {
+    this.counts = new AtomicLongArray(BUCKETS);
+    this.count = new LongAdder();
+    this.sum = new LongAdder();
+    this.max = new AtomicLong();
+  }
+
+  /**
+   * Records a value.
+   * @param value, the value recorded; negative values are recorded as 0
+   */
+  public void record(long value) {
+    if(value < 0) {
+      value = 0;
+    }
+    this.counts.incrementAndGet(index(value));
+    this.count.increment();
+    this.sum.add(value);
+    long max = this.max.get();
+    while(value > max && !this.max.compareAndSet(max, value)) {
+      max = this.max.get();
+    }
+  }
+
+  /**
+   * Retrieves the number of values recorded.
+   */
+  public long getCount() {
+    return this.count.sum();
+  }
+
+  /**
+   * Retrieves the largest value recorded, or 0 if there are none.
+   */
+  public long getMax() {
+    return this.max.get();
+  }
+
+  /**
+   * Retrieves the mean of the values recorded, or 0 if there are none.
+   */
+  public double getMean() {
+    long count = this.count.sum();
+    return count == 0 ? 0 : (double) this.sum.sum() / count;
+  }
+
+  /**
+   * Retrieves the value that a given percentage of the values recorded are at or below,
+   * to within the precision of its bucket.
+   * @param percentile, the percentage, from 0 to 100
+   * @return the largest value the percentile's bucket holds, at most the maximum, or 0
+   * if nothing has been recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if(percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentile must be between 0 and 100");
+    }
+    long total = 0;
+    for(int k = 0; k < BUCKETS; k++) {
+      total += this.counts.get(k);
+    }
+    if(total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for(int k = 0; k < BUCKETS; k++) {
+      seen += this.counts.get(k);
+      if(seen >= rank) {
+        return Math.min(highestInBucket(k), this.max.get());
+      }
+    }
+    return this.max.get();
+  }
+
+  /**
+   * Forgets every value recorded. Values recorded at the same time may be kept or lost.
+   */
+  public void reset() {
+    for(int k = 0; k < BUCKETS; k++) {
+      this.counts.set(k, 0);
+    }
+    this.count.reset();
+    this.sum.reset();
+    this.max.set(0);
+  }
+
+  // The bucket of a value: values below 64 each have their own, above that 64 per power of two.
+  private static int index(long value) {
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    if(shift <= 0) {
+      return (int) value;
+    }
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  // The largest value that falls in a bucket.
+  private static long highestInBucket(int index) {
+    if(index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,168 @@
+/*************************************************************************
+  *  Compilation:  javac ImageCache.java
+  *  Execution:    java ImageCache
+  *
+  *  Bounded cache of decoded images, keyed by filename. Used by PennDraw so
+  *  that a picture drawn many times (e.g. the same tile across a display)
+  *  is only decoded once. Least recently used images are evicted once the
+  *  decoded size of the cache exceeds its byte limit.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ImageCache {
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024; // 64 MB of decoded pixels
+
+  private LinkedHashMap<String, BufferedImage> images; // access-ordered, eldest is least recently used
+  private long maxBytes; // upper bound on the decoded size of all cached images
+  private long currentBytes; // decoded size of all cached images
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates a new, empty ImageCache with the default byte limit.
+   */
+  public ImageCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Creates a new, empty ImageCache with the inputted byte limit.
+   * @param maxBytes, the maximum decoded size of all cached images, in bytes
+   */
+  public ImageCache(long maxBytes) {
+    if(maxBytes < 0) {
+      throw new IllegalArgumentException("Cache size limit must not be negative");
+    }
+    this.images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Retrieves the cached image with the given filename, or null if it is not cached.
+   * Counts as a hit or a miss, and marks the image as most recently used.
+   * @param filename, the name of the image
+   */
+  public synchronized BufferedImage get(String filename) {
+    BufferedImage image = this.images.get(filename);
+    if(image == null) {
+      this.misses++;
+    }
+    else {
+      this.hits++;
+    }
+    return image;
+  }
+
+  /**
+   * Checks if the image with the given filename is cached, without counting a hit or
+   * a miss or changing its eviction order.
+   * @param filename, the name of the image
+   */
+  public synchronized boolean contains(String filename) {
+    return this.images.containsKey(filename);
+  }
+  
+  /**
+   * Inserts a decoded image into the cache, evicting least recently used images
+   * until the cache fits within its byte limit. An image larger than the whole
+   * limit is not cached.
+   * @param filename, the name of the image
+   * @param image, the decoded image
+   */
+  public synchronized void put(String filename, BufferedImage image) {
+    long size = sizeOf(image);
+    if(size > this.maxBytes) {
+      return;
+    }
+    BufferedImage previous = this.images.put(filename, image);
+    if(previous != null) {
+      this.currentBytes -= sizeOf(previous);
+    }
+    this.currentBytes += size;
+    this.evict(this.maxBytes);
+  }
+
+  /**
+   * Removes every image from the cache. Counters are left untouched.
+   */
+  public synchronized void clear() {
+    this.images.clear();
+    this.currentBytes = 0;
+  }
+
+  /**
+   * Retrieves the cache's byte limit.
+   */
+  public synchronized long getMaxBytes() {
+    return this.maxBytes;
+  }
+
+  /**
+   * Sets the cache's byte limit, evicting images if the cache no longer fits.
+   * @param maxBytes, the maximum decoded size of all cached images, in bytes
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    if(maxBytes < 0) {
+      throw new IllegalArgumentException("Cache size limit must not be negative");
+    }
+    this.maxBytes = maxBytes;
+    this.evict(maxBytes);
+  }
+
+  /**
+   * Retrieves the decoded size of all cached images, in bytes.
+   */
+  public synchronized long getCurrentBytes() {
+    return this.currentBytes;
+  }
+
+  /**
+   * Retrieves the number of cached images.
+   */
+  public synchronized int size() {
+    return this.images.size();
+  }
+
+  /**
+   * Retrieves the number of lookups that found a cached image.
+   */
+  public synchronized long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Retrieves the number of lookups that did not find a cached image.
+   */
+  public synchronized long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * Retrieves the number of images evicted to stay within the byte limit.
+   */
+  public synchronized long getEvictions() {
+    return this.evictions;
+  }
+
+  // Drops least recently used images until the cache holds at most limit bytes.
+  private void evict(long limit) {
+    Iterator<Map.Entry<String, BufferedImage>> eldest = this.images.entrySet().iterator();
+    while(this.currentBytes > limit && eldest.hasNext()) {
+      this.currentBytes -= sizeOf(eldest.next().getValue());
+      eldest.remove();
+      this.evictions++;
+    }
+  }
+
+  // Decoded size of an image, assuming 4 bytes per pixel.
+  private static long sizeOf(BufferedImage image) {
+    return 4L * image.getWidth() * image.getHeight();
+  }
+}
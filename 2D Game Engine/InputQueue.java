@@ -0,0 +1,259 @@
+/*************************************************************************
+  *  Compilation:  javac InputQueue.java
+  *  Execution:    java InputQueue
+  *
+  *  A lock-free queue of keyboard events, passed from the one thread that
+  *  receives them (Swing's event thread) to the one thread that handles
+  *  them (the game loop). Events are kept as primitives in a ring of
+  *  preallocated arrays: adding one, polling one, or draining every event
+  *  of a tick into a Batch allocates nothing. The producer publishes each
+  *  event with a release write of its position and the consumer frees
+  *  slots the same way, so neither side ever waits for the other. If the
+  *  game stops draining and the ring fills, new events are dropped and
+  *  counted rather than blocking the event thread.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InputQueue {
+  // Types of event.
+  public static final int KEY_PRESSED = 0; // code is a KeyEvent key code
+  public static final int KEY_RELEASED = 1; // code is a KeyEvent key code
+  public static final int KEY_TYPED = 2; // code is the Unicode character typed
+
+  public static final int DEFAULT_CAPACITY = 1024; // events held before new ones are dropped
+
+  private int mask; // capacity - 1; the capacity is a power of two
+  private int[] types;
+  private int[] codes;
+  private long[] times; // System.nanoTime() when each event was added
+
+  private AtomicLong tail; // events ever added; written by the producer only
+  private AtomicLong head; // events ever removed; written by the consumer only
+  private long cachedHead; // the producer's last look at head, so it rarely needs to read it
+  private long cachedTail; // the consumer's last look at tail
+  private AtomicLong dropped;
+
+  // The consumer's current event, after poll.
+  private int type;
+  private int code;
+  private long time;
+
+  /**
+   * Creates a new, empty InputQueue holding DEFAULT_CAPACITY events.
+   */
+  public InputQueue() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new, empty InputQueue.
+   * @param capacity, the number of events held before new ones are dropped, rounded up to a power of two
+   */
+  public InputQueue(int capacity) {
+    if(capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+    }
+    int size = 1;
+    while(size < capacity) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.types = new int[size];
+    this.codes = new int[size];
+    this.times = new long[size];
+    this.tail = new AtomicLong();
+    this.head = new AtomicLong();
+    this.dropped = new AtomicLong();
+  }
+
+  /**
+   * Adds an event, timestamped now. Only ever call this from one thread at a time.
+   * @param type, KEY_PRESSED, KEY_RELEASED or KEY_TYPED
+   * @param code, the key code, or the character typed
+   * @return false if the queue was full and the event was dropped
+   */
+  public boolean offer(int type, int code) {
+    return this.offer(type, code, System.nanoTime());
+  }
+
+  /**
+   * Adds an event. Only ever call this from one thread at a time.
+   * @param type, KEY_PRESSED, KEY_RELEASED or KEY_TYPED
+   * @param code, the key code, or the character typed
+   * @param time, when the event happened, as a System.nanoTime() value
+   * @return false if the queue was full and the event was dropped
+   */
+  public boolean offer(int type, int code, long time) {
+    long tail = this.tail.get();
+    if(tail - this.cachedHead > this.mask) {
+      this.cachedHead = this.head.get();
+      if(tail - this.cachedHead > this.mask) {
+        this.dropped.incrementAndGet();
+        return false;
+      }
+    }
+    int slot = (int) tail & this.mask;
+    this.types[slot] = type;
+    this.codes[slot] = code;
+    this.times[slot] = time;
+    this.tail.lazySet(tail + 1); // publishes the slot's contents along with it
+    return true;
+  }
+
+  /**
+   * Moves on to the next event, if there is one; its fields are then read with getType,
+   * getCode and getTime. Only ever call this from one thread at a time.
+   * @return true if there was an event
+   */
+  public boolean poll() {
+    long head = this.head.get();
+    if(head == this.cachedTail) {
+      this.cachedTail = this.tail.get();
+      if(head == this.cachedTail) {
+        return false;
+      }
+    }
+    int slot = (int) head & this.mask;
+    this.type = this.types[slot];
+    this.code = this.codes[slot];
+    this.time = this.times[slot];
+    this.head.lazySet(head + 1); // hands the slot back to the producer
+    return true;
+  }
+
+  /**
+   * Checks if there is an event to poll, without moving on to it.
+   */
+  public boolean isEmpty() {
+    return this.head.get() == this.tail.get();
+  }
+
+  /**
+   * Retrieves the type of the event at the front of the queue, without removing it.
+   * @return KEY_PRESSED, KEY_RELEASED or KEY_TYPED, or -1 if the queue is empty
+   */
+  public int peekType() {
+    long head = this.head.get();
+    return head == this.tail.get() ? -1 : this.types[(int) head & this.mask];
+  }
+
+  /**
+   * Moves every waiting event into a batch, replacing its contents, so a tick can
+   * handle them all at once. Only ever call this from the polling thread.
+   * @param batch, the batch to be filled; it grows if it is too small
+   * @return the number of events moved
+   */
+  public int drainTo(Batch batch) {
+    long head = this.head.get();
+    long tail = this.tail.get();
+    int count = (int) (tail - head);
+    batch.ensureCapacity(count);
+    for(int k = 0; k < count; k++) {
+      int slot = (int) (head + k) & this.mask;
+      batch.types[k] = this.types[slot];
+      batch.codes[k] = this.codes[slot];
+      batch.times[k] = this.times[slot];
+    }
+    batch.size = count;
+    this.cachedTail = tail;
+    this.head.lazySet(tail);
+    return count;
+  }
+
+  /**
+   * Retrieves the type of the event last polled: KEY_PRESSED, KEY_RELEASED or KEY_TYPED.
+   */
+  public int getType() {
+    return this.type;
+  }
+
+  /**
+   * Retrieves the key code, or the character typed, of the event last polled.
+   */
+  public int getCode() {
+    return this.code;
+  }
+
+  /**
+   * Retrieves when the event last polled happened, as a System.nanoTime() value.
+   */
+  public long getTime() {
+    return this.time;
+  }
+
+  /**
+   * Retrieves the number of events the queue holds before new ones are dropped.
+   */
+  public int getCapacity() {
+    return this.mask + 1;
+  }
+
+  /**
+   * Retrieves the number of events dropped because the queue was full.
+   */
+  public long getDroppedCount() {
+    return this.dropped.get();
+  }
+
+  /**
+   * The events of one tick, in the order they happened, in reusable arrays.
+   */
+  public static class Batch {
+    private int size;
+    private int[] types;
+    private int[] codes;
+    private long[] times;
+
+    /**
+     * Creates a new, empty Batch.
+     */
+    public Batch() {
+      this.types = new int[16];
+      this.codes = new int[16];
+      this.times = new long[16];
+    }
+
+    /**
+     * Retrieves the number of events in the batch.
+     */
+    public int size() {
+      return this.size;
+    }
+
+    /**
+     * Retrieves the type of an event: KEY_PRESSED, KEY_RELEASED or KEY_TYPED.
+     * @param k, the position of the event, from 0 to size() - 1
+     */
+    public int getType(int k) {
+      return this.types[k];
+    }
+
+    /**
+     * Retrieves the key code, or the character typed, of an event.
+     * @param k, the position of the event, from 0 to size() - 1
+     */
+    public int getCode(int k) {
+      return this.codes[k];
+    }
+
+    /**
+     * Retrieves when an event happened, as a System.nanoTime() value.
+     * @param k, the position of the event, from 0 to size() - 1
+     */
+    public long getTime(int k) {
+      return this.times[k];
+    }
+
+    private void ensureCapacity(int count) {
+      if(count > this.types.length) {
+        int capacity = Integer.highestOneBit(count) << 1;
+        this.types = new int[capacity];
+        this.codes = new int[capacity];
+        this.times = new long[capacity];
+      }
+    }
+  }
+}
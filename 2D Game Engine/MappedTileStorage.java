@@ -0,0 +1,220 @@
+/*************************************************************************
+  *  Compilation:  javac MappedTileStorage.java
+  *  Execution:    java MappedTileStorage
+  *
+  *  A TileStorage that reads tiles straight out of a memory-mapped map file
+  *  (see TileMapFile), without copying them into the heap. The mapping is
+  *  copy-on-write, so changing a tile only changes this process's copy of
+  *  the page it is on; the file itself is never written.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+public class MappedTileStorage implements TileStorage {
+  public static final long SEGMENT_SIZE = 1L << 30; // bytes per mapping, as one mapping cannot exceed 2 GB
+
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private int width;
+  private int height;
+  private String pastBorderImage; // the past border image stored in the map file
+  private ByteBuffer[] imageIds; // 2 bytes per tile, in map file order
+  private ByteBuffer[] flags; // 1 byte per tile, in map file order
+
+  // The file's palette, followed by any image names used since it was loaded. The array is
+  // replaced, never changed, when a name is added, so tiles can be read without locking.
+  private volatile String[] palette;
+  private HashMap<String, Integer> paletteIds;
+
+  /**
+   * Creates a new MappedTileStorage over already mapped layers. Use TileMapFile.open
+   * rather than calling this directly.
+   * @param width, the number of tiles along the width
+   * @param height, the number of tiles along the height
+   * @param pastBorderImage, the past border image stored in the map file
+   * @param palette, the image names stored in the map file
+   * @param imageIds, the mapped image id layer
+   * @param flags, the mapped flags layer
+   */
+  public MappedTileStorage(int width, int height, String pastBorderImage, List<String> palette,
+                           ByteBuffer[] imageIds, ByteBuffer[] flags) {
+    this.width = width;
+    this.height = height;
+    this.pastBorderImage = pastBorderImage;
+    this.imageIds = imageIds;
+    this.flags = flags;
+    this.palette = palette.toArray(new String[palette.size()]);
+    this.paletteIds = new HashMap<String, Integer>();
+    for(int id = 0; id < this.palette.length; id++) {
+      this.paletteIds.put(this.palette[id], id);
+    }
+  }
+
+  public int getWidth() {
+    return this.width;
+  }
+
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * Retrieves the past border image stored in the map file.
+   */
+  public String getPastBorderImage() {
+    return this.pastBorderImage;
+  }
+
+  /**
+   * Checks if tiles can be changed. They cannot if the file could only be mapped read-only.
+   */
+  public boolean isWritable() {
+    return !this.flags[0].isReadOnly();
+  }
+
+  public boolean isPopulated(int i, int j) {
+    return this.getImageId(this.index(i, j)) != 0;
+  }
+
+  public Tile getTile(int i, int j) {
+    this.index(i, j);
+    return new TileView(this, i, j);
+  }
+
+  public String getImage(int i, int j) {
+    int id = this.getImageId(this.index(i, j));
+    return id == 0 ? null : this.palette[id - 1];
+  }
+
+  public void setImage(int i, int j, String image) {
+    this.setImageId(this.index(i, j), this.intern(image) + 1);
+  }
+
+  public boolean getHasPlayer(int i, int j) {
+    return (this.getFlags(this.index(i, j)) & 1) != 0;
+  }
+
+  public void setHasPlayer(int i, int j, boolean hasPlayer) {
+    this.setFlag(this.index(i, j), 1, hasPlayer);
+  }
+
+  public boolean getHasEnemy(int i, int j) {
+    return (this.getFlags(this.index(i, j)) & 2) != 0;
+  }
+
+  public void setHasEnemy(int i, int j, boolean hasEnemy) {
+    this.setFlag(this.index(i, j), 2, hasEnemy);
+  }
+
+  public boolean getPassable(int i, int j) {
+    return (this.getFlags(this.index(i, j)) & 4) != 0;
+  }
+
+  public void setPassable(int i, int j, boolean passable) {
+    this.setFlag(this.index(i, j), 4, passable);
+  }
+
+  public void populate(int i, int j, String image, boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    long index = this.index(i, j);
+    this.setImageId(index, this.intern(image) + 1);
+    this.setFlags(index, CompactTileStorage.packFlags(hasPlayer, hasEnemy, passable));
+  }
+
+  public void populateAll(String image, boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    for(int i = 0; i < this.width; i++) {
+      for(int j = 0; j < this.height; j++) {
+        this.populate(i, j, image, hasPlayer, hasEnemy, passable);
+      }
+    }
+  }
+
+  /**
+   * Adds every image name in the palette to the inputted set, without reading any tiles.
+   */
+  public void collectImages(Set<String> images) {
+    for(String image : this.palette) {
+      images.add(image);
+    }
+  }
+
+  /**
+   * Asks the operating system to page in the tiles of the chunk holding the tile at the
+   * inputted location, so that later reads of them do not wait for the disk.
+   * @param i, the horizontal index of a tile in the chunk
+   * @param j, the vertical index of a tile in the chunk
+   */
+  public void touchChunk(int i, int j) {
+    int tilesPerChunk = ChunkedTileStorage.CHUNK_SIZE * ChunkedTileStorage.CHUNK_SIZE;
+    long first = this.index(i, j) / tilesPerChunk * tilesPerChunk;
+    // A chunk is 2 KB of ids and 1 KB of flags, so reading its first and last tile of each
+    // layer faults in every page it spans.
+    this.getImageId(first);
+    this.getImageId(first + tilesPerChunk - 1);
+    this.getFlags(first);
+    this.getFlags(first + tilesPerChunk - 1);
+  }
+
+  // Position of a tile within the layers, checking the tile is on the board.
+  private long index(int i, int j) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the board");
+    }
+    return TileMapFile.tileIndex(i, j, this.height);
+  }
+
+  private int getImageId(long index) {
+    long offset = 2 * index;
+    return this.imageIds[(int) (offset >>> SEGMENT_SHIFT)].getShort((int) (offset & SEGMENT_MASK)) & 0xFFFF;
+  }
+
+  private void setImageId(long index, int id) {
+    this.checkWritable();
+    long offset = 2 * index;
+    this.imageIds[(int) (offset >>> SEGMENT_SHIFT)].putShort((int) (offset & SEGMENT_MASK), (short) id);
+  }
+
+  private int getFlags(long index) {
+    return this.flags[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+  }
+
+  private void setFlags(long index, int value) {
+    this.checkWritable();
+    this.flags[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), (byte) value);
+  }
+
+  private void setFlag(long index, int flag, boolean set) {
+    int value = this.getFlags(index);
+    this.setFlags(index, set ? value | flag : value & ~flag);
+  }
+
+  private void checkWritable() {
+    if(!this.isWritable()) {
+      throw new UnsupportedOperationException("This map file is read-only; load it with " +
+                                              "TileMapFile.loadChunked to change its tiles");
+    }
+  }
+
+  // Palette index of an image name, adding it to the in-memory palette on first use.
+  private synchronized int intern(String image) {
+    Integer id = this.paletteIds.get(image);
+    if(id == null) {
+      if(this.palette.length >= CompactTileStorage.MAX_IMAGES) {
+        throw new RuntimeException("A mapped board cannot use more than " + CompactTileStorage.MAX_IMAGES +
+                                   " images");
+      }
+      String[] palette = new String[this.palette.length + 1];
+      System.arraycopy(this.palette, 0, palette, 0, this.palette.length);
+      id = this.palette.length;
+      palette[id] = image;
+      this.paletteIds.put(image, id);
+      this.palette = palette;
+    }
+    return id;
+  }
+}
@@ -0,0 +1,241 @@
+/*************************************************************************
+  *  Compilation:  javac Metrics.java
+  *  Execution:    java Metrics
+  *
+  *  A registry of named counters and histograms that the engine records
+  *  into while it runs: frame times, tiles drawn and presents per frame,
+  *  image decodes and cache hits, picture and movement times. Counters are
+  *  LongAdders and histograms are HdrHistogram-style (see Histogram), so
+  *  recording from the game thread costs a few nanoseconds and never locks.
+  *  A snapshot of everything, along with how fast the JVM is allocating,
+  *  can be read as one log line or as JSON, or logged periodically from a
+  *  background thread. Recording can be turned off as a whole.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+  private static final Metrics DEFAULT = new Metrics(); // recorded into by PennDraw, and by Games unless told otherwise
+
+  private ConcurrentHashMap<String, LongAdder> counters;
+  private ConcurrentHashMap<String, Histogram> histograms;
+  private volatile boolean enabled;
+  private long startNanos; // when the registry was created
+
+  // The JVM's allocations at the last snapshot, for the allocation rate since then.
+  private long lastAllocatedBytes;
+  private long lastAllocationNanos;
+
+  private ScheduledExecutorService logger; // logs snapshots periodically, or null
+
+  /**
+   * Creates a new, empty Metrics registry with recording turned on.
+   */
+  public Metrics() {
+    this.counters = new ConcurrentHashMap<String, LongAdder>();
+    this.histograms = new ConcurrentHashMap<String, Histogram>();
+    this.enabled = true;
+    this.startNanos = System.nanoTime();
+    this.lastAllocationNanos = this.startNanos;
+    this.lastAllocatedBytes = getTotalAllocatedBytes();
+  }
+
+  /**
+   * Retrieves the registry PennDraw records into, which Games also use by default.
+   */
+  public static Metrics getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Retrieves the counter with the given name, creating it if there is none. Callers
+   * on hot paths should keep the counter rather than look it up every time.
+   * @param name, the name of the counter
+   */
+  public LongAdder counter(String name) {
+    LongAdder counter = this.counters.get(name);
+    return counter != null ? counter : this.counters.computeIfAbsent(name, k -> new LongAdder());
+  }
+
+  /**
+   * Retrieves the histogram with the given name, creating it if there is none.
+   * @param name, the name of the histogram
+   */
+  public Histogram histogram(String name) {
+    Histogram histogram = this.histograms.get(name);
+    return histogram != null ? histogram : this.histograms.computeIfAbsent(name, k -> new Histogram());
+  }
+
+  /**
+   * Checks if recording is turned on. Code that records should check this first, so
+   * that nothing is timed or counted while it is off.
+   */
+  public boolean isEnabled() {
+    return this.enabled;
+  }
+
+  /**
+   * Turns recording on or off.
+   * @param enabled, whether or not to record
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Forgets every value recorded, keeping the counters and histograms themselves.
+   */
+  public void reset() {
+    for(LongAdder counter : this.counters.values()) {
+      counter.reset();
+    }
+    for(Histogram histogram : this.histograms.values()) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * Retrieves the number of bytes the calling thread has allocated since it started,
+   * or -1 if the JVM cannot tell.
+   */
+  public static long getThreadAllocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+    }
+    return -1;
+  }
+
+  /**
+   * Retrieves the rate the JVM has allocated memory at since the last call, in bytes
+   * per second, or -1 if the JVM cannot tell. Snapshots call this.
+   */
+  public synchronized double getAllocationRate() {
+    long allocated = getTotalAllocatedBytes();
+    long now = System.nanoTime();
+    double rate = allocated < 0 || now == this.lastAllocationNanos ? -1 :
+                  (allocated - this.lastAllocatedBytes) * 1e9 / (now - this.lastAllocationNanos);
+    this.lastAllocatedBytes = allocated;
+    this.lastAllocationNanos = now;
+    return rate;
+  }
+
+  /**
+   * Retrieves a snapshot of every counter and histogram as a single line, e.g. for a
+   * log, with histograms as their count, p50, p99 and max. Also measures the allocation rate.
+   */
+  public String toLogLine() {
+    StringBuilder line = new StringBuilder("metrics");
+    line.append(" uptimeMillis=").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos));
+    line.append(" allocationRate=").append(String.format(Locale.ROOT, "%.0f", this.getAllocationRate()));
+    for(Map.Entry<String, LongAdder> counter : new TreeMap<String, LongAdder>(this.counters).entrySet()) {
+      line.append(' ').append(counter.getKey()).append('=').append(counter.getValue().sum());
+    }
+    for(Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(this.histograms).entrySet()) {
+      Histogram histogram = entry.getValue();
+      String name = entry.getKey();
+      line.append(' ').append(name).append(".count=").append(histogram.getCount());
+      line.append(' ').append(name).append(".p50=").append(histogram.getValueAtPercentile(50));
+      line.append(' ').append(name).append(".p99=").append(histogram.getValueAtPercentile(99));
+      line.append(' ').append(name).append(".max=").append(histogram.getMax());
+    }
+    return line.toString();
+  }
+
+  /**
+   * Retrieves a snapshot of every counter and histogram as a JSON object, with histograms
+   * as their count, mean, p50, p90, p99, p99.9 and max. Also measures the allocation rate.
+   */
+  public String toJson() {
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"uptimeMillis\": ").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos));
+    json.append(", \"allocationRate\": ").append(String.format(Locale.ROOT, "%.0f", this.getAllocationRate()));
+    json.append(", \"counters\": {");
+    String separator = "";
+    for(Map.Entry<String, LongAdder> counter : new TreeMap<String, LongAdder>(this.counters).entrySet()) {
+      json.append(separator).append(quote(counter.getKey())).append(": ").append(counter.getValue().sum());
+      separator = ", ";
+    }
+    json.append("}, \"histograms\": {");
+    separator = "";
+    for(Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(this.histograms).entrySet()) {
+      Histogram histogram = entry.getValue();
+      json.append(separator).append(quote(entry.getKey())).append(": {");
+      json.append("\"count\": ").append(histogram.getCount());
+      json.append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", histogram.getMean()));
+      json.append(", \"p50\": ").append(histogram.getValueAtPercentile(50));
+      json.append(", \"p90\": ").append(histogram.getValueAtPercentile(90));
+      json.append(", \"p99\": ").append(histogram.getValueAtPercentile(99));
+      json.append(", \"p999\": ").append(histogram.getValueAtPercentile(99.9));
+      json.append(", \"max\": ").append(histogram.getMax()).append('}');
+      separator = ", ";
+    }
+    return json.append("}}").toString();
+  }
+
+  /**
+   * Starts printing a log line snapshot periodically from a background thread, replacing
+   * any logging already started.
+   * @param periodMillis, the time between log lines in milliseconds
+   * @param out, where the lines are printed
+   */
+  public synchronized void startLogging(long periodMillis, final PrintStream out) {
+    if(periodMillis <= 0) {
+      throw new IllegalArgumentException("Logging period must be positive");
+    }
+    this.stopLogging();
+    this.logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "metrics-logger");
+        thread.setDaemon(true); // never keeps the game running
+        return thread;
+      }
+    });
+    this.logger.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        out.println(Metrics.this.toLogLine());
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops printing log lines, if they were started.
+   */
+  public synchronized void stopLogging() {
+    if(this.logger != null) {
+      this.logger.shutdownNow();
+      this.logger = null;
+    }
+  }
+
+  // The bytes every live thread has allocated, or -1 if the JVM cannot tell.
+  private static long getTotalAllocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    long total = 0;
+    for(long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      if(bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+
+  private static String quote(String name) {
+    return "\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+}
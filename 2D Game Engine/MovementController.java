@@ -0,0 +1,142 @@
+/*************************************************************************
+  *  Compilation:  javac MovementController.java
+  *  Execution:    java MovementController
+  *
+  *  Moves a Player for as long as a movement key is held down (W, A, S, D
+  *  or the arrow keys), at a steady rate set in simulation ticks instead
+  *  of at the operating system's key repeat rate. Each tick, the key
+  *  presses and releases drained from PennDraw's InputQueue update which
+  *  keys are down, so a move starts on the first tick after a key is
+  *  pressed, and a tap shorter than a tick still moves once. While keys
+  *  stay down the player moves at most once every interval ticks, in the
+  *  direction of the most recently pressed key that is still down.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.awt.event.KeyEvent;
+
+public class MovementController {
+  private int interval; // ticks between moves while a key is held
+  private int wait; // ticks left before the next move may be made
+  private boolean[] down; // whether each direction's key is held, by EntityBehavior move
+  private boolean[] pressed; // whether each direction's key was pressed during the current tick
+  private int latest; // the direction whose key was pressed most recently, or EntityBehavior.STAY
+
+  /**
+   * Creates a new MovementController.
+   * @param interval, the number of ticks between moves while a key is held, at least 1
+   */
+  public MovementController(int interval) {
+    this.setInterval(interval);
+    this.down = new boolean[4];
+    this.pressed = new boolean[4];
+    this.latest = EntityBehavior.STAY;
+  }
+
+  /**
+   * Retrieves the number of ticks between moves while a key is held.
+   */
+  public int getInterval() {
+    return this.interval;
+  }
+
+  /**
+   * Sets the number of ticks between moves while a key is held.
+   * @param interval, the number of ticks, at least 1
+   */
+  public void setInterval(int interval) {
+    if(interval < 1) {
+      throw new IllegalArgumentException("Movement interval must be at least 1 tick");
+    }
+    this.interval = interval;
+  }
+
+  /**
+   * Applies one tick of keyboard input to a Player, moving it at most once.
+   * @param game, the game the player is in
+   * @param player, the player controlled by the keyboard
+   * @param input, the keyboard events of this tick
+   */
+  public void tick(Game game, Player player, InputQueue.Batch input) {
+    for(int k = 0; k < input.size(); k++) {
+      int direction = direction(input.getCode(k));
+      if(direction == EntityBehavior.STAY || input.getType(k) == InputQueue.KEY_TYPED) {
+        continue;
+      }
+      if(input.getType(k) == InputQueue.KEY_PRESSED) {
+        // Key repeat sends presses of a key already down; only a fresh press changes direction.
+        if(!this.down[direction]) {
+          this.latest = direction;
+        }
+        this.down[direction] = true;
+        this.pressed[direction] = true;
+      }
+      else {
+        this.down[direction] = false;
+      }
+    }
+
+    int direction = this.choose();
+    if(direction == EntityBehavior.STAY) {
+      this.wait = 0; // the next press moves at once
+    }
+    else if(this.wait <= 0) {
+      move(game, player, direction);
+      this.wait = this.interval;
+    }
+    this.wait--;
+    for(int d = 0; d < 4; d++) {
+      this.pressed[d] = false;
+    }
+  }
+
+  // The direction to move in this tick, or STAY if no movement key is down or was tapped.
+  private int choose() {
+    if(this.latest != EntityBehavior.STAY && (this.down[this.latest] || this.pressed[this.latest])) {
+      return this.latest;
+    }
+    for(int d = 0; d < 4; d++) {
+      if(this.down[d] || this.pressed[d]) {
+        return d;
+      }
+    }
+    return EntityBehavior.STAY;
+  }
+
+  // Makes one move with the Game, which redraws or marks the display as changed if the player moved.
+  private static void move(Game game, Player player, int direction) {
+    if(direction == EntityBehavior.UP) {
+      game.movementUp(player);
+    }
+    else if(direction == EntityBehavior.RIGHT) {
+      game.movementRight(player);
+    }
+    else if(direction == EntityBehavior.DOWN) {
+      game.movementDown(player);
+    }
+    else {
+      game.movementLeft(player);
+    }
+  }
+
+  // The direction a key code moves in, or STAY if it is not a movement key.
+  private static int direction(int keycode) {
+    switch(keycode) {
+      case KeyEvent.VK_W:
+      case KeyEvent.VK_UP:
+        return EntityBehavior.UP;
+      case KeyEvent.VK_D:
+      case KeyEvent.VK_RIGHT:
+        return EntityBehavior.RIGHT;
+      case KeyEvent.VK_S:
+      case KeyEvent.VK_DOWN:
+        return EntityBehavior.DOWN;
+      case KeyEvent.VK_A:
+      case KeyEvent.VK_LEFT:
+        return EntityBehavior.LEFT;
+      default:
+        return EntityBehavior.STAY;
+    }
+  }
+}
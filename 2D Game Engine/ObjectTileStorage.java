@@ -0,0 +1,110 @@
+/*************************************************************************
+  *  Compilation:  javac ObjectTileStorage.java
+  *  Execution:    java ObjectTileStorage
+  *
+  *  The default TileStorage: a 2D-Array holding one Tile object per cell.
+  *  Simple and fast for small boards, but every cell is its own object.
+  *  The images given through the storage are remembered as they are set,
+  *  so they can be listed without visiting every cell.
+  * 
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class ObjectTileStorage implements TileStorage {
+  private Tile[][] tiles;
+  private int width;
+  private int height;
+  private Set<String> images; // every image set through the storage, in order of first use
+  
+  /**
+   * Creates a new ObjectTileStorage of unpopulated (null) tiles.
+   * @param width, the number of tiles along the width
+   * @param height, the number of tiles along the height
+   */
+  public ObjectTileStorage(int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.tiles = new Tile[width][height];
+    this.images = new LinkedHashSet<String>();
+  }
+  
+  /**
+   * Retrieves the underlying Tile[][].
+   */
+  public Tile[][] getTiles() {
+    return this.tiles;
+  }
+  
+  public int getWidth() {
+    return this.width;
+  }
+  
+  public int getHeight() {
+    return this.height;
+  }
+  
+  public boolean isPopulated(int i, int j) {
+    return this.tiles[i][j] != null;
+  }
+  
+  public Tile getTile(int i, int j) {
+    return this.tiles[i][j];
+  }
+  
+  public String getImage(int i, int j) {
+    return this.tiles[i][j].getImage();
+  }
+  
+  public void setImage(int i, int j, String image) {
+    this.tiles[i][j].setImage(image);
+    this.images.add(image);
+  }
+  
+  public boolean getHasPlayer(int i, int j) {
+    return this.tiles[i][j].getHasPlayer();
+  }
+  
+  public void setHasPlayer(int i, int j, boolean hasPlayer) {
+    this.tiles[i][j].setHasPlayer(hasPlayer);
+  }
+  
+  public boolean getHasEnemy(int i, int j) {
+    return this.tiles[i][j].getHasEnemy();
+  }
+  
+  public void setHasEnemy(int i, int j, boolean hasEnemy) {
+    this.tiles[i][j].setHasEnemy(hasEnemy);
+  }
+  
+  public boolean getPassable(int i, int j) {
+    return this.tiles[i][j].getPassable();
+  }
+  
+  public void setPassable(int i, int j, boolean passable) {
+    this.tiles[i][j].setPassable(passable);
+  }
+  
+  public void populate(int i, int j, String image, boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    this.tiles[i][j] = new Tile(image, hasPlayer, hasEnemy, passable);
+    this.images.add(image);
+  }
+  
+  public void populateAll(String image, boolean hasPlayer, boolean hasEnemy, boolean passable) {
+    for(int i = 0; i < this.width; i++) {
+      for(int j = 0; j < this.height; j++) {
+        this.populate(i, j, image, hasPlayer, hasEnemy, passable);
+      }
+    }
+  }
+  
+  /**
+   * Adds every image set through the storage to the inputted set. Images set on the
+   * Tile objects themselves are not seen; they are packed when first drawn instead.
+   */
+  public void collectImages(Set<String> images) {
+    images.addAll(this.images);
+  }
+}
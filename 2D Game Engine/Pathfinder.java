@@ -0,0 +1,236 @@
+/*************************************************************************
+  *  Compilation:  javac Pathfinder.java
+  *  Execution:    java Pathfinder
+  *
+  *  Finds shortest routes across a TileBoard with A*, stepping up, down,
+  *  left and right. Tiles are walkable if they are passable or merely
+  *  claimed by a player or entity, since whoever stands there now may have
+  *  moved on by the time the route gets there; the claim made at each step
+  *  decides that. The open set is a binary heap of primitive keys and the
+  *  closed set is a generation count per tile, both kept between searches,
+  *  so a search allocates nothing but the route it returns. A Pathfinder
+  *  is not thread-safe; give each thread its own.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.Arrays;
+
+public class Pathfinder {
+  public static final int MAX_TILES = 1 << 28; // larger boards need more scratch memory than is sensible
+
+  private TileBoard board;
+  private int width;
+  private int height;
+
+  // Per tile, indexed by i * height + j. A tile's entries only count if its generation is the current one.
+  private int[] opened; // generation in which the tile was last reached
+  private int[] closed; // generation in which the tile was last expanded
+  private int[] costs; // steps from the start along the best route found so far
+  private byte[] moves; // the EntityBehavior move that reached the tile on that route
+  private int generation;
+
+  // The open set: a binary heap of (estimated total << 32 | estimated remainder) keys and their tiles.
+  private long[] heapKeys;
+  private int[] heapTiles;
+  private int heapSize;
+
+  private int expanded; // tiles expanded by the last search
+
+  /**
+   * Creates a new Pathfinder for a TileBoard.
+   * @param board, the board routes are found on
+   */
+  public Pathfinder(TileBoard board) {
+    this.board = board;
+    this.width = board.getNumTilesWidth();
+    this.height = board.getNumTilesHeight();
+    if((long) this.width * this.height > MAX_TILES) {
+      throw new IllegalArgumentException("Board is too large to search whole; it has over " + MAX_TILES + " tiles");
+    }
+    int tiles = this.width * this.height;
+    this.opened = new int[tiles];
+    this.closed = new int[tiles];
+    this.costs = new int[tiles];
+    this.moves = new byte[tiles];
+    this.heapKeys = new long[64];
+    this.heapTiles = new int[64];
+  }
+
+  /**
+   * Finds a shortest route between two tiles. The start and goal tiles need not be
+   * walkable, since the mover and often its target stand on them.
+   * @param fromI, the horizontal index of the start tile
+   * @param fromJ, the vertical index of the start tile
+   * @param toI, the horizontal index of the goal tile
+   * @param toJ, the vertical index of the goal tile
+   * @return the moves of the route in order, each EntityBehavior.UP, RIGHT, DOWN or LEFT;
+   * empty if the start is the goal, or null if the goal cannot be reached
+   */
+  public int[] findPath(int fromI, int fromJ, int toI, int toJ) {
+    this.check(fromI, fromJ);
+    this.check(toI, toJ);
+    this.nextGeneration();
+    int start = fromI * this.height + fromJ;
+    int goal = toI * this.height + toJ;
+    this.expanded = 0;
+    // A walled-in start or goal would otherwise cost a search of everything reachable from the start.
+    if(distance(fromI, fromJ, toI, toJ) > 1 && (this.isWalledIn(fromI, fromJ) || this.isWalledIn(toI, toJ))) {
+      return null;
+    }
+    this.heapSize = 0;
+    this.opened[start] = this.generation;
+    this.costs[start] = 0;
+    this.push(start, distance(fromI, fromJ, toI, toJ), distance(fromI, fromJ, toI, toJ));
+    while(this.heapSize > 0) {
+      int tile = this.pop();
+      if(this.closed[tile] == this.generation) {
+        continue; // a stale entry for a tile already reached more cheaply
+      }
+      this.closed[tile] = this.generation;
+      this.expanded++;
+      if(tile == goal) {
+        return this.route(goal);
+      }
+      int i = tile / this.height;
+      int j = tile - i * this.height;
+      int cost = this.costs[tile] + 1;
+      if(j + 1 < this.height) {
+        this.relax(tile + 1, i, j + 1, cost, EntityBehavior.UP, goal, toI, toJ);
+      }
+      if(i + 1 < this.width) {
+        this.relax(tile + this.height, i + 1, j, cost, EntityBehavior.RIGHT, goal, toI, toJ);
+      }
+      if(j > 0) {
+        this.relax(tile - 1, i, j - 1, cost, EntityBehavior.DOWN, goal, toI, toJ);
+      }
+      if(i > 0) {
+        this.relax(tile - this.height, i - 1, j, cost, EntityBehavior.LEFT, goal, toI, toJ);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Retrieves the number of tiles expanded by the last search, a measure of its cost.
+   */
+  public int getExpandedCount() {
+    return this.expanded;
+  }
+
+  /**
+   * Checks if a route may pass through a tile: it is passable, or only a player or
+   * entity stands on it.
+   * @param board, the board in question
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public static boolean isWalkable(TileBoard board, int i, int j) {
+    return board.getTilePassable(i, j) || board.isTileClaimed(i, j);
+  }
+
+  // Reaches a neighbouring tile, if it is walkable and this route to it is the cheapest yet.
+  private void relax(int tile, int i, int j, int cost, int move, int goal, int toI, int toJ) {
+    if(this.closed[tile] == this.generation ||
+       (this.opened[tile] == this.generation && this.costs[tile] <= cost)) {
+      return;
+    }
+    if(tile != goal && !isWalkable(this.board, i, j)) {
+      return;
+    }
+    this.opened[tile] = this.generation;
+    this.costs[tile] = cost;
+    this.moves[tile] = (byte) move;
+    int remaining = distance(i, j, toI, toJ);
+    this.push(tile, cost + remaining, remaining);
+  }
+
+  // Checks if no neighbour of a tile is walkable.
+  private boolean isWalledIn(int i, int j) {
+    return (j + 1 >= this.height || !isWalkable(this.board, i, j + 1)) &&
+           (i + 1 >= this.width || !isWalkable(this.board, i + 1, j)) &&
+           (j <= 0 || !isWalkable(this.board, i, j - 1)) &&
+           (i <= 0 || !isWalkable(this.board, i - 1, j));
+  }
+
+  // Walks back from the goal along the moves that reached each tile.
+  private int[] route(int goal) {
+    int[] route = new int[this.costs[goal]];
+    int tile = goal;
+    for(int step = route.length - 1; step >= 0; step--) {
+      int move = this.moves[tile];
+      route[step] = move;
+      tile -= move == EntityBehavior.UP ? 1 : move == EntityBehavior.DOWN ? -1 :
+              move == EntityBehavior.RIGHT ? this.height : -this.height;
+    }
+    return route;
+  }
+
+  private static int distance(int i, int j, int toI, int toJ) {
+    return Math.abs(i - toI) + Math.abs(j - toJ);
+  }
+
+  private void check(int i, int j) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the board");
+    }
+  }
+
+  // Starts a new search, forgetting every tile at once by moving to the next generation.
+  private void nextGeneration() {
+    if(this.generation == Integer.MAX_VALUE) {
+      Arrays.fill(this.opened, 0);
+      Arrays.fill(this.closed, 0);
+      this.generation = 0;
+    }
+    this.generation++;
+  }
+
+  // Adds a tile to the open set. Ties on the total go to the tile nearer the goal.
+  private void push(int tile, int total, int remaining) {
+    if(this.heapSize == this.heapKeys.length) {
+      this.heapKeys = Arrays.copyOf(this.heapKeys, this.heapSize * 2);
+      this.heapTiles = Arrays.copyOf(this.heapTiles, this.heapSize * 2);
+    }
+    long key = (long) total << 32 | remaining;
+    int child = this.heapSize++;
+    while(child > 0) {
+      int parent = (child - 1) >>> 1;
+      if(this.heapKeys[parent] <= key) {
+        break;
+      }
+      this.heapKeys[child] = this.heapKeys[parent];
+      this.heapTiles[child] = this.heapTiles[parent];
+      child = parent;
+    }
+    this.heapKeys[child] = key;
+    this.heapTiles[child] = tile;
+  }
+
+  // Removes and returns the tile with the smallest key.
+  private int pop() {
+    int top = this.heapTiles[0];
+    int size = --this.heapSize;
+    long key = this.heapKeys[size];
+    int tile = this.heapTiles[size];
+    int parent = 0;
+    while(true) {
+      int child = 2 * parent + 1;
+      if(child >= size) {
+        break;
+      }
+      if(child + 1 < size && this.heapKeys[child + 1] < this.heapKeys[child]) {
+        child++;
+      }
+      if(this.heapKeys[child] >= key) {
+        break;
+      }
+      this.heapKeys[parent] = this.heapKeys[child];
+      this.heapTiles[parent] = this.heapTiles[child];
+      parent = child;
+    }
+    this.heapKeys[parent] = key;
+    this.heapTiles[parent] = tile;
+    return top;
+  }
+}
@@ -28,8 +28,18 @@ import java.awt.geom.*;
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
-import java.util.LinkedList;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 import javax.imageio.ImageIO;
 import javax.swing.*;
 
@@ -108,6 +118,17 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     // 0 to draw as soon as advance() is called
     // -1 to disable animation mode
     private static int animationSpeed = -1;
+
+    // frame batching: between beginFrame() and endFrame() drawing only goes to the
+    // offscreen buffer, and the whole frame is shown on screen once at the end
+    private static boolean inFrame = false;
+    private static boolean deferBeforeFrame = false;
+
+    // how many times the offscreen buffer has been copied on screen, in total and per frame
+    private static long presentCount = 0;
+    private static long frameCount = 0;
+    private static long presentsAtFrameStart = 0;
+    private static long presentsInLastFrame = 0;
     
     
     // boundary of drawing canvas, 0% border, scale factor to convert back to window coordinates
@@ -123,7 +144,6 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
 
     // for synchronization
     private static Object mouseLock = new Object();
-    private static Object keyLock = new Object();
 
     // default font
     private static final Font DEFAULT_FONT = new Font("SansSerif", Font.PLAIN, 16);
@@ -138,19 +158,41 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     // singleton for callbacks: avoids generation of extra .class files
     private static PennDraw std = new PennDraw();
 
-    // the frame for drawing to the screen
+    // the frame for drawing to the screen, or null when running headless or until something is
+    // first shown, so that drawing headless never creates a window or starts the event thread
     private static JFrame frame;
 
+    // set while init() clears the new canvas, which is not yet a reason to open a window
+    private static boolean initializing;
+
+    // headless mode: draw into the canvas images only, without a window; the default when
+    // Java itself runs headless (java.awt.headless=true) or penndraw.headless is set
+    private static boolean headless = GraphicsEnvironment.isHeadless() || Boolean.getBoolean("penndraw.headless");
+
     // mouse state
     private static boolean mousePressed = false;
     private static double mouseX = 0;
     private static double mouseY = 0;
 
-    // queue of typed key characters
-    private static LinkedList<Character> keysTyped = new LinkedList<Character>();
+    // key presses, releases and typed characters, from the event thread to the game
+    private static InputQueue input = new InputQueue();
+
+    // typed characters again, for hasNextKeyTyped and nextKeyTyped, so reading them
+    // neither takes nor skips the presses and releases a game loop drains from input
+    private static InputQueue typed = new InputQueue();
+
+    // one bit per key code (below 65536) currently pressed down
+    private static AtomicIntegerArray keysDown = new AtomicIntegerArray(65536 / 32);
+
+    // decoded images, so repeated pictures are only read from disk once
+    private static ImageCache imageCache = new ImageCache();
 
-    // set of key codes currently pressed down
-    private static TreeSet<Integer> keysDown = new TreeSet<Integer>();
+    // where image loading and picture drawing are timed and counted
+    private static Metrics metrics = Metrics.getDefault();
+    private static LongAdder imageCacheHits = metrics.counter("image.cacheHits");
+    private static LongAdder imageDecodes = metrics.counter("image.decodes");
+    private static Histogram imageDecodeNanos = metrics.histogram("image.decode.nanos");
+    private static Histogram pictureNanos = metrics.histogram("picture.nanos");
   
 
     // singleton pattern: client can't instantiate
@@ -188,8 +230,10 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     private static void init() {
         // init() should only be called once at class initialization, and when the canvas is resized
 
-        if (frame != null) frame.setVisible(false);
-        frame = new JFrame();
+        // a frame that is only hidden keeps the event thread, and so the JVM, alive
+        if (frame != null) frame.dispose();
+        frame = null;
+        initializing = true;
         offscreenImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
         onscreenImage  = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
         offscreen = offscreenImage.createGraphics();
@@ -208,8 +252,12 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
                                                   RenderingHints.VALUE_ANTIALIAS_ON);
         hints.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         offscreen.addRenderingHints(hints);
+        initializing = false;
+    }
 
-        // frame stuff
+    // create the frame the first time something is shown in a window
+    private static void createFrame() {
+        frame = new JFrame();
         ImageIcon icon = new ImageIcon(onscreenImage);
         JLabel draw = new JLabel(icon);
 
@@ -229,6 +277,57 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
         frame.setVisible(true);
     }
 
+    // dots per inch of the screen, or a typical 96 when there is no window
+    private static int screenResolution() {
+        if (frame == null) return 96;
+        return frame.getToolkit().getScreenResolution();
+    }
+
+    /**
+     * Turn headless mode on or off. In headless mode nothing is shown in a window:
+     * drawing goes to the canvas images only, which can be read with
+     * <tt>getCanvasImage()</tt> or saved with <tt>save()</tt>. Switching modes
+     * resets the canvas like <tt>setCanvasSize()</tt>; switching to headless mode
+     * also disposes of the window, which is only created again when something is
+     * next shown in windowed mode.
+     * @param isHeadless true to draw without a window
+     * @throws HeadlessException if a window is requested but Java is running headless
+     */
+    public static void setHeadless(boolean isHeadless) {
+        if (!isHeadless && GraphicsEnvironment.isHeadless())
+            throw new HeadlessException("PennDraw cannot open a window: Java is running headless");
+        if (headless == isHeadless) return;
+        headless = isHeadless;
+        init();
+    }
+
+    /**
+     * Is PennDraw drawing without a window?
+     * @return true if in headless mode, false otherwise
+     */
+    public static boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * Get the image shown on screen, i.e. the canvas as of the last time it was
+     * shown. In headless mode this is the only way to see what was drawn.
+     * @return the onscreen canvas image (not a copy)
+     */
+    public static BufferedImage getCanvasImage() {
+        return onscreenImage;
+    }
+
+    /**
+     * Get the offscreen buffer that drawing goes to, for code that writes many
+     * pixels at once without going through the drawing methods. Such writes are
+     * not shown on screen until the next drawing method or <tt>show()</tt>.
+     * @return the offscreen canvas image (not a copy)
+     */
+    public static BufferedImage getOffscreenImage() {
+        return offscreenImage;
+    }
+
     // create the menu bar (changed to private)
     private static JMenuBar createMenuBar() {
         JMenuBar menuBar = new JMenuBar();
@@ -405,7 +504,7 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     public static void setPenWidthInPoints(double w) {
         if (w < 0) throw new IllegalArgumentException("pen radius must be nonnegative");
 
-        int dpi = frame.getToolkit().getScreenResolution();
+        int dpi = screenResolution();
         setPenRadius(dpi * w / (144 * width));
     }
 
@@ -523,7 +622,7 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * @param pixelHeight the desired font size in pixels
      */
     public static void setFontSizeInPixels(double pixelHeight) {
-        int dpi = frame.getToolkit().getScreenResolution();
+        int dpi = screenResolution();
         double pointSize = pixelHeight * dpi / 72;
         System.out.println(dpi);
         System.out.println(pointSize);
@@ -1017,8 +1116,41 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     *  Drawing images.
     *************************************************************************/
 
-    // get an image from the given filename
+    // get an image from the given filename, decoding it only if it is not already cached
     private static Image getImage(String filename) {
+        return getImage(filename, false);
+    }
+
+    // the same, reading the file with ImageIO if asked to and it can
+    private static Image getImage(String filename, boolean imageIO) {
+        BufferedImage cached = imageCache.get(filename);
+        if (cached != null) {
+            if (metrics.isEnabled()) imageCacheHits.increment();
+            return cached;
+        }
+
+        EngineEvents.ImageLoadEvent event = new EngineEvents.ImageLoadEvent();
+        event.begin();
+        long start = System.nanoTime();
+        BufferedImage decoded = toBufferedImage(filename, imageIO ? readImageIO(filename) : readImage(filename));
+        imageCache.put(filename, decoded);
+        if (metrics.isEnabled()) {
+            imageDecodes.increment();
+            imageDecodeNanos.record(System.nanoTime() - start);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.image = filename;
+            event.width = decoded.getWidth();
+            event.height = decoded.getHeight();
+            event.bytes = 4L * decoded.getWidth() * decoded.getHeight();
+            event.commit();
+        }
+        return decoded;
+    }
+
+    // read and decode an image from the given filename
+    private static Image readImage(String filename) {
 
         // to read from file
         ImageIcon icon = new ImageIcon(filename);
@@ -1041,6 +1173,99 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
         return icon.getImage();
     }
 
+    // read and decode an image file on the calling thread with ImageIO, or as readImage does if
+    // it is not a file ImageIO can read; every ImageIcon load waits its turn on one shared
+    // MediaTracker, so only ImageIO decodes several images at once
+    private static Image readImageIO(String filename) {
+        File file = new File(filename);
+        if (file.isFile()) {
+            try {
+                BufferedImage image = ImageIO.read(file);
+                if (image != null) return image;
+            } catch (IOException e) { /* let ImageIcon try */ }
+        }
+        return readImage(filename);
+    }
+
+    // copy a fully loaded image into a BufferedImage, which can be drawn without further decoding
+    private static BufferedImage toBufferedImage(String filename, Image image) {
+        int iw = image.getWidth(null);
+        int ih = image.getHeight(null);
+        if (iw <= 0 || ih <= 0) throw new IllegalArgumentException("image " + filename + " is corrupt");
+        BufferedImage buffered = new BufferedImage(iw, ih, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = buffered.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return buffered;
+    }
+
+    /**
+     * Get the decoded image with the given filename, reading it from disk
+     * only if it is not already in the image cache.
+     * @param filename the name of the image/picture, e.g., "ball.gif"
+     * @return the decoded image
+     * @throws IllegalArgumentException if the image is missing or corrupt
+     */
+    public static BufferedImage loadImage(String filename) {
+        return (BufferedImage) getImage(filename);
+    }
+
+    /**
+     * Decode images into the image cache ahead of time, several at once, so
+     * that drawing them later never stops to read them from disk. Images
+     * already in the cache are skipped.
+     * @param filenames the names of the images, e.g., "ball.gif"
+     * @param threads the most images decoded at once
+     * @return the number of images decoded
+     * @throws IllegalArgumentException if an image is missing or corrupt
+     */
+    public static int preloadImages(Collection<String> filenames, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        List<String> missing = new ArrayList<String>();
+        for (String filename : new LinkedHashSet<String>(filenames)) {
+            if (!imageCache.contains(filename)) missing.add(filename);
+        }
+        if (missing.isEmpty()) return 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, missing.size()));
+        try {
+            List<Future<Image>> loads = new ArrayList<Future<Image>>();
+            for (final String filename : missing) {
+                loads.add(pool.submit(new Callable<Image>() {
+                    public Image call() {
+                        return getImage(filename, true);
+                    }
+                }));
+            }
+            for (Future<Image> load : loads) {
+                try {
+                    load.get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("interrupted while preloading images", e);
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        return missing.size();
+    }
+
+    /**
+     * Get the cache of decoded images used by the picture methods, for
+     * inspecting its hit and miss counters or changing its size limit.
+     * @return the image cache
+     */
+    public static ImageCache getImageCache() {
+        return imageCache;
+    }
+
     /**
      * Draw picture (gif, jpg, or png) centered on (x, y).
      * @param x the center x-coordinate of the image
@@ -1093,6 +1318,7 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * @throws IllegalArgumentException if the image is corrupt
      */
     public static void picture(double x, double y, String s, double w, double h, double degrees) {
+        long start = System.nanoTime();
         Image image = getImage(s);
         int iw = image.getWidth(null);
         int ih = image.getHeight(null);
@@ -1117,6 +1343,29 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
 
         if (degrees != 0) offscreen.setTransform(t);
         draw();
+        if (metrics.isEnabled()) pictureNanos.record(System.nanoTime() - start);
+    }
+
+
+    /**
+     * Draw the sw-by-sh region of an image whose upper left corner is (sx, sy),
+     * unscaled and centered on (x, y). This is used to copy a single sprite out
+     * of a larger sheet without rescaling it.
+     * @param x the center x-coordinate of the region
+     * @param y the center y-coordinate of the region
+     * @param image the image containing the region
+     * @param sx the left pixel column of the region within the image
+     * @param sy the top pixel row of the region within the image
+     * @param sw the width of the region in pixels
+     * @param sh the height of the region in pixels
+     */
+    public static void picture(double x, double y, Image image, int sx, int sy, int sw, int sh) {
+        long start = System.nanoTime();
+        int left = (int) Math.round(scaleX(x) - 0.5 * sw);
+        int top  = (int) Math.round(height - yscale * (y - ymin) - 0.5 * sh);
+        offscreen.drawImage(image, left, top, left + sw, top + sh, sx, sy, sx + sw, sy + sh, null);
+        draw();
+        if (metrics.isEnabled()) pictureNanos.record(System.nanoTime() - start);
     }
 
 
@@ -1254,7 +1503,64 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     private static void draw() {
         if (defer) return;
         onscreen.drawImage(offscreenImage, 0, 0, null);
-        frame.repaint();
+        if (frame == null && !headless && !initializing) createFrame();
+        if (frame != null) frame.repaint();
+        presentCount++;
+    }
+
+    /**
+     * Start a frame: subsequent drawing goes only to the offscreen buffer until
+     * the matching call to <tt>endFrame()</tt>, which shows the whole frame on
+     * screen at once. Unlike <tt>show(0)</tt> this does not show anything now, and
+     * the previous animation mode is restored when the frame ends.
+     * @throws RuntimeException if a frame has already been started
+     */
+    public static void beginFrame() {
+        if (inFrame) throw new RuntimeException("PennDraw.beginFrame() called twice without PennDraw.endFrame()");
+        inFrame = true;
+        deferBeforeFrame = defer;
+        defer = true;
+        presentsAtFrameStart = presentCount;
+    }
+
+    /**
+     * End the frame started by <tt>beginFrame()</tt>: show it on screen with a
+     * single copy of the offscreen buffer and restore the previous animation mode.
+     * @throws RuntimeException if no frame has been started
+     */
+    public static void endFrame() {
+        if (!inFrame) throw new RuntimeException("PennDraw.endFrame() called without PennDraw.beginFrame()");
+        defer = false;
+        draw();
+        defer = deferBeforeFrame;
+        inFrame = false;
+        frameCount++;
+        presentsInLastFrame = presentCount - presentsAtFrameStart;
+    }
+
+    /**
+     * Get the number of times the offscreen buffer has been copied on screen.
+     * @return the total number of presents
+     */
+    public static long getPresentCount() {
+        return presentCount;
+    }
+
+    /**
+     * Get the number of frames ended with <tt>endFrame()</tt>.
+     * @return the total number of frames
+     */
+    public static long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Get the number of times the offscreen buffer was copied on screen during
+     * the last frame, which is 1 unless something forced an early present.
+     * @return the number of presents in the last frame
+     */
+    public static long getPresentsInLastFrame() {
+        return presentsInLastFrame;
     }
 
     /**
@@ -1443,14 +1749,31 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     *  Keyboard interactions.
     *************************************************************************/
 
+    /**
+     * Get the queue of keyboard events, for a game loop to poll or drain once per tick
+     * without locking or allocating. Only one thread should take events from it.
+     * @return the queue that key presses, releases and typed keys are added to
+     */
+    public static InputQueue getInputQueue() {
+        return input;
+    }
+
+    /**
+     * Get the queue of typed keys that <tt>hasNextKeyTyped</tt> and <tt>nextKeyTyped</tt>
+     * read from. Each typed key is added both to it and to the <tt>InputQueue</tt>, so
+     * either can be read without taking events from the other.
+     * @return the queue that typed keys are added to
+     */
+    public static InputQueue getTypedKeyQueue() {
+        return typed;
+    }
+
     /**
      * Has the user typed a key?
      * @return true if the user has typed a key, false otherwise
      */
     public static boolean hasNextKeyTyped() {
-        synchronized (keyLock) {
-            return !keysTyped.isEmpty();
-        }
+        return !typed.isEmpty();
     }
 
     /**
@@ -1461,9 +1784,8 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * @return the next Unicode key typed
      */
     public static char nextKeyTyped() {
-        synchronized (keyLock) {
-            return keysTyped.removeLast();
-        }
+        if (!typed.poll()) throw new NoSuchElementException("No key has been typed");
+        return (char) typed.getCode();
     }
 
     /**
@@ -1475,9 +1797,8 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * @return true if keycode is currently being pressed, false otherwise
      */
     public static boolean isKeyPressed(int keycode) {
-        synchronized (keyLock) {
-            return keysDown.contains(keycode);
-        }
+        if (keycode < 0 || keycode >= 65536) return false;
+        return (keysDown.get(keycode >>> 5) & (1 << keycode)) != 0;
     }
 
 
@@ -1485,27 +1806,35 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * This method cannot be called directly.
      */
     public void keyTyped(KeyEvent e) {
-        synchronized (keyLock) {
-            keysTyped.addFirst(e.getKeyChar());
-        }
+        input.offer(InputQueue.KEY_TYPED, e.getKeyChar());
+        typed.offer(InputQueue.KEY_TYPED, e.getKeyChar());
     }
 
     /**
      * This method cannot be called directly.
      */
     public void keyPressed(KeyEvent e) {
-        synchronized (keyLock) {
-            keysDown.add(e.getKeyCode());
-        }
+        setKeyDown(e.getKeyCode(), true);
+        input.offer(InputQueue.KEY_PRESSED, e.getKeyCode());
     }
 
     /**
      * This method cannot be called directly.
      */
     public void keyReleased(KeyEvent e) {
-        synchronized (keyLock) {
-            keysDown.remove(e.getKeyCode());
-        }
+        setKeyDown(e.getKeyCode(), false);
+        input.offer(InputQueue.KEY_RELEASED, e.getKeyCode());
+    }
+
+    // sets or clears a key code's bit in keysDown
+    private static void setKeyDown(int keycode, boolean down) {
+        if (keycode < 0 || keycode >= 65536) return;
+        int word = keycode >>> 5;
+        int bit = 1 << keycode;
+        int bits;
+        do {
+            bits = keysDown.get(word);
+        } while (!keysDown.compareAndSet(word, bits, down ? bits | bit : bits & ~bit));
     }
 
     /**
@@ -17,6 +17,7 @@ public class Player {
   private int secondTileIndex; // Index of second array of 2D array of Tileboard on which player starts
   private int displayWidth; // Number of tiles along the width of the display around the player
   private int displayHeight; // Number of tiles along the height of the display around the player
+  private Entity entity; // lists the player in its board's EntityIndex
   
   /**
    * Creates a new Player object with inputted fields and the default facing position, 0
@@ -32,7 +33,7 @@ public class Player {
   public Player(String image, TileBoard board, int firstTileIndex, int secondTileIndex,
                 int displayWidth, int displayHeight) {
     // Player's starting position cannot be outside of the board's bounds. 
-    if(firstTileIndex >= board.getTileBoard().length || secondTileIndex >= board.getTileBoard()[0].length) {
+    if(firstTileIndex >= board.getNumTilesWidth() || secondTileIndex >= board.getNumTilesHeight()) {
       throw new RuntimeException("Starting player index must not be outside of game area's bounds.");
     }
     
@@ -46,8 +47,9 @@ public class Player {
     this.firstTileIndex = firstTileIndex;
     this.secondTileIndex = secondTileIndex;
     
-    this.board.getTileBoard()[firstTileIndex][secondTileIndex].setHasPlayer(true);
-    this.board.getTileBoard()[firstTileIndex][secondTileIndex].setPassable(false);
+    this.board.occupyTile(firstTileIndex, secondTileIndex, Entity.PLAYER);
+    this.entity = new Entity(Entity.PLAYER, image);
+    this.board.getEntities().add(this.entity, firstTileIndex, secondTileIndex);
     
     this.displayWidth = displayWidth;
     this.displayHeight = displayHeight;
@@ -66,7 +68,7 @@ public class Player {
   public Player(String image, int facingValue, TileBoard board, int firstTileIndex, int secondTileIndex,
                 int displayWidth, int displayHeight) {
     // Player's starting position cannot be outside of the board's bounds. 
-    if(firstTileIndex >= board.getTileBoard().length || secondTileIndex >= board.getTileBoard()[0].length) {
+    if(firstTileIndex >= board.getNumTilesWidth() || secondTileIndex >= board.getNumTilesHeight()) {
       throw new RuntimeException("Starting player index must not be outside of game area's bounds.");
     }
     
@@ -80,8 +82,9 @@ public class Player {
     this.firstTileIndex = firstTileIndex;
     this.secondTileIndex = secondTileIndex;
     
-    this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(true);
-    this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(false);
+    this.board.occupyTile(this.firstTileIndex, this.secondTileIndex, Entity.PLAYER);
+    this.entity = new Entity(Entity.PLAYER, image);
+    this.board.getEntities().add(this.entity, this.firstTileIndex, this.secondTileIndex);
     
     this.displayWidth = displayWidth;
     this.displayHeight = displayHeight;
@@ -101,6 +104,13 @@ public class Player {
     return this.facingValue;
   }
   
+  /**
+   * Retrieves the entity that lists the given player in its board's EntityIndex.
+   */
+  public Entity getEntity() {
+    return this.entity;
+  }
+  
   /**
    * Retrieves the given player's TileBoard.
    */
@@ -144,24 +154,24 @@ public class Player {
    * Moves the player 1 space up on its respective TileBoard, if possible.
    */
   public void moveUp() {
+    this.facingValue = 0; // Turn up, even if the move is blocked.
     // If above tile goes beyond the board's bounds or above tile is unpassable
-    // (has player/enemy/wall), do nothing.
-    if(this.secondTileIndex + 1 >= this.board.getTileBoard()[0].length ||
-       !(this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex + 1].getPassable())) {
+    // (has player/enemy/wall), do nothing. Otherwise the tile is claimed atomically,
+    // so no other mover can take it at the same time.
+    if(this.secondTileIndex + 1 >= this.board.getNumTilesHeight() ||
+       !this.board.claimTile(this.firstTileIndex, this.secondTileIndex + 1, Entity.PLAYER)) {
       return;
     }
     
     else {
       // Set currently occupied tile to unoccupied.
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(false);
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(true);
+      this.board.releaseTile(this.firstTileIndex, this.secondTileIndex, Entity.PLAYER);
       
       // Occupied tile is now the above tile.
       this.secondTileIndex = this.secondTileIndex + 1;
       
-      // Occupied tile is now occupied.
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(true);
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(false);
+      // Occupied tile was marked occupied when it was claimed.
+      this.board.getEntities().move(this.entity, this.firstTileIndex, this.secondTileIndex);
     }
   }
   
@@ -169,23 +179,22 @@ public class Player {
    * Moves the player 1 space down on its respective TileBoard, if possible.
    */
   public void moveDown() {
+    this.facingValue = 2; // Turn down, even if the move is blocked.
     // If below tile goes beyond the board's bounds or below tile is unpassable
     // (has player/enemy/wall), do nothing.
     if(this.secondTileIndex - 1 < 0 || 
-       !(this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex - 1].getPassable())) {
+       !this.board.claimTile(this.firstTileIndex, this.secondTileIndex - 1, Entity.PLAYER)) {
       return;
     }
     else {
       // Set currently occupied tile to unoccupied.
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(false);
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(true);
+      this.board.releaseTile(this.firstTileIndex, this.secondTileIndex, Entity.PLAYER);
       
       // Occupied tile is now the above tile.
       this.secondTileIndex = this.secondTileIndex - 1;
       
-      // Occupied tile is now occupied.
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(true);
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(false);
+      // Occupied tile was marked occupied when it was claimed.
+      this.board.getEntities().move(this.entity, this.firstTileIndex, this.secondTileIndex);
     }
   }
   
@@ -193,23 +202,22 @@ public class Player {
    * Moves the player 1 space to the left on its respective TileBoard, if possible.
    */
   public void moveLeft() {
+    this.facingValue = 3; // Turn left, even if the move is blocked.
     // If left tile goes beyond the board's bounds or left tile is unpassable
     // (has player/enemy/wall), do nothing.
     if(this.firstTileIndex - 1 < 0 ||
-       !(this.board.getTileBoard()[this.firstTileIndex - 1][this.secondTileIndex].getPassable())) {
+       !this.board.claimTile(this.firstTileIndex - 1, this.secondTileIndex, Entity.PLAYER)) {
       return;
     }
     else {
       // Set currently occupied tile to unoccupied.
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(false);
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(true);
+      this.board.releaseTile(this.firstTileIndex, this.secondTileIndex, Entity.PLAYER);
       
       // Occupied tile is now the above tile.
       this.firstTileIndex = this.firstTileIndex - 1;
       
-      // Occupied tile is now occupied.
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(true);
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(false);
+      // Occupied tile was marked occupied when it was claimed.
+      this.board.getEntities().move(this.entity, this.firstTileIndex, this.secondTileIndex);
     }
   }
   
@@ -217,23 +225,22 @@ public class Player {
    * Moves the player 1 space to the right on its respective TileBoard, if possible.
    */
   public void moveRight() {
+    this.facingValue = 1; // Turn right, even if the move is blocked.
     // If right tile goes beyond the board's bounds or right tile is unpassable
     // (has player/enemy/wall), do nothing.
-    if(this.firstTileIndex + 1 >= this.board.getTileBoard().length ||
-       !(this.board.getTileBoard()[this.firstTileIndex + 1][this.secondTileIndex].getPassable())) {
+    if(this.firstTileIndex + 1 >= this.board.getNumTilesWidth() ||
+       !this.board.claimTile(this.firstTileIndex + 1, this.secondTileIndex, Entity.PLAYER)) {
       return; 
     }
     else {
       // Set currently occupied tile to unoccupied.
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(false);
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(true);
+      this.board.releaseTile(this.firstTileIndex, this.secondTileIndex, Entity.PLAYER);
       
       // Occupied tile is now the above tile.
       this.firstTileIndex = this.firstTileIndex + 1;
       
-      // Occupied tile is now occupied.
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setHasPlayer(true);
-      this.board.getTileBoard()[this.firstTileIndex][this.secondTileIndex].setPassable(false);
+      // Occupied tile was marked occupied when it was claimed.
+      this.board.getEntities().move(this.entity, this.firstTileIndex, this.secondTileIndex);
     }
   }
   
@@ -253,7 +260,7 @@ public class Player {
    * Checks if the player in question is able to move right on the tileboard.
    */
   public boolean canMoveRight() {
-    if(this.firstTileIndex + 1 < this.board.getTileBoard().length) {
+    if(this.firstTileIndex + 1 < this.board.getNumTilesWidth()) {
       return true;
     }
     else {
@@ -265,7 +272,7 @@ public class Player {
    * Checks if the player in question is able to move up on the tileboard.
    */
   public boolean canMoveUp() {
-    if(this.secondTileIndex + 1 < this.board.getTileBoard()[0].length) {
+    if(this.secondTileIndex + 1 < this.board.getNumTilesHeight()) {
       return true;
     }
     else {
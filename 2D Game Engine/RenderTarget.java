@@ -0,0 +1,42 @@
+/*************************************************************************
+  *  Compilation:  javac RenderTarget.java
+  *  Execution:    java RenderTarget
+  *
+  *  Where a Game draws to. A WindowRenderTarget shows the game in a window
+  *  the size of the screen; a HeadlessRenderTarget draws into an offscreen
+  *  image of a fixed resolution, without a window, so a Game can run on
+  *  machines without a display (simulation servers, thumbnails, tests).
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.awt.image.BufferedImage;
+
+public interface RenderTarget {
+  /**
+   * Retrieves the width of the target, in pixels.
+   */
+  int getWidth();
+
+  /**
+   * Retrieves the height of the target, in pixels.
+   */
+  int getHeight();
+
+  /**
+   * Checks if the target draws without a window.
+   */
+  boolean isHeadless();
+
+  /**
+   * Sets PennDraw up to draw to this target, with one unit of scale per pixel.
+   * This clears anything drawn before.
+   */
+  void attach();
+
+  /**
+   * Retrieves the image last shown by the target. This is the image itself,
+   * not a copy, so it changes as more frames are shown.
+   */
+  BufferedImage getImage();
+}
@@ -21,27 +21,19 @@ public class SampleClass {
     // a specific [][] index to be placed on, and how large its display will be.
     // This player is placed on the first game area, on tile [2][2] with a 7x7 tile display around it
     Player stickFigure = new Player ("Mario.png", testGame.getGameAreas()[0], 2, 2, 7, 7);
-    testGame.drawPlayerDisplay(stickFigure);
     
-    while(true) {
-      if(PennDraw.hasNextKeyTyped()) {
-        String input = PennDraw.nextKeyTyped() + "";
-        if(input.equals("w") || input.equals("W")) {
-          testGame.movementUp(stickFigure);
-          
-        }   
-        if(input.equals("a") || input.equals("A")) {
-          testGame.movementLeft(stickFigure);
-          
-        }    
-        if(input.equals("s") || input.equals("S")) {
-          testGame.movementDown(stickFigure);
-          
-        }        
-        if(input.equals("d") || input.equals("D")) {
-          testGame.movementRight(stickFigure);
-        }
-      }
-    }
+    // STEP 4: Set up the controls. Holding W/A/S/D or an arrow key moves the player one tile
+    // every 8 ticks, and the camera glides after it at the same pace.
+    testGame.setMovementController(new MovementController(8));
+    testGame.setCamera(new Camera(1.0 / 8));
+    
+    // STEP 5: Load every image and warm the renderer up before showing the first frame, so the
+    // game does not stutter while it starts.
+    testGame.warmUp(stickFigure);
+    
+    // STEP 6: Run the game. The loop runs 60 ticks a second and redraws the display at most
+    // 60 times a second, sleeping in between.
+    GameLoop loop = new GameLoop(testGame, stickFigure, 60, 60);
+    loop.run();
   }
 }
\ No newline at end of file
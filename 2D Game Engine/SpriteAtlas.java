@@ -0,0 +1,211 @@
+/*************************************************************************
+  *  Compilation:  javac SpriteAtlas.java
+  *  Execution:    java SpriteAtlas
+  *
+  *  Packs every image a Game draws into a single sheet, with each image
+  *  pre-scaled to the current tile size. Drawing a tile is then an unscaled
+  *  copy of one cell of the sheet instead of a rescale of the source image.
+  *  The sheet only needs rebuilding when the tile size changes or an image
+  *  that has never been packed is drawn.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class SpriteAtlas {
+  private BufferedImage sheet; // all packed images, laid out in a grid of tile-sized cells
+  private HashMap<String, Integer> cells; // image name to cell index within the sheet
+  private int tileWidth; // width in pixels of each cell
+  private int tileHeight; // height in pixels of each cell
+  private int columns; // number of cells along the width of the sheet
+  private boolean[] opaque; // whether each cell has no transparent pixels, and so can be copied without blending
+  private int builds; // number of times the sheet has been (re)built
+
+  /**
+   * Creates a new, empty SpriteAtlas. Nothing is packed until build is called.
+   */
+  public SpriteAtlas() {
+    this.cells = new HashMap<String, Integer>();
+  }
+
+  /**
+   * Packs the inputted images into a new sheet, each scaled to tileWidth by tileHeight.
+   * @param images, the names of the images to be packed
+   * @param tileWidth, the width in pixels each image is scaled to
+   * @param tileHeight, the height in pixels each image is scaled to
+   */
+  public void build(Collection<String> images, int tileWidth, int tileHeight) {
+    if(tileWidth <= 0 || tileHeight <= 0) {
+      throw new IllegalArgumentException("Tile dimensions must be positive");
+    }
+
+    Set<String> names = new LinkedHashSet<String>(images);
+    int count = Math.max(names.size(), 1);
+    int columns = (int) Math.ceil(Math.sqrt(count));
+    int rows = (count + columns - 1) / columns;
+
+    // Same pixel layout as PennDraw's offscreen buffer, so copies out of the sheet need no conversion.
+    BufferedImage sheet = new BufferedImage(columns * tileWidth, rows * tileHeight,
+                                            BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = sheet.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+    HashMap<String, Integer> cells = new HashMap<String, Integer>();
+    boolean[] opaque = new boolean[count];
+    int[] row = new int[tileWidth];
+    int cell = 0;
+    for(String name : names) {
+      int x = (cell % columns) * tileWidth;
+      int y = (cell / columns) * tileHeight;
+      g.drawImage(PennDraw.loadImage(name), x, y, tileWidth, tileHeight, null);
+      cells.put(name, cell);
+      opaque[cell] = true;
+      for(int line = 0; line < tileHeight && opaque[cell]; line++) {
+        sheet.getRGB(x, y + line, tileWidth, 1, row, 0, tileWidth);
+        for(int pixel : row) {
+          if(pixel >>> 24 != 0xFF) {
+            opaque[cell] = false;
+            break;
+          }
+        }
+      }
+      cell++;
+    }
+    g.dispose();
+
+    this.sheet = sheet;
+    this.cells = cells;
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+    this.columns = columns;
+    this.opaque = opaque;
+    this.builds++;
+  }
+
+  /**
+   * Packs any of the inputted images that are not packed yet, rebuilding the sheet
+   * at most once, at the current tile size.
+   * @param images, the names of the images about to be drawn
+   */
+  public void pack(Collection<String> images) {
+    Set<String> packed = null;
+    for(String image : images) {
+      if(!this.cells.containsKey(image)) {
+        if(packed == null) {
+          packed = new LinkedHashSet<String>(this.cells.keySet());
+        }
+        packed.add(image);
+      }
+    }
+    if(packed != null) {
+      this.build(packed, this.tileWidth, this.tileHeight);
+    }
+  }
+
+  /**
+   * Checks if the sheet was built for the inputted tile size.
+   * @param tileWidth, the width in pixels of a tile
+   * @param tileHeight, the height in pixels of a tile
+   */
+  public boolean matches(int tileWidth, int tileHeight) {
+    return this.sheet != null && this.tileWidth == tileWidth && this.tileHeight == tileHeight;
+  }
+
+  /**
+   * Checks if the inputted image has been packed into the sheet.
+   * @param image, the name of the image
+   */
+  public boolean contains(String image) {
+    return this.cells.containsKey(image);
+  }
+
+  /**
+   * Retrieves the index of the cell an image is packed into, or -1 if it is not packed.
+   * @param image, the name of the image
+   */
+  public int getCell(String image) {
+    Integer cell = this.cells.get(image);
+    return cell == null ? -1 : cell;
+  }
+
+  /**
+   * Retrieves the left pixel column of a cell within the sheet.
+   * @param cell, the index of the cell
+   */
+  public int getCellX(int cell) {
+    return (cell % this.columns) * this.tileWidth;
+  }
+
+  /**
+   * Retrieves the top pixel row of a cell within the sheet.
+   * @param cell, the index of the cell
+   */
+  public int getCellY(int cell) {
+    return (cell / this.columns) * this.tileHeight;
+  }
+
+  /**
+   * Checks if a cell has no transparent pixels, so that drawing it is a plain copy.
+   * @param cell, the index of the cell
+   */
+  public boolean isOpaque(int cell) {
+    return this.opaque[cell];
+  }
+
+  /**
+   * Retrieves the names of every packed image.
+   */
+  public Set<String> getImages() {
+    return this.cells.keySet();
+  }
+
+  /**
+   * Draws a packed image, unscaled, centered on (x, y).
+   * @param image, the name of the image
+   * @param x, the center x-coordinate of the tile
+   * @param y, the center y-coordinate of the tile
+   */
+  public void draw(String image, double x, double y) {
+    Integer cell = this.cells.get(image);
+    if(cell == null) {
+      throw new IllegalArgumentException("Image " + image + " is not in the atlas");
+    }
+    PennDraw.picture(x, y, this.sheet, this.getCellX(cell), this.getCellY(cell), this.tileWidth, this.tileHeight);
+  }
+
+  /**
+   * Retrieves the packed sheet.
+   */
+  public BufferedImage getSheet() {
+    return this.sheet;
+  }
+
+  /**
+   * Retrieves the width in pixels of each packed image.
+   */
+  public int getTileWidth() {
+    return this.tileWidth;
+  }
+
+  /**
+   * Retrieves the height in pixels of each packed image.
+   */
+  public int getTileHeight() {
+    return this.tileHeight;
+  }
+
+  /**
+   * Retrieves the number of times the sheet has been built.
+   */
+  public int getBuildCount() {
+    return this.builds;
+  }
+}
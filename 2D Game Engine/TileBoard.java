@@ -8,21 +8,73 @@
   * 
   *  Version 1.01
   *************************************************************************/
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class TileBoard {
-  private Tile[][] tileBoard;
+  public static final int CACHE_CHUNK_SIZE = 8; // tiles along each side of a chunk whose changes are tracked
+  
+  private static final AtomicInteger NEXT_ID = new AtomicInteger(1); // the id of the next board created
+  
+  private int id; // tells the board apart from others in flight recordings
+  private TileStorage storage; // how the tiles are kept, one Tile object per cell by default
   private int numTilesWidth;
   private int numTilesHeight;
   private String pastBorderImage;
+  private ArrayList<TileLayer> layers; // layers drawn over the tiles, bottom first
+  private EntityIndex entities; // the entities on the board by location, created when first needed
+  private TileOccupancy occupancy; // which tiles players and entities stand on
+  
+  // Counts changes to the images of the board, so that pictures of it can tell when they are out of
+  // date: one count for the whole board, and one for each CACHE_CHUNK_SIZE square chunk changed since.
+  private long version;
+  private ChunkVersions chunkVersions;
+  
+  // The same for whether tiles are passable, so that route graphs can tell when walls move, plus a
+  // count of every change so that they can tell nothing changed without looking at any chunk.
+  private long passableVersion;
+  private ChunkVersions passableChunkVersions;
+  private long passableChanges;
   
   // The Tileboard is an 2D-Array of tiles, in which the lower left tile is at [0][0]
   // and the upper right tile is at [height][width]
   // User's screen resolution is automatically detected and used to set window size
   public TileBoard(int numTilesWidth, int numTilesHeight, String pastBorderImage) {
+    this.id = NEXT_ID.getAndIncrement();
     this.numTilesWidth = numTilesWidth;
     this.numTilesHeight = numTilesHeight;
-    this.tileBoard = new Tile [numTilesWidth][numTilesHeight]; // Tileboard dimensions
+    this.storage = new ObjectTileStorage(numTilesWidth, numTilesHeight); // Tileboard dimensions
     this.pastBorderImage = pastBorderImage; // What image is drawn in place of tiles 
     // beyond the tileboard's bounds?
+    this.layers = new ArrayList<TileLayer>();
+    this.chunkVersions = new ChunkVersions(this.numTilesWidth, this.numTilesHeight);
+    this.passableChunkVersions = new ChunkVersions(this.numTilesWidth, this.numTilesHeight);
+    this.occupancy = new TileOccupancy(numTilesWidth, numTilesHeight);
+  }
+  
+  // Creates a TileBoard whose tiles are kept in the given storage, for example a
+  // CompactTileStorage for boards too large for one Tile object per cell, or a
+  // ChunkedTileStorage for worlds too large to keep in memory at once.
+  public TileBoard(TileStorage storage, String pastBorderImage) {
+    this.id = NEXT_ID.getAndIncrement();
+    this.numTilesWidth = storage.getWidth();
+    this.numTilesHeight = storage.getHeight();
+    this.storage = storage;
+    this.pastBorderImage = pastBorderImage;
+    this.layers = new ArrayList<TileLayer>();
+    this.chunkVersions = new ChunkVersions(this.numTilesWidth, this.numTilesHeight);
+    this.passableChunkVersions = new ChunkVersions(this.numTilesWidth, this.numTilesHeight);
+    this.occupancy = new TileOccupancy(this.numTilesWidth, this.numTilesHeight);
+  }
+  
+  /**
+   * Retrieves given TileBoard's id, unique among the boards created since the program started.
+   */
+  public int getId() {
+    return this.id;
   }
   
   /**
@@ -56,10 +108,292 @@ public class TileBoard {
   }
   
   /**
-   * Retrieves given TileBoard's Tile[][].
+   * Retrieves given TileBoard's Tile[][]. Only boards that keep one Tile object per
+   * cell have one; use getTile for boards created with another storage.
    */
   public Tile[][] getTileBoard() {
-    return this.tileBoard;
+    if(!(this.storage instanceof ObjectTileStorage)) {
+      throw new UnsupportedOperationException("This board has no Tile[][]; use getTile instead");
+    }
+    return ((ObjectTileStorage) this.storage).getTiles();
+  }
+  
+  /**
+   * Retrieves given TileBoard's tile storage.
+   */
+  public TileStorage getStorage() {
+    return this.storage;
+  }
+  
+  /**
+   * Retrieves the tile at the inputted location. Boards with a compact storage return
+   * a view that reads and writes the storage.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   */
+  public Tile getTile(int horizontalArrayIndex, int verticalArrayIndex) {
+    return this.storage.getTile(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Retrieves the image name of the tile at the inputted location.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   */
+  public String getTileImage(int horizontalArrayIndex, int verticalArrayIndex) {
+    return this.storage.getImage(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Changes the image of the tile at the inputted location.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   * @param image, the name of the new image
+   */
+  public void setTileImage(int horizontalArrayIndex, int verticalArrayIndex, String image) {
+    this.storage.setImage(horizontalArrayIndex, verticalArrayIndex, image);
+    this.invalidateTile(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Retrieves the number of layers of the board, counting the tiles themselves as layer 0.
+   */
+  public int getLayerCount() {
+    return this.layers.size() + 1;
+  }
+  
+  /**
+   * Adds an empty layer on top of the others.
+   * @return the index of the new layer
+   */
+  public int addLayer() {
+    this.layers.add(new TileLayer(this.numTilesWidth, this.numTilesHeight));
+    this.version++;
+    return this.layers.size();
+  }
+  
+  /**
+   * Retrieves a layer drawn over the tiles. Changes made to it directly are not seen by
+   * pictures of the board until invalidateTile is called; use setLayerImage instead.
+   * @param layer, the index of the layer, from 1 to getLayerCount() - 1
+   */
+  public TileLayer getLayer(int layer) {
+    if(layer < 1 || layer > this.layers.size()) {
+      throw new IndexOutOfBoundsException("Layer " + layer + " does not exist; layers over the tiles are " +
+                                          "numbered from 1");
+    }
+    return this.layers.get(layer - 1);
+  }
+  
+  /**
+   * Retrieves the image of a layer at the inputted location, or null if that layer has
+   * no image there. Layer 0 is the tiles themselves.
+   * @param layer, the index of the layer
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   */
+  public String getLayerImage(int layer, int horizontalArrayIndex, int verticalArrayIndex) {
+    if(layer == 0) {
+      return this.storage.isPopulated(horizontalArrayIndex, verticalArrayIndex)
+        ? this.storage.getImage(horizontalArrayIndex, verticalArrayIndex) : null;
+    }
+    return this.getLayer(layer).getImage(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Changes the image of a layer at the inputted location. Layer 0 is the tiles themselves,
+   * which must be populated first.
+   * @param layer, the index of the layer
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   * @param image, the name of the new image, or null to remove it from a layer over the tiles
+   */
+  public void setLayerImage(int layer, int horizontalArrayIndex, int verticalArrayIndex, String image) {
+    if(layer == 0) {
+      this.setTileImage(horizontalArrayIndex, verticalArrayIndex, image);
+      return;
+    }
+    this.getLayer(layer).setImage(horizontalArrayIndex, verticalArrayIndex, image);
+    this.invalidateTile(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Tells the board the image of the tile at the inputted location changed without going
+   * through the board, e.g. through a Tile object, so pictures of that part are redrawn.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   */
+  public void invalidateTile(int horizontalArrayIndex, int verticalArrayIndex) {
+    this.chunkVersions.increment(horizontalArrayIndex / CACHE_CHUNK_SIZE, verticalArrayIndex / CACHE_CHUNK_SIZE);
+  }
+  
+  /**
+   * Retrieves how many times the images of the whole board have been replaced at once.
+   */
+  public long getVersion() {
+    return this.version;
+  }
+  
+  /**
+   * Retrieves how many times images in a chunk of the board have changed since the whole
+   * board last was replaced. Chunks are CACHE_CHUNK_SIZE tiles along each side.
+   * @param chunkX, the horizontal index of the chunk
+   * @param chunkY, the vertical index of the chunk
+   */
+  public int getChunkVersion(int chunkX, int chunkY) {
+    return this.chunkVersions.get(chunkX, chunkY);
+  }
+  
+  /**
+   * Tells the board whether the tile at the inputted location is passable changed without
+   * going through the board, e.g. through a Tile object, so routes through it are found again.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   */
+  public void invalidateTilePassable(int horizontalArrayIndex, int verticalArrayIndex) {
+    this.passableChunkVersions.increment(horizontalArrayIndex / CACHE_CHUNK_SIZE,
+                                         verticalArrayIndex / CACHE_CHUNK_SIZE);
+    this.passableChanges++;
+  }
+  
+  /**
+   * Retrieves how many times whether tiles are passable has been replaced for the whole board at once.
+   */
+  public long getPassableVersion() {
+    return this.passableVersion;
+  }
+  
+  /**
+   * Retrieves how many times whether tiles in a chunk of the board are passable has changed
+   * since the whole board last was replaced. Chunks are CACHE_CHUNK_SIZE tiles along each side.
+   * Players and entities claiming and releasing tiles do not count as changes.
+   * @param chunkX, the horizontal index of the chunk
+   * @param chunkY, the vertical index of the chunk
+   */
+  public int getPassableChunkVersion(int chunkX, int chunkY) {
+    return this.passableChunkVersions.get(chunkX, chunkY);
+  }
+  
+  /**
+   * Retrieves how many times whether any tile is passable has changed, in total.
+   */
+  public long getPassableChangeCount() {
+    return this.passableChanges;
+  }
+  
+  /**
+   * Retrieves whether or not the tile at the inputted location is passable.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   */
+  public boolean getTilePassable(int horizontalArrayIndex, int verticalArrayIndex) {
+    return this.storage.getPassable(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Changes whether the tile at the inputted location is passable.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   * @param passable, whether or not the tile is passable
+   */
+  public void setTilePassable(int horizontalArrayIndex, int verticalArrayIndex, boolean passable) {
+    this.storage.setPassable(horizontalArrayIndex, verticalArrayIndex, passable);
+    this.invalidateTilePassable(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Changes whether the tile at the inputted location has a player on it.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   * @param hasPlayer, whether or not the tile has a player on it
+   */
+  public void setTileHasPlayer(int horizontalArrayIndex, int verticalArrayIndex, boolean hasPlayer) {
+    this.storage.setHasPlayer(horizontalArrayIndex, verticalArrayIndex, hasPlayer);
+  }
+  
+  /**
+   * Changes whether the tile at the inputted location has an enemy on it.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   * @param hasEnemy, whether or not the tile has an enemy on it
+   */
+  public void setTileHasEnemy(int horizontalArrayIndex, int verticalArrayIndex, boolean hasEnemy) {
+    this.storage.setHasEnemy(horizontalArrayIndex, verticalArrayIndex, hasEnemy);
+  }
+  
+  /**
+   * Claims the tile at the inputted location for a player or entity about to stand on it,
+   * if the tile is passable and nobody else holds it. The claim is a compare-and-set, so
+   * of any number of threads claiming one tile at once exactly one succeeds. The winner's
+   * tile is then marked as unpassable and as having a player (for Entity.PLAYER) or an
+   * enemy (for Entity.ENEMY). Marking is only safe from several threads at once for
+   * storages that keep each tile's flags apart, which a ChunkedTileStorage does not.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   * @param kind, the kind of entity claiming the tile
+   * @return true if the tile was claimed
+   */
+  public boolean claimTile(int horizontalArrayIndex, int verticalArrayIndex, int kind) {
+    if(!this.occupancy.claim(horizontalArrayIndex, verticalArrayIndex)) {
+      return false;
+    }
+    // Holding the claim, nobody else changes the tile's flags, so this check cannot go stale.
+    if(!this.storage.getPassable(horizontalArrayIndex, verticalArrayIndex)) {
+      this.occupancy.release(horizontalArrayIndex, verticalArrayIndex);
+      return false;
+    }
+    this.mark(horizontalArrayIndex, verticalArrayIndex, kind, true);
+    return true;
+  }
+  
+  /**
+   * Claims the tile at the inputted location whether or not it is passable or held, the
+   * way a player or entity is placed on a board.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   * @param kind, the kind of entity claiming the tile
+   */
+  public void occupyTile(int horizontalArrayIndex, int verticalArrayIndex, int kind) {
+    this.occupancy.claim(horizontalArrayIndex, verticalArrayIndex);
+    this.mark(horizontalArrayIndex, verticalArrayIndex, kind, true);
+  }
+  
+  /**
+   * Frees a tile claimed with claimTile or occupyTile, marking it passable again.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   * @param kind, the kind of entity that claimed the tile
+   */
+  public void releaseTile(int horizontalArrayIndex, int verticalArrayIndex, int kind) {
+    // Unmark before releasing, so the next claimer sees the tile passable.
+    this.mark(horizontalArrayIndex, verticalArrayIndex, kind, false);
+    this.occupancy.release(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Checks if a player or entity holds the tile at the inputted location.
+   * @param horizontalArrayIndex, the horizontal index of the tile
+   * @param verticalArrayIndex, the vertical index of the tile
+   */
+  public boolean isTileClaimed(int horizontalArrayIndex, int verticalArrayIndex) {
+    return this.occupancy.isClaimed(horizontalArrayIndex, verticalArrayIndex);
+  }
+  
+  /**
+   * Retrieves the claims of the tiles players and entities stand on.
+   */
+  public TileOccupancy getOccupancy() {
+    return this.occupancy;
+  }
+  
+  /**
+   * Retrieves the index of the players and entities on the board, to find them by location.
+   */
+  public EntityIndex getEntities() {
+    if(this.entities == null) {
+      this.entities = new EntityIndex(this.numTilesWidth, this.numTilesHeight);
+    }
+    return this.entities;
   }
   
   /**
@@ -92,9 +426,10 @@ public class TileBoard {
   public void populateTile(int horizontalArrayIndex, int verticalArrayIndex,
                            String tileImg, boolean tileHasPlayer, boolean tileHasEnemy,
                            boolean passable) {
-    this.tileBoard[horizontalArrayIndex][verticalArrayIndex] = new Tile(tileImg, 
-                                                                        tileHasPlayer,  
-                                                                        tileHasEnemy, passable);
+    this.storage.populate(horizontalArrayIndex, verticalArrayIndex, tileImg, tileHasPlayer,
+                          tileHasEnemy, passable);
+    this.invalidateTile(horizontalArrayIndex, verticalArrayIndex);
+    this.invalidateTilePassable(horizontalArrayIndex, verticalArrayIndex);
   }
   
   /**
@@ -102,10 +437,123 @@ public class TileBoard {
    * @param imageFilename, the filename of the image the board will be populated with
    */
   public void populateEntireBoard(String imageFilename) {
-    for(int i = 0; i < this.numTilesWidth; i++) {
-      for(int j = 0; j < this.numTilesHeight; j++) {
-        this.populateTile(i, j, imageFilename, false, false, true);
+    EngineEvents.BoardPopulateEvent event = new EngineEvents.BoardPopulateEvent();
+    event.begin();
+    this.storage.populateAll(imageFilename, false, false, true);
+    this.version++;
+    this.chunkVersions.clear();
+    this.passableVersion++;
+    this.passableChunkVersions.clear();
+    this.passableChanges++;
+    event.end();
+    if(event.shouldCommit()) {
+      event.boardId = this.id;
+      event.image = imageFilename;
+      event.width = this.numTilesWidth;
+      event.height = this.numTilesHeight;
+      event.commit();
+    }
+  }
+  
+  /**
+   * Lets a board whose tiles are loaded in chunks unload the unchanged chunks far from
+   * the inputted location, usually the player's. Does nothing for other boards.
+   * @param horizontalArrayIndex, the horizontal index of the tile to keep chunks around
+   * @param verticalArrayIndex, the vertical index of the tile to keep chunks around
+   */
+  public void unloadFarChunks(int horizontalArrayIndex, int verticalArrayIndex) {
+    if(this.storage instanceof ChunkedTileStorage) {
+      ((ChunkedTileStorage) this.storage).unloadOutside(horizontalArrayIndex, verticalArrayIndex);
+    }
+  }
+  
+  /**
+   * Retrieves the names of every image drawn for this TileBoard: each populated
+   * tile's image, the images of every layer and the past border image.
+   */
+  public Set<String> getReferencedImages() {
+    Set<String> images = new LinkedHashSet<String>();
+    images.add(this.pastBorderImage);
+    this.storage.collectImages(images);
+    for(TileLayer layer : this.layers) {
+      layer.collectImages(images);
+    }
+    return images;
+  }
+  
+  // Sets or clears the flags of a tile a player or entity stands on.
+  private void mark(int horizontalArrayIndex, int verticalArrayIndex, int kind, boolean occupied) {
+    if(this.storage instanceof ChunkedTileStorage) {
+      // Standing on a tile does not change it, so the chunk can still be unloaded once left.
+      ((ChunkedTileStorage) this.storage).setOccupied(horizontalArrayIndex, verticalArrayIndex, kind == Entity.PLAYER,
+                                                      kind == Entity.ENEMY, occupied);
+      return;
+    }
+    if(kind == Entity.PLAYER) {
+      this.storage.setHasPlayer(horizontalArrayIndex, verticalArrayIndex, occupied);
+    }
+    else if(kind == Entity.ENEMY) {
+      this.storage.setHasEnemy(horizontalArrayIndex, verticalArrayIndex, occupied);
+    }
+    this.storage.setPassable(horizontalArrayIndex, verticalArrayIndex, !occupied);
+  }
+  
+  /**
+   * A count for each CACHE_CHUNK_SIZE square chunk of a board, kept in int[] pages of
+   * PAGE_SIZE by PAGE_SIZE chunks that are only created when one of their chunks is
+   * first counted, so even boards of millions of tiles along each side cost little
+   * until they are changed.
+   */
+  private static class ChunkVersions {
+    private static final int PAGE_SHIFT = 6; // log2 of PAGE_SIZE
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT; // chunks along each side of a page
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    
+    private int pagesWide; // number of pages along the width of the board
+    private int pagesHigh; // number of pages along the height of the board
+    private int[][][] pages; // [pageX][pageY][(x << PAGE_SHIFT) | y], each column and page created when needed
+    
+    private ChunkVersions(int numTilesWidth, int numTilesHeight) {
+      this.pagesWide = pages(numTilesWidth);
+      this.pagesHigh = pages(numTilesHeight);
+      this.pages = new int[this.pagesWide][][];
+    }
+    
+    private int get(int chunkX, int chunkY) {
+      int pageX = chunkX >> PAGE_SHIFT;
+      int pageY = chunkY >> PAGE_SHIFT;
+      if(chunkX < 0 || chunkY < 0 || pageX >= this.pagesWide || pageY >= this.pagesHigh) {
+        return 0;
       }
+      int[][] column = this.pages[pageX];
+      int[] page = column == null ? null : column[pageY];
+      return page == null ? 0 : page[((chunkX & PAGE_MASK) << PAGE_SHIFT) | (chunkY & PAGE_MASK)];
+    }
+    
+    private void increment(int chunkX, int chunkY) {
+      int pageX = chunkX >> PAGE_SHIFT;
+      int pageY = chunkY >> PAGE_SHIFT;
+      int[][] column = this.pages[pageX];
+      if(column == null) {
+        column = new int[this.pagesHigh][];
+        this.pages[pageX] = column;
+      }
+      int[] page = column[pageY];
+      if(page == null) {
+        page = new int[PAGE_SIZE * PAGE_SIZE];
+        column[pageY] = page;
+      }
+      page[((chunkX & PAGE_MASK) << PAGE_SHIFT) | (chunkY & PAGE_MASK)]++;
+    }
+    
+    private void clear() {
+      this.pages = new int[this.pagesWide][][];
+    }
+    
+    // Number of pages needed to cover a number of tiles.
+    private static int pages(int tiles) {
+      int chunks = (tiles + CACHE_CHUNK_SIZE - 1) / CACHE_CHUNK_SIZE;
+      return (chunks + PAGE_SIZE - 1) >> PAGE_SHIFT;
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+/*************************************************************************
+  *  Compilation:  javac TileLayer.java
+  *  Execution:    java TileLayer
+  *
+  *  An extra layer of images drawn over a TileBoard's tiles, such as
+  *  decorations or overlays, so they can be combined with the ground
+  *  without baking custom images. A layer only holds images: whether a
+  *  tile is passable or has a player is still kept by the TileBoard.
+  *  Most layers are sparse, so images are kept in chunks that are only
+  *  created when one of their tiles gets an image.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+public class TileLayer {
+  private static final int CHUNK_SIZE = ChunkedTileStorage.CHUNK_SIZE;
+  private static final int CHUNK_SHIFT = 5; // log2 of CHUNK_SIZE
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private int width;
+  private int height;
+  private HashMap<Long, short[]> chunks; // palette index + 1 of each tile's image, 0 if empty
+  private ArrayList<String> palette; // every distinct image name, in order of first use
+  private HashMap<String, Integer> paletteIds; // image name to palette index
+
+  /**
+   * Creates a new, empty TileLayer.
+   * @param width, the number of tiles along the width
+   * @param height, the number of tiles along the height
+   */
+  public TileLayer(int width, int height) {
+    if(width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Layer dimensions must be positive");
+    }
+    this.width = width;
+    this.height = height;
+    this.chunks = new HashMap<Long, short[]>();
+    this.palette = new ArrayList<String>();
+    this.paletteIds = new HashMap<String, Integer>();
+  }
+
+  /**
+   * Retrieves the number of tiles along the width of the layer.
+   */
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Retrieves the number of tiles along the height of the layer.
+   */
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * Retrieves the image at the inputted location, or null if there is none.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public String getImage(int i, int j) {
+    this.check(i, j);
+    short[] chunk = this.chunks.get(key(i, j));
+    if(chunk == null) {
+      return null;
+    }
+    int id = chunk[local(i, j)] & 0xFFFF;
+    return id == 0 ? null : this.palette.get(id - 1);
+  }
+
+  /**
+   * Sets the image at the inputted location.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param image, the name of the image, or null to remove it
+   */
+  public void setImage(int i, int j, String image) {
+    this.check(i, j);
+    Long key = key(i, j);
+    short[] chunk = this.chunks.get(key);
+    if(chunk == null) {
+      if(image == null) {
+        return;
+      }
+      chunk = new short[CHUNK_SIZE * CHUNK_SIZE];
+      this.chunks.put(key, chunk);
+    }
+    chunk[local(i, j)] = (short) (image == null ? 0 : this.intern(image) + 1);
+  }
+
+  /**
+   * Removes every image from the layer.
+   */
+  public void clear() {
+    this.chunks.clear();
+  }
+
+  /**
+   * Adds every image name the layer has used to the inputted set, without reading any tiles.
+   */
+  public void collectImages(Set<String> images) {
+    images.addAll(this.palette);
+  }
+
+  /**
+   * Retrieves the number of chunks holding images.
+   */
+  public int getChunkCount() {
+    return this.chunks.size();
+  }
+
+  private void check(int i, int j) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the layer");
+    }
+  }
+
+  private static Long key(int i, int j) {
+    return ((long) (i >> CHUNK_SHIFT) << 32) | ((j >> CHUNK_SHIFT) & 0xFFFFFFFFL);
+  }
+
+  private static int local(int i, int j) {
+    return ((i & CHUNK_MASK) << CHUNK_SHIFT) | (j & CHUNK_MASK);
+  }
+
+  // Palette index of an image name, adding it on first use.
+  private int intern(String image) {
+    Integer id = this.paletteIds.get(image);
+    if(id == null) {
+      if(this.palette.size() >= CompactTileStorage.MAX_IMAGES) {
+        throw new RuntimeException("A layer cannot use more than " + CompactTileStorage.MAX_IMAGES + " images");
+      }
+      id = this.palette.size();
+      this.palette.add(image);
+      this.paletteIds.put(image, id);
+    }
+    return id;
+  }
+}
@@ -0,0 +1,259 @@
+/*************************************************************************
+  *  Compilation:  javac TileMapFile.java
+  *  Execution:    java TileMapFile
+  *
+  *  Reads and writes TileBoards as compact binary map files, so a map only
+  *  has to be built once. A file holds a header, the image palette, a layer
+  *  of 16-bit image ids and a layer of tile flags. Both layers are stored
+  *  chunk by chunk (see ChunkedTileStorage), so the tiles of one chunk are
+  *  next to each other on disk. Loading a file maps it into memory instead
+  *  of reading it, so it takes about the same time whatever the map's size.
+  *
+  *  File layout (big-endian):
+  *    int     magic ("TBMP")
+  *    int     version
+  *    int     width, height, chunk size (in tiles)
+  *    UTF     past border image, empty if the board has none
+  *    int     palette size, followed by that many UTF image names
+  *    padding to a multiple of 8 bytes
+  *    short[] image id of each tile (palette index + 1, or 0 if unpopulated)
+  *    byte[]  flags of each tile (1 has player, 2 has enemy, 4 passable)
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class TileMapFile {
+  public static final int MAGIC = 0x54424D50; // "TBMP"
+  public static final int VERSION = 1;
+
+  private static final int CHUNK_SIZE = ChunkedTileStorage.CHUNK_SIZE;
+  private static final int CHUNK_SHIFT = 5; // log2 of CHUNK_SIZE
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  // Not instantiable: every method is static.
+  private TileMapFile() { }
+
+  /**
+   * Writes a TileBoard to a map file, replacing the file if it exists. The chunks of a
+   * board loaded in chunks are written without loading the ones that are not loaded.
+   * @param board, the TileBoard to be written
+   * @param filename, the name of the map file
+   */
+  public static void write(TileBoard board, String filename) throws IOException {
+    TileStorage storage = board.getStorage();
+    int width = board.getNumTilesWidth();
+    int height = board.getNumTilesHeight();
+    int chunksWidth = chunks(width);
+    int chunksHeight = chunks(height);
+
+    Set<String> images = new LinkedHashSet<String>();
+    storage.collectImages(images);
+    if(images.size() > CompactTileStorage.MAX_IMAGES) {
+      throw new IllegalArgumentException("A map file cannot use more than " + CompactTileStorage.MAX_IMAGES +
+                                         " images");
+    }
+    HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    for(String image : images) {
+      ids.put(image, ids.size() + 1);
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeInt(CHUNK_SIZE);
+      out.writeUTF(board.getPastBorderImage() == null ? "" : board.getPastBorderImage());
+      out.writeInt(images.size());
+      for(String image : images) {
+        out.writeUTF(image);
+      }
+      while(out.size() % 8 != 0) {
+        out.writeByte(0);
+      }
+
+      if(storage instanceof ChunkedTileStorage) {
+        writeChunks((ChunkedTileStorage) storage, ids, chunksWidth, chunksHeight, out);
+        return;
+      }
+
+      // Image id layer, then flags layer, both chunk by chunk. Tiles of edge chunks that fall
+      // outside of the board are written as unpopulated.
+      for(int layer = 0; layer < 2; layer++) {
+        for(int chunkX = 0; chunkX < chunksWidth; chunkX++) {
+          for(int chunkY = 0; chunkY < chunksHeight; chunkY++) {
+            for(int local = 0; local < CHUNK_SIZE * CHUNK_SIZE; local++) {
+              int i = (chunkX << CHUNK_SHIFT) | (local >> CHUNK_SHIFT);
+              int j = (chunkY << CHUNK_SHIFT) | (local & CHUNK_MASK);
+              boolean populated = i < width && j < height && storage.isPopulated(i, j);
+              if(layer == 0) {
+                out.writeShort(populated ? ids.get(storage.getImage(i, j)) : 0);
+              }
+              else {
+                out.writeByte(populated ? CompactTileStorage.packFlags(storage.getHasPlayer(i, j),
+                                                                       storage.getHasEnemy(i, j),
+                                                                       storage.getPassable(i, j)) : 0);
+              }
+            }
+          }
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  // Writes both layers of a chunked storage a whole chunk at a time, copying unloaded chunks from
+  // its source or fill value instead of loading them.
+  private static void writeChunks(ChunkedTileStorage storage, HashMap<String, Integer> ids, int chunksWidth,
+                                  int chunksHeight, DataOutputStream out) throws IOException {
+    short[] images = new short[CHUNK_SIZE * CHUNK_SIZE];
+    byte[] flags = new byte[CHUNK_SIZE * CHUNK_SIZE];
+    for(int layer = 0; layer < 2; layer++) {
+      for(int chunkX = 0; chunkX < chunksWidth; chunkX++) {
+        for(int chunkY = 0; chunkY < chunksHeight; chunkY++) {
+          storage.copyChunk(chunkX, chunkY, images, flags);
+          for(int local = 0; local < CHUNK_SIZE * CHUNK_SIZE; local++) {
+            boolean populated = images[local] != 0;
+            if(layer == 0) {
+              out.writeShort(populated ? ids.get(storage.getPaletteImage(images[local] & 0xFFFF)) : 0);
+            }
+            else {
+              out.writeByte(populated ? flags[local] : 0);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads a map file as a TileBoard whose tiles are read straight from the mapped file.
+   * Changes to the board are kept in memory and never written back to the file; if the
+   * file may not be written at all, the board cannot be changed (use loadChunked).
+   * @param filename, the name of the map file
+   */
+  public static TileBoard load(String filename) throws IOException {
+    MappedTileStorage storage = open(filename);
+    return new TileBoard(storage, storage.getPastBorderImage());
+  }
+
+  /**
+   * Loads a map file as a TileBoard that copies chunks out of the mapped file the first
+   * time they are touched, and unloads them again when the player is far away. Suited
+   * to maps that are too large to keep resident.
+   * @param filename, the name of the map file
+   */
+  public static TileBoard loadChunked(String filename) throws IOException {
+    MappedTileStorage mapped = open(filename);
+    return new TileBoard(new ChunkedTileStorage(mapped.getWidth(), mapped.getHeight(), mapped),
+                         mapped.getPastBorderImage());
+  }
+
+  /**
+   * Maps a map file into memory. Only the header and palette are read; tiles are
+   * paged in by the operating system as they are accessed.
+   * @param filename, the name of the map file
+   */
+  public static MappedTileStorage open(String filename) throws IOException {
+    // A copy-on-write mapping needs a channel opened for writing, even though the file is never
+    // written. Files that may not be opened for writing, for lack of permission or on a read-only
+    // file system, are mapped read-only instead.
+    FileChannel channel;
+    FileChannel.MapMode mode;
+    try {
+      channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      mode = FileChannel.MapMode.PRIVATE;
+    }
+    catch(FileSystemException e) {
+      channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+      mode = FileChannel.MapMode.READ_ONLY;
+    }
+    try {
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+      if(in.readInt() != MAGIC) {
+        throw new IOException(filename + " is not a map file");
+      }
+      int version = in.readInt();
+      if(version != VERSION) {
+        throw new IOException(filename + " has unsupported map file version " + version);
+      }
+      int width = in.readInt();
+      int height = in.readInt();
+      int chunkSize = in.readInt();
+      if(width <= 0 || height <= 0 || chunkSize != CHUNK_SIZE) {
+        throw new IOException(filename + " has a corrupt header");
+      }
+      String pastBorderImage = in.readUTF();
+      if(pastBorderImage.isEmpty()) {
+        pastBorderImage = null;
+      }
+      int paletteSize = in.readInt();
+      ArrayList<String> palette = new ArrayList<String>();
+      for(int i = 0; i < paletteSize; i++) {
+        palette.add(in.readUTF());
+      }
+
+      long headerSize = channel.position();
+      long layersStart = (headerSize + 7) / 8 * 8;
+      long tiles = (long) chunks(width) * chunks(height) * CHUNK_SIZE * CHUNK_SIZE;
+      if(channel.size() < layersStart + 3 * tiles) {
+        throw new IOException(filename + " is truncated");
+      }
+
+      ByteBuffer[] imageIds = map(channel, mode, layersStart, 2 * tiles);
+      ByteBuffer[] flags = map(channel, mode, layersStart + 2 * tiles, tiles);
+      return new MappedTileStorage(width, height, pastBorderImage, palette, imageIds, flags);
+    }
+    finally {
+      channel.close(); // mappings stay valid after the channel is closed
+    }
+  }
+
+  /**
+   * Retrieves the position of a tile within a map file's layers, in tiles.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param height, the number of tiles along the height of the map
+   */
+  public static long tileIndex(int i, int j, int height) {
+    long chunk = (long) (i >> CHUNK_SHIFT) * chunks(height) + (j >> CHUNK_SHIFT);
+    return (chunk << (2 * CHUNK_SHIFT)) | ((i & CHUNK_MASK) << CHUNK_SHIFT) | (j & CHUNK_MASK);
+  }
+
+  // Number of chunks needed to cover a number of tiles.
+  private static int chunks(int tiles) {
+    return (tiles + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+  }
+
+  // Maps a region of the file as buffers of at most MappedTileStorage.SEGMENT_SIZE bytes each,
+  // since a single mapping cannot exceed 2 GB.
+  private static ByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long start,
+                                  long length) throws IOException {
+    int segments = (int) ((length + MappedTileStorage.SEGMENT_SIZE - 1) / MappedTileStorage.SEGMENT_SIZE);
+    ByteBuffer[] buffers = new ByteBuffer[segments];
+    for(int s = 0; s < segments; s++) {
+      long offset = (long) s * MappedTileStorage.SEGMENT_SIZE;
+      buffers[s] = channel.map(mode, start + offset, Math.min(MappedTileStorage.SEGMENT_SIZE, length - offset));
+    }
+    return buffers;
+  }
+}
@@ -0,0 +1,150 @@
+/*************************************************************************
+  *  Compilation:  javac TileOccupancy.java
+  *  Execution:    java TileOccupancy
+  *
+  *  One bit per tile of a TileBoard saying whether something stands on it,
+  *  claimed and released with compare-and-set so that movers on different
+  *  threads can never both take the same tile. The bits are packed 32 to
+  *  an int in AtomicIntegerArray pages of 64x64 tiles, which are created
+  *  the first time one of their tiles is claimed, so a huge board that is
+  *  mostly empty costs next to nothing.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class TileOccupancy {
+  public static final int PAGE_SIZE = 64; // tiles along each side of a page
+  public static final int MAX_ARRAY_PAGES = 1 << 20; // boards with more pages keep them in a map instead
+
+  private static final int PAGE_SHIFT = 6; // log2 of PAGE_SIZE
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+  private static final int PAGE_WORDS = PAGE_SIZE * PAGE_SIZE / 32;
+
+  private int width;
+  private int height;
+  private int pagesHigh; // number of pages along the height of the board
+  private AtomicReferenceArray<AtomicIntegerArray> pages; // indexed by page, or null on huge boards
+  private ConcurrentHashMap<Long, AtomicIntegerArray> farPages; // pages of huge boards, by page index
+  private AtomicLong contended; // compare-and-sets retried because another tile of the word changed
+
+  /**
+   * Creates a new TileOccupancy for a width by height board, with every tile free.
+   * @param width, the number of tiles along the width of the board
+   * @param height, the number of tiles along the height of the board
+   */
+  public TileOccupancy(int width, int height) {
+    if(width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Board dimensions must be positive");
+    }
+    this.width = width;
+    this.height = height;
+    this.pagesHigh = (height + PAGE_MASK) >>> PAGE_SHIFT;
+    long pageCount = (long) ((width + PAGE_MASK) >>> PAGE_SHIFT) * this.pagesHigh;
+    if(pageCount <= MAX_ARRAY_PAGES) {
+      this.pages = new AtomicReferenceArray<AtomicIntegerArray>((int) pageCount);
+    }
+    else {
+      this.farPages = new ConcurrentHashMap<Long, AtomicIntegerArray>();
+    }
+    this.contended = new AtomicLong();
+  }
+
+  /**
+   * Claims a tile if it is free. Of any number of threads claiming one tile at
+   * once, exactly one succeeds.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @return true if the tile was free and is now claimed by the caller
+   */
+  public boolean claim(int i, int j) {
+    AtomicIntegerArray page = this.page(i, j, true);
+    int word = word(i, j);
+    int bit = bit(i, j);
+    while(true) {
+      int bits = page.get(word);
+      if((bits & bit) != 0) {
+        return false;
+      }
+      if(page.compareAndSet(word, bits, bits | bit)) {
+        return true;
+      }
+      // Another tile sharing the word changed in between; this one may still be free.
+      this.contended.incrementAndGet();
+    }
+  }
+
+  /**
+   * Frees a tile, whoever claimed it.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public void release(int i, int j) {
+    AtomicIntegerArray page = this.page(i, j, false);
+    if(page == null) {
+      return;
+    }
+    int word = word(i, j);
+    int bit = bit(i, j);
+    while(true) {
+      int bits = page.get(word);
+      if((bits & bit) == 0 || page.compareAndSet(word, bits, bits & ~bit)) {
+        return;
+      }
+      this.contended.incrementAndGet();
+    }
+  }
+
+  /**
+   * Checks if a tile is claimed.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public boolean isClaimed(int i, int j) {
+    AtomicIntegerArray page = this.page(i, j, false);
+    return page != null && (page.get(word(i, j)) & bit(i, j)) != 0;
+  }
+
+  /**
+   * Retrieves the number of compare-and-sets that had to be retried because a
+   * neighbouring tile was claimed or released at the same moment.
+   */
+  public long getContendedCount() {
+    return this.contended.get();
+  }
+
+  // Position of a tile's bit within its page, as a word and a mask.
+  private static int word(int i, int j) {
+    return ((i & PAGE_MASK) << PAGE_SHIFT | (j & PAGE_MASK)) >>> 5;
+  }
+
+  private static int bit(int i, int j) {
+    return 1 << (j & 31);
+  }
+
+  // The page holding a tile, created if asked for and missing; null if missing otherwise.
+  private AtomicIntegerArray page(int i, int j, boolean create) {
+    if(i < 0 || i >= this.width || j < 0 || j >= this.height) {
+      throw new ArrayIndexOutOfBoundsException("Tile [" + i + "][" + j + "] is outside of the board");
+    }
+    long index = (long) (i >>> PAGE_SHIFT) * this.pagesHigh + (j >>> PAGE_SHIFT);
+    if(this.pages != null) {
+      AtomicIntegerArray page = this.pages.get((int) index);
+      if(page == null && create) {
+        // Threads racing to create a page all end up using the one that got in first.
+        this.pages.compareAndSet((int) index, null, new AtomicIntegerArray(PAGE_WORDS));
+        page = this.pages.get((int) index);
+      }
+      return page;
+    }
+    AtomicIntegerArray page = this.farPages.get(index);
+    if(page == null && create) {
+      page = this.farPages.computeIfAbsent(index, key -> new AtomicIntegerArray(PAGE_WORDS));
+    }
+    return page;
+  }
+}
@@ -0,0 +1,127 @@
+/*************************************************************************
+  *  Compilation:  javac TileStorage.java
+  *  Execution:    java TileStorage
+  *
+  *  How a TileBoard keeps its tiles. The default keeps one Tile object per
+  *  cell; other implementations keep the same information in a more compact
+  *  or more lazily loaded form, and hand out Tile views when asked for one.
+  * 
+  *  Version 1.01
+  *************************************************************************/
+
+import java.util.Set;
+
+public interface TileStorage {
+  /**
+   * Retrieves the number of tiles along the width of the storage.
+   */
+  int getWidth();
+  
+  /**
+   * Retrieves the number of tiles along the height of the storage.
+   */
+  int getHeight();
+  
+  /**
+   * Checks if the tile at the inputted location has been populated.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  boolean isPopulated(int i, int j);
+  
+  /**
+   * Retrieves the tile at the inputted location. Implementations that do not keep
+   * Tile objects return a view whose getters and setters read and write the storage.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  Tile getTile(int i, int j);
+  
+  /**
+   * Retrieves the image name of the tile at the inputted location.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  String getImage(int i, int j);
+  
+  /**
+   * Sets the image name of the tile at the inputted location.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param image, the filename of the image
+   */
+  void setImage(int i, int j, String image);
+  
+  /**
+   * Retrieves whether or not the tile at the inputted location has a player on it.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  boolean getHasPlayer(int i, int j);
+  
+  /**
+   * Changes whether the tile at the inputted location has a player on it.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param hasPlayer, whether or not the tile has a player on it
+   */
+  void setHasPlayer(int i, int j, boolean hasPlayer);
+  
+  /**
+   * Retrieves whether or not the tile at the inputted location has an enemy on it.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  boolean getHasEnemy(int i, int j);
+  
+  /**
+   * Changes whether the tile at the inputted location has an enemy on it.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param hasEnemy, whether or not the tile has an enemy on it
+   */
+  void setHasEnemy(int i, int j, boolean hasEnemy);
+  
+  /**
+   * Retrieves whether or not the tile at the inputted location is passable.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  boolean getPassable(int i, int j);
+  
+  /**
+   * Changes whether the tile at the inputted location is passable.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param passable, whether or not the tile is passable
+   */
+  void setPassable(int i, int j, boolean passable);
+  
+  /**
+   * Sets every field of the tile at the inputted location.
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   * @param image, the filename of the image
+   * @param hasPlayer, whether or not the tile has a player on it
+   * @param hasEnemy, whether or not the tile has an enemy on it
+   * @param passable, whether or not the tile is passable
+   */
+  void populate(int i, int j, String image, boolean hasPlayer, boolean hasEnemy, boolean passable);
+  
+  /**
+   * Sets every field of every tile to the same values.
+   * @param image, the filename of the image
+   * @param hasPlayer, whether or not the tiles have a player on them
+   * @param hasEnemy, whether or not the tiles have an enemy on them
+   * @param passable, whether or not the tiles are passable
+   */
+  void populateAll(String image, boolean hasPlayer, boolean hasEnemy, boolean passable);
+  
+  /**
+   * Adds the image name of every populated tile to the inputted set, without visiting
+   * every tile: storages list the images they have been given, which may include some
+   * no tile uses any more.
+   * @param images, the set the image names are added to
+   */
+  void collectImages(Set<String> images);
+}
@@ -0,0 +1,60 @@
+/*************************************************************************
+  *  Compilation:  javac TileView.java
+  *  Execution:    java TileView
+  *
+  *  A Tile that holds no fields of its own: every getter and setter reads
+  *  or writes one cell of a TileStorage. Handed out by storages that do not
+  *  keep a Tile object per cell, so code written against Tile keeps working.
+  * 
+  *  Version 1.01
+  *************************************************************************/
+public class TileView extends Tile {
+  private TileStorage storage;
+  private int i; // horizontal index of the viewed tile
+  private int j; // vertical index of the viewed tile
+  
+  /**
+   * Creates a new view of the tile at the inputted location of a storage.
+   * @param storage, the storage holding the tile
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  public TileView(TileStorage storage, int i, int j) {
+    super(null, false, false, false);
+    this.storage = storage;
+    this.i = i;
+    this.j = j;
+  }
+  
+  public String getImage() {
+    return this.storage.getImage(this.i, this.j);
+  }
+  
+  public void setImage(String img) {
+    this.storage.setImage(this.i, this.j, img);
+  }
+  
+  public boolean getHasPlayer() {
+    return this.storage.getHasPlayer(this.i, this.j);
+  }
+  
+  public void setHasPlayer(boolean hasPlayer) {
+    this.storage.setHasPlayer(this.i, this.j, hasPlayer);
+  }
+  
+  public boolean getHasEnemy() {
+    return this.storage.getHasEnemy(this.i, this.j);
+  }
+  
+  public void setHasEnemy(boolean hasEnemy) {
+    this.storage.setHasEnemy(this.i, this.j, hasEnemy);
+  }
+  
+  public boolean getPassable() {
+    return this.storage.getPassable(this.i, this.j);
+  }
+  
+  public void setPassable(boolean passable) {
+    this.storage.setPassable(this.i, this.j, passable);
+  }
+}
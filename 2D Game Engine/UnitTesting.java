@@ -10,6 +10,25 @@
 
 import static org.junit.Assert.*;
 import org.junit.*;  
+import java.awt.Graphics2D;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 public class UnitTesting {
   // Test Tile object constructor
@@ -180,4 +199,915 @@ public class UnitTesting {
     assertEquals(test2, testGame3.getGameAreas()[1]);
   }
   
+  // Test image cache hit/miss counting and least recently used eviction
+  @Test
+  public void testImageCacheEviction() {
+    ImageCache cache = new ImageCache(2 * 4 * 10 * 10);
+    cache.put("a", new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB));
+    cache.put("b", new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB));
+    assertNotNull(cache.get("a"));
+    cache.put("c", new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    assertEquals(3, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(2 * 4 * 10 * 10, cache.getCurrentBytes());
+  }
+  
+  // Tests that a scrolled display matches a full redraw, also after a tile under it changed
+  @Test
+  public void testScrollMatchesFullRedraw() {
+    for(int k = 0; k < 4; k++) {
+      BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+      for(int p = 0; p < 16; p++) {
+        image.setRGB(p % 4, p / 4, (k == 3 && p % 3 == 0 ? 0 : 0xFF000000) | (p * 7919 * (k + 1)) & 0xFFFFFF);
+      }
+      PennDraw.getImageCache().put("scroll" + k + ".png", image);
+    }
+    Game game = new Game(1);
+    game.insertGameArea(20, 20, "scroll0.png", "scroll1.png");
+    TileBoard board = game.getGameAreas()[0];
+    for(int i = 0; i < 20; i++) {
+      board.populateTile(i, (i * 3) % 20, "scroll2.png", false, false, true);
+    }
+    Player player = new Player("scroll3.png", board, 8, 8, 7, 7);
+    BufferedImage canvas = PennDraw.getOffscreenImage();
+    int width = canvas.getWidth();
+    int height = canvas.getHeight();
+    ViewportRenderer renderer = new ViewportRenderer(game, width, height);
+    renderer.draw(player);
+    
+    // Without an edit, a step in each direction is scrolled, and matches a full redraw.
+    for(int step = 0; step < 4; step++) {
+      if(step == 0) {
+        player.moveRight();
+      }
+      else if(step == 1) {
+        player.moveUp();
+      }
+      else if(step == 2) {
+        player.moveLeft();
+      }
+      else {
+        player.moveDown();
+      }
+      renderer.draw(player);
+      int[] scrolled = canvas.getRGB(0, 0, width, height, null, 0, width);
+      renderer.invalidate();
+      renderer.draw(player);
+      assertArrayEquals(canvas.getRGB(0, 0, width, height, null, 0, width), scrolled);
+    }
+    assertEquals(4, renderer.getScrollCount());
+    
+    // A tile changed on screen is seen after the next step, as a full redraw would show it.
+    board.populateTile(6, 9, "scroll1.png", false, false, true);
+    player.moveRight();
+    renderer.draw(player);
+    int[] drawn = canvas.getRGB(0, 0, width, height, null, 0, width);
+    assertEquals(4, renderer.getScrollCount());
+    renderer.invalidate();
+    renderer.draw(player);
+    assertArrayEquals(canvas.getRGB(0, 0, width, height, null, 0, width), drawn);
+  }
+  
+  // Test the game loop runs a fixed number of ticks over simulated time, catches up at most
+  // a few ticks at once, and stops whether or not it was running yet
+  @Test
+  public void testGameLoop() throws Exception {
+    Game game = new Game(1);
+    game.insertGameArea(9, 9, "Block.png", "Lava.png");
+    Player player = new Player("Mario.png", game.getGameAreas()[0], 4, 4, 3, 3);
+    GameLoop loop = new GameLoop(game, player, 60, 30);
+    long tick = 1000000000L / 60;
+    loop.begin(0);
+    for(long millis = 0; millis < 1000; millis++) {
+      long frames = loop.getFrameCount();
+      long wake = loop.step(millis * 1000000);
+      assertEquals(true, wake > millis * 1000000);
+      if(loop.getFrameCount() > frames) {
+        assertEquals(true, loop.getInterpolation() >= 0 && loop.getInterpolation() < 1);
+      }
+    }
+    assertEquals(60, loop.getTickCount());
+    assertEquals(30, loop.getFrameCount());
+    assertEquals(0, loop.getDroppedTickCount());
+    
+    // Falling 60 ticks behind runs 5 of them and drops the other 55.
+    loop.setMaxTicksPerFrame(5);
+    loop.step(119 * tick);
+    assertEquals(65, loop.getTickCount());
+    assertEquals(55, loop.getDroppedTickCount());
+    loop.step(119 * tick);
+    assertEquals(65, loop.getTickCount());
+    
+    // Stopped before it runs, the loop returns at once; stopped while running, it returns too.
+    game.setRenderOnMove(true);
+    final GameLoop stopped = new GameLoop(game, player);
+    stopped.stop();
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        stopped.run();
+      }
+    });
+    thread.start();
+    thread.join(5000);
+    assertEquals(false, thread.isAlive());
+    assertEquals(0, stopped.getTickCount());
+    final GameLoop running = new GameLoop(game, player);
+    thread = new Thread(new Runnable() {
+      public void run() {
+        running.run();
+      }
+    });
+    thread.start();
+    while(!running.isRunning() && thread.isAlive()) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(50);
+    running.stop();
+    thread.join(5000);
+    assertEquals(false, thread.isAlive());
+    assertEquals(false, running.isRunning());
+    assertEquals(true, running.getTickCount() > 0);
+    assertEquals(true, game.getRenderOnMove());
+  }
+  
+  // Test TileBoard backed by compact primitive storage
+  @Test
+  public void testCompactTileBoard() {
+    TileBoard test = new TileBoard(new CompactTileStorage(5, 6), "void");
+    test.populateEntireBoard("Block.png");
+    test.populateTile(1, 2, "Lava.png", false, true, false);
+    assertEquals(5, test.getNumTilesWidth());
+    assertEquals("Block.png", test.getTileImage(0, 0));
+    assertEquals("Lava.png", test.getTile(1, 2).getImage());
+    assertEquals(true, test.getTile(1, 2).getHasEnemy());
+    assertEquals(false, test.getTile(1, 2).getPassable());
+    assertEquals(true, test.getTile(1, 3).getPassable());
+    test.getTile(4, 5).setHasPlayer(true);
+    assertEquals(true, test.getStorage().getHasPlayer(4, 5));
+    assertEquals(false, test.getStorage().getHasPlayer(4, 4));
+    assertEquals(3, test.getReferencedImages().size());
+  }
+  
+  // Test chunked TileBoard only creates the chunks that are touched
+  @Test
+  public void testChunkedTileBoard() {
+    ChunkedTileStorage storage = new ChunkedTileStorage(1000000, 1000000);
+    TileBoard test = new TileBoard(storage, "void");
+    test.populateEntireBoard("Block.png");
+    assertEquals(0, storage.getLoadedChunkCount());
+    assertEquals("Block.png", test.getTileImage(999999, 999999));
+    assertEquals(true, test.getTilePassable(0, 0));
+    assertEquals(2, storage.getLoadedChunkCount());
+    assertEquals(0, storage.getExpandedChunkCount());
+    test.populateTile(5, 5, "Lava.png", false, false, false);
+    assertEquals("Lava.png", test.getTileImage(5, 5));
+    assertEquals("Block.png", test.getTileImage(5, 6));
+    assertEquals(1, storage.getExpandedChunkCount());
+    test.unloadFarChunks(0, 0);
+    assertEquals(1, storage.getLoadedChunkCount());
+    assertEquals("Lava.png", test.getTileImage(5, 5));
+    
+    // A player walking across the board only keeps the chunks around it loaded.
+    Player player = new Player("Mario.png", test, 40, 40, 7, 7);
+    for(int step = 0; step < 3200; step++) {
+      player.moveRight();
+      test.unloadFarChunks(player.getFirstTileIndex(), player.getSecondTileIndex());
+    }
+    assertEquals(3240, player.getFirstTileIndex());
+    assertTrue(storage.getLoadedChunkCount() <= 2 * ChunkedTileStorage.DEFAULT_UNLOAD_RADIUS + 2);
+    assertEquals(2, storage.getExpandedChunkCount());
+    assertEquals(false, test.getTilePassable(3240, 40));
+    assertEquals(true, test.getTilePassable(3239, 40));
+  }
+  
+  // Test writing a TileBoard to a map file and mapping it back
+  @Test
+  public void testTileMapFileRoundTrip() throws Exception {
+    TileBoard board = new TileBoard(40, 70, "Lava.png");
+    board.populateEntireBoard("Block.png");
+    board.populateTile(33, 65, "Mario.png", true, false, false);
+    File file = File.createTempFile("board", ".map");
+    file.deleteOnExit();
+    TileMapFile.write(board, file.getPath());
+    
+    TileBoard mapped = TileMapFile.load(file.getPath());
+    assertEquals(40, mapped.getNumTilesWidth());
+    assertEquals(70, mapped.getNumTilesHeight());
+    assertEquals("Lava.png", mapped.getPastBorderImage());
+    assertEquals("Block.png", mapped.getTileImage(39, 69));
+    assertEquals("Mario.png", mapped.getTileImage(33, 65));
+    assertEquals(true, mapped.getTile(33, 65).getHasPlayer());
+    assertEquals(false, mapped.getTilePassable(33, 65));
+    mapped.setTilePassable(33, 65, true);
+    assertEquals(true, mapped.getTilePassable(33, 65));
+    
+    TileBoard chunked = TileMapFile.loadChunked(file.getPath());
+    assertEquals("Mario.png", chunked.getTileImage(33, 65));
+    assertEquals(false, chunked.getTilePassable(33, 65));
+    assertEquals(true, chunked.getTilePassable(0, 0));
+    
+    // A chunked board is written without loading its chunks, and a missing past border image is kept.
+    ChunkedTileStorage storage = new ChunkedTileStorage(3000, 3000);
+    TileBoard large = new TileBoard(storage, null);
+    large.populateEntireBoard("Block.png");
+    large.populateTile(2999, 1, "Mario.png", false, true, true);
+    TileMapFile.write(large, file.getPath());
+    assertEquals(1, storage.getLoadedChunkCount());
+    TileBoard reloaded = TileMapFile.load(file.getPath());
+    assertEquals(null, reloaded.getPastBorderImage());
+    assertEquals("Block.png", reloaded.getTileImage(1500, 2999));
+    assertEquals("Mario.png", reloaded.getTileImage(2999, 1));
+    assertEquals(true, reloaded.getTile(2999, 1).getHasEnemy());
+    
+    // So is a chunked board over a map file, whose unloaded chunks are copied from the file.
+    File copy = File.createTempFile("board", ".map");
+    copy.deleteOnExit();
+    TileMapFile.write(chunked, copy.getPath());
+    assertEquals(2, ((ChunkedTileStorage) chunked.getStorage()).getLoadedChunkCount());
+    assertEquals("Mario.png", TileMapFile.load(copy.getPath()).getTileImage(33, 65));
+  }
+  
+  // Test only boards read from disk are prefetched, each chunk once
+  @Test
+  public void testChunkPrefetcher() throws Exception {
+    ChunkPrefetcher prefetcher = new ChunkPrefetcher(1);
+    TileBoard board = new TileBoard(200, 200, "Lava.png");
+    board.populateEntireBoard("Block.png");
+    Player player = new Player("Mario.png", board, 100, 100, 7, 7);
+    prefetcher.update(player);
+    assertEquals(0, prefetcher.getQueueDepth());
+    
+    File file = File.createTempFile("board", ".map");
+    file.deleteOnExit();
+    TileMapFile.write(board, file.getPath());
+    TileBoard mapped = TileMapFile.load(file.getPath());
+    player = new Player("Mario.png", mapped, 100, 100, 7, 7);
+    for(int k = 0; k < 3; k++) {
+      prefetcher.update(player);
+      while(prefetcher.getQueueDepth() > 0) {
+        Thread.sleep(1);
+      }
+    }
+    assertEquals(2, prefetcher.getChunksPrefetched());
+    
+    // Leaving the board forgets its chunks, so coming back pages them in again.
+    prefetcher.update(new Player("Mario.png", board, 100, 100, 7, 7));
+    player = new Player("Mario.png", mapped, 100, 100, 7, 7);
+    prefetcher.update(player);
+    while(prefetcher.getQueueDepth() > 0) {
+      Thread.sleep(1);
+    }
+    assertEquals(4, prefetcher.getChunksPrefetched());
+    prefetcher.shutdown();
+  }
+  
+  // Test drawing tiles in parallel stripes, copying opaque ones directly, gives exactly the same pixels
+  // as drawing them serially through Graphics2D
+  @Test
+  public void testStripeRasterizerMatchesSerial() throws Exception {
+    ArrayList<String> images = new ArrayList<String>();
+    for(int k = 0; k < 4; k++) {
+      BufferedImage image = new BufferedImage(5, 5, BufferedImage.TYPE_INT_ARGB);
+      for(int p = 0; p < 25; p++) {
+        int alpha = k == 3 ? 0xFF : p * 40 + k * 90; // the last image is opaque
+        image.setRGB(p % 5, p / 5, alpha << 24 | (p * 9973 * (k + 1)) & 0xFFFFFF);
+      }
+      File file = File.createTempFile("tile", ".png");
+      file.deleteOnExit();
+      ImageIO.write(image, "png", file);
+      images.add(file.getPath());
+    }
+    SpriteAtlas atlas = new SpriteAtlas();
+    atlas.build(images, 16, 24);
+    int[] cells = new int[11 * 9];
+    for(int k = 0; k < cells.length; k++) {
+      cells[k] = (k * 7) % 4;
+    }
+    assertEquals(false, atlas.isOpaque(0));
+    assertEquals(true, atlas.isOpaque(3));
+    
+    BufferedImage serial = new BufferedImage(190, 230, BufferedImage.TYPE_INT_ARGB);
+    BufferedImage striped = new BufferedImage(190, 230, BufferedImage.TYPE_INT_ARGB);
+    new StripeRasterizer(1).render(serial, atlas, cells, 11, 9);
+    new StripeRasterizer(5, new ForkJoinPool(4)).render(striped, atlas, cells, 11, 9);
+    BufferedImage drawn = new BufferedImage(190, 230, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = drawn.createGraphics();
+    for(int k = 0; k < cells.length; k++) {
+      int left = (k / 9) * 16;
+      int top = 230 - (k % 9 + 1) * 24;
+      int sx = atlas.getCellX(cells[k]);
+      int sy = atlas.getCellY(cells[k]);
+      g.drawImage(atlas.getSheet(), left, top, left + 16, top + 24, sx, sy, sx + 16, sy + 24, null);
+    }
+    g.dispose();
+    assertArrayEquals(drawn.getRGB(0, 0, 190, 230, null, 0, 190), serial.getRGB(0, 0, 190, 230, null, 0, 190));
+    assertArrayEquals(serial.getRGB(0, 0, 190, 230, null, 0, 190), striped.getRGB(0, 0, 190, 230, null, 0, 190));
+    assertEquals(atlas.getSheet().getRGB(atlas.getCellX(0), atlas.getCellY(0)), serial.getRGB(0, 229 - 23));
+    assertEquals(0, serial.getRGB(0, 229 - 24 * 9));
+  }
+  
+  // Test layers are drawn on top of the tiles from cached chunk pictures, redrawn only where changed
+  @Test
+  public void testLayeredTileBoard() throws Exception {
+    String[] names = new String[2];
+    for(int k = 0; k < 2; k++) {
+      BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+      for(int p = 0; p < 16; p++) {
+        // The ground is opaque blue; the overlay is red on its left half only.
+        image.setRGB(p % 4, p / 4, k == 0 ? 0xFF0000FF : p % 4 < 2 ? 0xFFFF0000 : 0);
+      }
+      File file = File.createTempFile("layer", ".png");
+      file.deleteOnExit();
+      ImageIO.write(image, "png", file);
+      names[k] = file.getPath();
+    }
+    TileBoard test = new TileBoard(20, 20, names[0]);
+    test.populateEntireBoard(names[0]);
+    assertEquals(1, test.getLayerCount());
+    assertEquals(1, test.addLayer());
+    test.setLayerImage(1, 3, 3, names[1]);
+    assertEquals(names[1], test.getLayerImage(1, 3, 3));
+    assertEquals(null, test.getLayerImage(1, 4, 3));
+    assertEquals(names[0], test.getLayerImage(0, 3, 3));
+    assertEquals(true, test.getReferencedImages().contains(names[1]));
+    
+    SpriteAtlas atlas = new SpriteAtlas();
+    atlas.build(test.getReferencedImages(), 4, 4);
+    ChunkBitmapCache cache = new ChunkBitmapCache(atlas);
+    BufferedImage canvas = new BufferedImage(80, 80, BufferedImage.TYPE_INT_ARGB);
+    cache.draw(test, 0, 0, 19, 19, canvas, 0, 0);
+    assertEquals(9, cache.getBuildCount());
+    assertEquals(0xFF0000FF, canvas.getRGB(0, 79));
+    assertEquals(0xFFFF0000, canvas.getRGB(12, 64));
+    assertEquals(0xFF0000FF, canvas.getRGB(15, 64));
+    cache.draw(test, 0, 0, 19, 19, canvas, 0, 0);
+    assertEquals(9, cache.getBuildCount());
+    assertEquals(9, cache.getHits());
+    
+    test.setLayerImage(1, 3, 3, null);
+    cache.draw(test, 0, 0, 19, 19, canvas, 0, 0);
+    assertEquals(10, cache.getBuildCount());
+    assertEquals(0xFF0000FF, canvas.getRGB(12, 64));
+  }
+  
+  // Test entities are found by tile, by radius and by nearest distance as they move
+  @Test
+  public void testEntityIndex() {
+    TileBoard test = new TileBoard(100, 100, "Lava.png");
+    test.populateEntireBoard("Block.png");
+    Player testPlayer = new Player("Mario.png", test, 50, 50, 7, 7);
+    Entity near = new Entity(Entity.ENEMY, "Lava.png", test, 53, 54);
+    Entity far = new Entity(Entity.ENEMY, "Lava.png", test, 90, 10);
+    Entity item = new Entity(Entity.ITEM, "Block.png", test, 51, 50);
+    assertEquals(4, test.getEntities().size());
+    assertEquals(true, test.getTile(53, 54).getHasEnemy());
+    assertEquals(false, test.getTilePassable(53, 54));
+    assertEquals(near, test.getEntities().getEntitiesAt(53, 54).get(0));
+    assertEquals(testPlayer.getEntity(), test.getEntities().getEntitiesAt(50, 50).get(0));
+    assertEquals(1, test.getEntities().getEntitiesWithin(50, 50, 5, Entity.ENEMY).size());
+    assertEquals(3, test.getEntities().getEntitiesWithin(50, 50, 5, EntityIndex.ANY_KIND).size());
+    assertEquals(near, test.getEntities().nearest(50, 50, 1000, Entity.ENEMY, null));
+    assertEquals(item, test.getEntities().nearest(50, 50, 1000, EntityIndex.ANY_KIND, testPlayer.getEntity()));
+    assertEquals(null, test.getEntities().nearest(50, 50, 4, Entity.ENEMY, null));
+    
+    testPlayer.moveDown();
+    assertEquals(0, test.getEntities().getEntitiesAt(50, 50).size());
+    assertEquals(testPlayer.getEntity(), test.getEntities().getEntitiesAt(50, 49).get(0));
+    assertEquals(true, near.moveLeft());
+    assertEquals(52, near.getFirstTileIndex());
+    assertEquals(true, test.getTilePassable(53, 54));
+    assertEquals(false, item.moveTo(50, 49));
+    near.remove();
+    assertEquals(far, test.getEntities().nearest(50, 50, 1000, Entity.ENEMY, null));
+    assertEquals(3, test.getEntities().size());
+  }
+  
+  // Test a parallel scheduler tick moves entities exactly like a serial one, never two onto one tile
+  @Test
+  public void testEntitySchedulerIsDeterministic() {
+    TileBoard[] boards = new TileBoard[2];
+    EntityScheduler[] schedulers = new EntityScheduler[2];
+    for(int b = 0; b < 2; b++) {
+      boards[b] = new TileBoard(new CompactTileStorage(300, 300), "Lava.png");
+      boards[b].populateEntireBoard("Block.png");
+      schedulers[b] = new EntityScheduler(boards[b], b == 0 ? null : new ForkJoinPool(4));
+      Random random = new Random(7);
+      for(int k = 0; k < 3000; k++) {
+        int i = random.nextInt(300);
+        int j = random.nextInt(300);
+        if(boards[b].getTilePassable(i, j)) {
+          schedulers[b].add(new Entity(Entity.ENEMY, "Mario.png", boards[b], i, j), new WanderBehavior(11));
+        }
+      }
+    }
+    for(int tick = 0; tick < 40; tick++) {
+      schedulers[0].tick();
+      schedulers[1].tick();
+    }
+    assertEquals(true, schedulers[1].getCrossRegionMoveCount() > 0);
+    assertEquals(schedulers[0].getMoveCount(), schedulers[1].getMoveCount());
+    int occupied = 0;
+    for(int i = 0; i < 300; i++) {
+      for(int j = 0; j < 300; j++) {
+        assertEquals(boards[0].getTilePassable(i, j), boards[1].getTilePassable(i, j));
+        assertEquals(boards[0].getEntities().getEntitiesAt(i, j).size(), boards[1].getEntities().getEntitiesAt(i, j).size());
+        assertEquals(true, boards[1].getEntities().getEntitiesAt(i, j).size() <= 1);
+        occupied += boards[1].getTilePassable(i, j) ? 0 : 1;
+      }
+    }
+    assertEquals(schedulers[1].size(), occupied);
+  }
+  
+  // Test threads racing to claim the same few tiles never hold one tile at once
+  @Test
+  public void testTileClaimsUnderContention() throws Exception {
+    final TileBoard test = new TileBoard(new CompactTileStorage(8, 8), "Lava.png");
+    test.populateEntireBoard("Block.png");
+    test.populateTile(3, 3, "Lava.png", false, false, false);
+    final AtomicIntegerArray holders = new AtomicIntegerArray(64);
+    final AtomicInteger doubled = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for(int t = 0; t < threads.length; t++) {
+      final Random random = new Random(t);
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          for(int step = 0; step < 20000; step++) {
+            int i = random.nextInt(4);
+            int j = random.nextInt(4);
+            if(test.claimTile(i, j, Entity.ENEMY)) {
+              if(holders.incrementAndGet(i * 8 + j) != 1) {
+                doubled.incrementAndGet();
+              }
+              holders.decrementAndGet(i * 8 + j);
+              test.releaseTile(i, j, Entity.ENEMY);
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, doubled.get());
+    assertEquals(false, test.isTileClaimed(3, 3));
+    assertEquals(false, test.getTilePassable(3, 3));
+    for(int i = 0; i < 8; i++) {
+      for(int j = 0; j < 8; j++) {
+        assertEquals(false, test.isTileClaimed(i, j));
+        assertEquals(i != 3 || j != 3, test.getTilePassable(i, j));
+        assertEquals(false, test.getTile(i, j).getHasEnemy());
+      }
+    }
+  }
+  
+  // Test A* routes around a wall by a shortest path, and a flow field leads to the same goal
+  @Test
+  public void testPathfinding() {
+    TileBoard test = new TileBoard(new CompactTileStorage(20, 20), "Lava.png");
+    test.populateEntireBoard("Block.png");
+    for(int j = 0; j < 19; j++) {
+      test.populateTile(10, j, "Lava.png", false, false, false);
+    }
+    Entity blocker = new Entity(Entity.ENEMY, "Mario.png", test, 5, 5);
+    Pathfinder finder = new Pathfinder(test);
+    int[] route = finder.findPath(2, 2, 17, 2);
+    assertEquals(15 + 2 * 17, route.length);
+    int i = 2;
+    int j = 2;
+    for(int move : route) {
+      i += move == EntityBehavior.RIGHT ? 1 : move == EntityBehavior.LEFT ? -1 : 0;
+      j += move == EntityBehavior.UP ? 1 : move == EntityBehavior.DOWN ? -1 : 0;
+      assertEquals(true, Pathfinder.isWalkable(test, i, j));
+    }
+    assertEquals(17, i);
+    assertEquals(2, j);
+    assertEquals(0, finder.findPath(4, 4, 4, 4).length);
+    assertEquals(9, finder.findPath(0, 5, 9, 5).length);
+    
+    test.populateTile(10, 19, "Lava.png", false, false, false);
+    assertEquals(null, finder.findPath(2, 2, 17, 2));
+    FlowField field = new FlowField(test, 17, 2);
+    assertEquals(-1, field.getDistance(2, 2));
+    assertEquals(EntityBehavior.STAY, field.getMove(2, 2));
+    assertEquals(0, field.getDistance(17, 2));
+    assertEquals(6, field.getDistance(12, 3));
+    
+    field.compute(0, 0);
+    assertEquals(10, field.getDistance(5, 5));
+    EntityScheduler scheduler = new EntityScheduler(test, null);
+    scheduler.add(blocker, field);
+    for(int tick = 0; tick < 10; tick++) {
+      scheduler.tick();
+    }
+    assertEquals(0, blocker.getFirstTileIndex());
+    assertEquals(0, blocker.getSecondTileIndex());
+  }
+  
+  // Test hierarchical routes are valid and near-shortest, and only changed clusters are built again
+  @Test
+  public void testHierarchicalPathfinding() {
+    TileBoard test = new TileBoard(new CompactTileStorage(128, 128), "Lava.png");
+    test.populateEntireBoard("Block.png");
+    Random random = new Random(3);
+    for(int wall = 0; wall < 128 * 128 / 5; wall++) {
+      test.setTilePassable(random.nextInt(128), random.nextInt(128), false);
+    }
+    HierarchicalPathfinder finder = new HierarchicalPathfinder(test, 32);
+    Pathfinder flat = new Pathfinder(test);
+    for(int query = 0; query < 200; query++) {
+      int fromI = random.nextInt(128);
+      int fromJ = random.nextInt(128);
+      int toI = random.nextInt(128);
+      int toJ = random.nextInt(128);
+      int[] shortest = flat.findPath(fromI, fromJ, toI, toJ);
+      int[] route = finder.findPath(fromI, fromJ, toI, toJ);
+      assertEquals(shortest == null, route == null);
+      if(route != null) {
+        assertEquals(true, route.length >= shortest.length && route.length <= shortest.length * 5 / 4 + 8);
+        int i = fromI;
+        int j = fromJ;
+        for(int step = 0; step < route.length; step++) {
+          i += route[step] == EntityBehavior.RIGHT ? 1 : route[step] == EntityBehavior.LEFT ? -1 : 0;
+          j += route[step] == EntityBehavior.UP ? 1 : route[step] == EntityBehavior.DOWN ? -1 : 0;
+          assertEquals(true, step == route.length - 1 || Pathfinder.isWalkable(test, i, j));
+        }
+        assertEquals(toI, i);
+        assertEquals(toJ, j);
+      }
+    }
+    assertEquals(16, finder.getClusterBuildCount());
+    
+    // A wall in cluster (1, 1) builds it and its 4 neighbours again; one in corner cluster (0, 0), 3.
+    test.setTilePassable(40, 40, false);
+    finder.findPath(0, 0, 1, 1);
+    assertEquals(21, finder.getClusterBuildCount());
+    test.getTile(5, 5).setPassable(false);
+    test.invalidateTilePassable(5, 5);
+    finder.findPath(0, 0, 1, 1);
+    assertEquals(24, finder.getClusterBuildCount());
+    finder.findPath(0, 0, 1, 1);
+    assertEquals(24, finder.getClusterBuildCount());
+    test.populateEntireBoard("Block.png");
+    assertEquals(127 + 127, finder.findPath(0, 0, 127, 127).length);
+    assertEquals(40, finder.getClusterBuildCount());
+  }
+  
+  // Test a mover or target on a wall at a cluster's edge, with its only ways out in the next clusters, is routed as by flat A*
+  @Test
+  public void testHierarchicalPathfindingFromWalls() {
+    TileBoard test = new TileBoard(new CompactTileStorage(128, 128), "Lava.png");
+    test.populateEntireBoard("Block.png");
+    int[][] walls = {{31, 10}, {30, 10}, {31, 11}, {31, 9}, // start: only (32, 10) is open
+                     {64, 100}, {65, 100}, {64, 101}, {64, 99}, // goal: only (63, 100) is open
+                     {31, 63}, {30, 63}, {31, 62}}; // corner: (32, 63) and (31, 64) are open, in two other clusters
+    for(int[] wall : walls) {
+      test.setTilePassable(wall[0], wall[1], false);
+    }
+    HierarchicalPathfinder finder = new HierarchicalPathfinder(test, 32);
+    Pathfinder flat = new Pathfinder(test);
+    int[][] queries = {{31, 10, 100, 120}, {100, 120, 64, 100}, {31, 10, 64, 100}, {31, 63, 120, 5}, {120, 5, 31, 63}};
+    for(int[] query : queries) {
+      int[] shortest = flat.findPath(query[0], query[1], query[2], query[3]);
+      int[] route = finder.findPath(query[0], query[1], query[2], query[3]);
+      assertEquals(true, shortest != null && route != null);
+      assertEquals(true, route.length >= shortest.length && route.length <= shortest.length * 5 / 4 + 8);
+      int i = query[0];
+      int j = query[1];
+      for(int step = 0; step < route.length; step++) {
+        i += route[step] == EntityBehavior.RIGHT ? 1 : route[step] == EntityBehavior.LEFT ? -1 : 0;
+        j += route[step] == EntityBehavior.UP ? 1 : route[step] == EntityBehavior.DOWN ? -1 : 0;
+        assertEquals(true, step == route.length - 1 || Pathfinder.isWalkable(test, i, j));
+      }
+      assertEquals(query[2], i);
+      assertEquals(query[3], j);
+    }
+  }
+  
+  // Test key events pass from one thread to another in order, and typed keys reach the game
+  @Test
+  public void testInputQueue() throws Exception {
+    final InputQueue queue = new InputQueue(64);
+    final int count = 200000;
+    final AtomicLong refused = new AtomicLong();
+    Thread producer = new Thread(new Runnable() {
+      public void run() {
+        for(int code = 0; code < count; code++) {
+          while(!queue.offer(InputQueue.KEY_PRESSED, code, code)) {
+            refused.incrementAndGet();
+            Thread.yield();
+          }
+        }
+      }
+    });
+    producer.start();
+    InputQueue.Batch batch = new InputQueue.Batch();
+    int expected = 0;
+    while(expected < count) {
+      if(expected % 2 == 0 && queue.poll()) {
+        assertEquals(expected, queue.getCode());
+        assertEquals(expected, queue.getTime());
+        expected++;
+      }
+      else {
+        queue.drainTo(batch);
+        for(int k = 0; k < batch.size(); k++) {
+          assertEquals(expected, batch.getCode(k));
+          expected++;
+        }
+      }
+    }
+    producer.join();
+    assertEquals(true, queue.isEmpty());
+    assertEquals(refused.get(), queue.getDroppedCount());
+    
+    Game game = new Game(1, new HeadlessRenderTarget(320, 320));
+    game.setRenderOnMove(false);
+    game.insertGameArea(9, 9, "Block.png", "Lava.png");
+    Player player = new Player("Mario.png", game.getGameAreas()[0], 4, 4, 3, 3);
+    // The event thread adds typed keys to both queues; reading one leaves the other's events alone.
+    PennDraw.getInputQueue().offer(InputQueue.KEY_PRESSED, KeyEvent.VK_D);
+    PennDraw.getInputQueue().offer(InputQueue.KEY_TYPED, 'd');
+    PennDraw.getTypedKeyQueue().offer(InputQueue.KEY_TYPED, 'd');
+    PennDraw.getInputQueue().offer(InputQueue.KEY_TYPED, 'W');
+    PennDraw.getTypedKeyQueue().offer(InputQueue.KEY_TYPED, 'W');
+    game.tick(player);
+    assertEquals(5, player.getFirstTileIndex());
+    assertEquals(5, player.getSecondTileIndex());
+    assertEquals('d', PennDraw.nextKeyTyped());
+    assertEquals('W', PennDraw.nextKeyTyped());
+    assertEquals(false, PennDraw.hasNextKeyTyped());
+    PennDraw.getInputQueue().offer(InputQueue.KEY_RELEASED, KeyEvent.VK_D);
+    PennDraw.getInputQueue().offer(InputQueue.KEY_TYPED, 'x');
+    PennDraw.getTypedKeyQueue().offer(InputQueue.KEY_TYPED, 'x');
+    assertEquals(true, PennDraw.hasNextKeyTyped());
+    assertEquals('x', PennDraw.nextKeyTyped());
+    assertEquals(false, PennDraw.hasNextKeyTyped());
+    assertEquals(InputQueue.KEY_RELEASED, PennDraw.getInputQueue().peekType());
+    PennDraw.getInputQueue().drainTo(new InputQueue.Batch());
+  }
+  
+  // Tests that a held key moves the player once per movement interval, starting on the tick it is pressed
+  @Test
+  public void testMovementController() {
+    Game game = new Game(1, new HeadlessRenderTarget(320, 320));
+    game.setRenderOnMove(false);
+    game.insertGameArea(9, 9, "Block.png", "Lava.png");
+    Player player = new Player("Mario.png", game.getGameAreas()[0], 1, 1, 3, 3);
+    InputQueue queue = PennDraw.getInputQueue();
+    game.tick(player); // clears events left by other tests
+    game.setMovementController(new MovementController(3));
+    
+    queue.offer(InputQueue.KEY_PRESSED, KeyEvent.VK_D);
+    game.tick(player);
+    assertEquals(2, player.getFirstTileIndex());
+    // Key repeat presses do not move the player any faster.
+    for(int tick = 1; tick < 6; tick++) {
+      queue.offer(InputQueue.KEY_PRESSED, KeyEvent.VK_D);
+      game.tick(player);
+    }
+    assertEquals(3, player.getFirstTileIndex());
+    game.tick(player);
+    assertEquals(4, player.getFirstTileIndex());
+    
+    // The most recently pressed key wins, and the other takes over once it is released.
+    queue.offer(InputQueue.KEY_PRESSED, KeyEvent.VK_UP);
+    game.tick(player);
+    game.tick(player);
+    game.tick(player);
+    assertEquals(4, player.getFirstTileIndex());
+    assertEquals(2, player.getSecondTileIndex());
+    queue.offer(InputQueue.KEY_RELEASED, KeyEvent.VK_UP);
+    game.tick(player);
+    game.tick(player);
+    game.tick(player);
+    assertEquals(5, player.getFirstTileIndex());
+    assertEquals(2, player.getSecondTileIndex());
+    
+    // A tap shorter than a tick still moves once, at once.
+    queue.offer(InputQueue.KEY_RELEASED, KeyEvent.VK_D);
+    game.tick(player);
+    queue.offer(InputQueue.KEY_PRESSED, KeyEvent.VK_S);
+    queue.offer(InputQueue.KEY_RELEASED, KeyEvent.VK_S);
+    game.tick(player);
+    game.tick(player);
+    game.tick(player);
+    game.tick(player);
+    assertEquals(5, player.getFirstTileIndex());
+    assertEquals(1, player.getSecondTileIndex());
+    game.setMovementController(null);
+  }
+  // Tests that a camera glides the display between tiles and ends where a snapped display would be
+  @Test
+  public void testCamera() {
+    // Images made up in memory, so the test needs no files; the player's has transparent pixels.
+    for(int k = 0; k < 3; k++) {
+      BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+      for(int p = 0; p < 16; p++) {
+        image.setRGB(p % 4, p / 4, (k == 2 && p % 3 == 0 ? 0 : 0xFF000000) | (p * 9973 * (k + 1)) & 0xFFFFFF);
+      }
+      PennDraw.getImageCache().put("camera" + k + ".png", image);
+    }
+    Game game = new Game(1, new HeadlessRenderTarget(320, 320));
+    game.setRenderOnMove(false);
+    game.insertGameArea(9, 9, "camera0.png", "camera1.png");
+    TileBoard board = game.getGameAreas()[0];
+    for(int i = 0; i < 9; i++) {
+      board.setTileImage(i, 6, i % 3 == 0 ? "camera1.png" : "camera0.png");
+    }
+    Player player = new Player("camera2.png", board, 4, 4, 5, 5);
+    game.tick(player); // clears events left by other tests
+    BufferedImage canvas = PennDraw.getOffscreenImage();
+    game.drawPlayerDisplay(player);
+    int[] before = canvas.getRGB(0, 0, 320, 320, null, 0, 320);
+    
+    Camera camera = new Camera(0.5);
+    game.setCamera(camera);
+    game.render(player, 0.0);
+    assertArrayEquals(before, canvas.getRGB(0, 0, 320, 320, null, 0, 320));
+    
+    // Half way to the next tile, the top row of tiles has slid half a tile to the left.
+    game.movementRight(player);
+    game.tick(player);
+    assertEquals(4.25, camera.getX(0.5), 1e-9);
+    game.render(player, 1.0);
+    for(int x = 0; x < 320 - 32; x++) {
+      assertEquals(before[10 * 320 + x + 32], canvas.getRGB(x, 10));
+    }
+    
+    game.tick(player);
+    game.render(player, 1.0);
+    int[] glided = canvas.getRGB(0, 0, 320, 320, null, 0, 320);
+    game.setCamera(null);
+    game.invalidateDisplay();
+    game.drawPlayerDisplay(player);
+    assertArrayEquals(canvas.getRGB(0, 0, 320, 320, null, 0, 320), glided);
+    
+    // A camera never falls more than a tile behind.
+    game.movementRight(player);
+    game.movementRight(player);
+    game.movementRight(player);
+    camera.tick(player);
+    assertEquals(7.5, camera.getX(1.0), 1e-9);
+    
+    // A tile changed under the cached layer is drawn on the next frame, as after invalidating the layer.
+    ViewportRenderer renderer = new ViewportRenderer(game, 320, 320);
+    double x = player.getFirstTileIndex() - 0.5;
+    double y = player.getSecondTileIndex();
+    renderer.draw(player, x, y);
+    board.setTileImage(player.getFirstTileIndex(), player.getSecondTileIndex() + 1, "camera1.png");
+    renderer.draw(player, x, y);
+    int[] edited = canvas.getRGB(0, 0, 320, 320, null, 0, 320);
+    renderer.invalidate();
+    renderer.draw(player, x, y);
+    assertArrayEquals(canvas.getRGB(0, 0, 320, 320, null, 0, 320), edited);
+  }
+  // Tests that histogram percentiles are within their bucket's precision and that frames are recorded
+  @Test
+  public void testMetrics() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getValueAtPercentile(99));
+    for(long value = 1; value <= 100000; value++) {
+      histogram.record(value * 1000);
+    }
+    assertEquals(100000, histogram.getCount());
+    assertEquals(100000000, histogram.getMax());
+    assertEquals(50000500.0, histogram.getMean(), 1e-6);
+    assertEquals(50000000, histogram.getValueAtPercentile(50), 50000000 / 64);
+    assertEquals(99000000, histogram.getValueAtPercentile(99), 99000000 / 64);
+    assertEquals(100000000, histogram.getValueAtPercentile(100));
+    assertEquals(1000, histogram.getValueAtPercentile(0), 1000 / 64);
+    histogram.record(7);
+    histogram.record(63);
+    histogram.reset();
+    histogram.record(63);
+    assertEquals(63, histogram.getValueAtPercentile(50));
+    
+    BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+    PennDraw.getImageCache().put("metrics0.png", image);
+    Metrics metrics = new Metrics();
+    Game game = new Game(1, new HeadlessRenderTarget(320, 320));
+    game.setMetrics(metrics);
+    game.setRenderOnMove(false);
+    game.insertGameArea(9, 9, "metrics0.png", "metrics0.png");
+    Player player = new Player("metrics0.png", game.getGameAreas()[0], 4, 4, 5, 5);
+    game.drawPlayerDisplay(player);
+    game.movementRight(player);
+    game.render(player, 0.0);
+    assertEquals(2, metrics.counter("frames").sum());
+    assertEquals(1, metrics.counter("moves").sum());
+    assertEquals(2, metrics.histogram("frame.nanos").getCount());
+    assertEquals(25, metrics.histogram("frame.tiles").getMax()); // a full redraw, then a scroll of 5 + 1 tiles
+    assertEquals(1, metrics.histogram("frame.presents").getMax());
+    String json = metrics.toJson();
+    assertEquals(true, json.contains("\"frames\": 2"));
+    assertEquals(true, json.contains("\"frame.tiles\": {\"count\": 2"));
+    assertEquals(true, metrics.toLogLine().contains(" moves=1 "));
+    
+    metrics.setEnabled(false);
+    game.movementLeft(player);
+    game.render(player, 0.0);
+    assertEquals(2, metrics.counter("frames").sum());
+  }
+  // Tests that a flight recording holds the engine's events, with the board, player and tile counts
+  @Test
+  public void testFlightRecorderEvents() throws Exception {
+    BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB);
+    PennDraw.getImageCache().put("events0.png", image);
+    Recording recording = new Recording();
+    for(String name : new String[] {"engine.Frame", "engine.TilePass", "engine.BoardPopulate", "engine.Move"}) {
+      recording.enable(name);
+    }
+    recording.start();
+    Game game = new Game(1, new HeadlessRenderTarget(320, 320));
+    game.setRenderOnMove(false);
+    game.insertGameArea(9, 9, "events0.png", "events0.png");
+    TileBoard board = game.getGameAreas()[0];
+    Player player = new Player("events0.png", board, 4, 4, 5, 5);
+    game.drawPlayerDisplay(player);
+    game.movementUp(player);
+    game.render(player, 0.0);
+    recording.stop();
+    Path file = Files.createTempFile("events", ".jfr");
+    file.toFile().deleteOnExit();
+    recording.dump(file);
+    recording.close();
+    
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for(RecordedEvent event : RecordingFile.readAllEvents(file)) {
+      String name = event.getEventType().getName();
+      if(!name.startsWith("engine.") || event.getInt("boardId") != board.getId()) {
+        continue; // another test's board
+      }
+      counts.merge(name, 1, Integer::sum);
+      if(name.equals("engine.Move")) {
+        assertEquals("up", event.getString("direction"));
+        assertEquals(4, event.getInt("toI"));
+        assertEquals(5, event.getInt("toJ"));
+        assertEquals(true, event.getBoolean("moved"));
+      }
+      if(name.equals("engine.TilePass") && event.getString("kind").equals("scroll")) {
+        assertEquals(6, event.getLong("tiles")); // the new row, and the tile the player left
+        assertEquals(5, event.getInt("centerJ"));
+      }
+      if(name.equals("engine.BoardPopulate")) {
+        assertEquals("events0.png", event.getString("image"));
+        assertEquals(81, event.getInt("width") * event.getInt("height"));
+      }
+    }
+    assertEquals(Integer.valueOf(2), counts.get("engine.Frame"));
+    assertEquals(Integer.valueOf(2), counts.get("engine.TilePass"));
+    assertEquals(Integer.valueOf(1), counts.get("engine.BoardPopulate"));
+    assertEquals(Integer.valueOf(1), counts.get("engine.Move"));
+    assertEquals(false, board.getId() == new TileBoard(1, 1, "events0.png").getId());
+  }
+  // Tests that warming up decodes every image a game may draw, then shows the first frame once
+  @Test
+  public void testWarmUp() throws Exception {
+    String[] names = new String[3];
+    for(int k = 0; k < names.length; k++) {
+      BufferedImage image = new BufferedImage(6, 6, BufferedImage.TYPE_INT_ARGB);
+      for(int p = 0; p < 36; p++) {
+        image.setRGB(p % 6, p / 6, 0xFF000000 | (p * 7919 * (k + 3)) & 0xFFFFFF);
+      }
+      File file = File.createTempFile("warm", ".png");
+      file.deleteOnExit();
+      ImageIO.write(image, "png", file);
+      names[k] = file.getPath();
+    }
+    Game game = new Game(1, new HeadlessRenderTarget(320, 320));
+    game.setRenderOnMove(false);
+    game.insertGameArea(9, 9, names[0], names[1]);
+    Player player = new Player(names[2], game.getGameAreas()[0], 0, 0, 5, 5);
+    
+    long presents = PennDraw.getPresentCount();
+    assertEquals(true, game.warmUp(player, 50) >= 1);
+    assertEquals(presents + 1, PennDraw.getPresentCount());
+    for(String name : names) {
+      assertEquals(true, PennDraw.getImageCache().contains(name));
+    }
+    assertEquals(0, PennDraw.preloadImages(Arrays.asList(names), 4));
+    
+    // The frame shown is the one the first drawPlayerDisplay would have drawn.
+    BufferedImage canvas = PennDraw.getOffscreenImage();
+    int[] shown = canvas.getRGB(0, 0, 320, 320, null, 0, 320);
+    game.invalidateDisplay();
+    game.drawPlayerDisplay(player);
+    assertArrayEquals(canvas.getRGB(0, 0, 320, 320, null, 0, 320), shown);
+    game.setCamera(new Camera());
+    game.warmUp(player, 0);
+    assertArrayEquals(canvas.getRGB(0, 0, 320, 320, null, 0, 320), shown);
+    
+    try {
+      PennDraw.preloadImages(Arrays.asList(names[0], "missing.png"), 2);
+      fail("A missing image should not preload");
+    }
+    catch(IllegalArgumentException e) {
+      assertEquals("image missing.png not found", e.getMessage());
+    }
+  }
 }
\ No newline at end of file
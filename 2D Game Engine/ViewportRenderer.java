@@ -0,0 +1,715 @@
+/*************************************************************************
+  *  Compilation:  javac ViewportRenderer.java
+  *  Execution:    java ViewportRenderer
+  *
+  *  Draws the Tile display around a Player for a Game. Remembers which part
+  *  of which TileBoard was last drawn, so that when the Player has only
+  *  stepped one tile the existing picture is scrolled by one tile and only
+  *  the newly exposed row or column and the Player's cells are redrawn.
+  *  The picture is only scrolled if the board's version and the versions
+  *  of the chunks under it are unchanged since it was drawn; otherwise
+  *  every tile is drawn again.
+  *  Boards with more than one layer are drawn from cached pictures of their
+  *  chunks with every layer already combined (see ChunkBitmapCache).
+  *  For a Camera between tiles, the tiles around it, plus one ring more,
+  *  are kept in a cached layer that is scrolled a tile at a time like the
+  *  display; each frame copies the part of it under the camera onto the
+  *  canvas at a pixel offset, so a glide redraws no tiles in between.
+  *  The layer, too, is drawn again in full once any tile under it changes.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+public class ViewportRenderer {
+  private Game game; // the game whose areas are drawn
+  private int width; // canvas width in pixels
+  private int height; // canvas height in pixels
+  private SpriteAtlas atlas; // every drawn image, pre-scaled to the current tile size
+  private StripeRasterizer rasterizer; // copies the tiles of a full redraw into the canvas
+  private int[] cells; // atlas cell of each display tile, reused between full redraws
+  private ChunkBitmapCache layerCache; // pictures of the chunks of layered boards
+
+  // What the canvas currently shows, used to decide if a scroll is enough.
+  private boolean valid; // false until a full display has been drawn, or after invalidate
+  private TileBoard lastBoard;
+  private int lastFirstTileIndex;
+  private int lastSecondTileIndex;
+  private int lastDisplayWidth;
+  private int lastDisplayHeight;
+  private long lastVersion; // the board's version when the display was drawn
+  private long lastChunkVersions; // the sum of the versions of the board's chunks under the display
+
+  private long fullRedraws; // number of displays drawn tile by tile
+  private long scrolls; // number of displays drawn by scrolling
+  private long tilesDrawn; // number of tiles drawn, onto the canvas or into the cached tile layer
+
+  // The cached tile layer drawn from with a camera: the display and one ring of tiles around it.
+  private BufferedImage layer;
+  private int[] layerCells; // atlas cell of each layer tile, reused between full redraws
+  private boolean layerValid; // false until the whole layer has been drawn, or after invalidate
+  private TileBoard layerBoard;
+  private int layerI; // the tile the layer is centered on, along the first index
+  private int layerJ; // the tile the layer is centered on, along the second index
+  private long layerVersion; // the board's version when the layer was last drawn into
+  private long layerChunkVersions; // the sum of the versions of the board's chunks under the layer
+  private long layerTiles; // number of tiles drawn into the layer
+  private long cameraFrames; // number of displays drawn from the layer
+
+  /**
+   * Creates a new ViewportRenderer for a Game drawn on a width by height canvas.
+   * @param game, the game whose areas are drawn
+   * @param width, the canvas width in pixels
+   * @param height, the canvas height in pixels
+   */
+  public ViewportRenderer(Game game, int width, int height) {
+    this.game = game;
+    this.width = width;
+    this.height = height;
+    this.atlas = new SpriteAtlas();
+    this.rasterizer = new StripeRasterizer();
+    this.layerCache = new ChunkBitmapCache(this.atlas);
+  }
+
+  /**
+   * Draws the Tile display around the Player, scrolling the previous display
+   * if the player has moved exactly one tile since it was drawn and no tile
+   * under it has changed.
+   * @param player, the player in question
+   */
+  public void draw(Player player) {
+    this.matchAtlas(player);
+
+    TileBoard board = player.getBoard();
+    int halfWidth = (player.getDisplayWidth() - 1) / 2;
+    int halfHeight = (player.getDisplayHeight() - 1) / 2;
+    int dx = player.getFirstTileIndex() - this.lastFirstTileIndex;
+    int dy = player.getSecondTileIndex() - this.lastSecondTileIndex;
+    if(this.valid && board == this.lastBoard && Math.abs(dx) + Math.abs(dy) == 1 &&
+       player.getDisplayWidth() == this.lastDisplayWidth &&
+       player.getDisplayHeight() == this.lastDisplayHeight &&
+       board.getVersion() == this.lastVersion &&
+       chunkVersionSum(board, this.lastFirstTileIndex, this.lastSecondTileIndex, halfWidth, halfHeight) ==
+       this.lastChunkVersions) {
+      this.drawScrolled(player, dx, dy);
+    }
+    else {
+      this.drawFull(player);
+    }
+
+    this.valid = true;
+    this.lastBoard = board;
+    this.lastFirstTileIndex = player.getFirstTileIndex();
+    this.lastSecondTileIndex = player.getSecondTileIndex();
+    this.lastDisplayWidth = player.getDisplayWidth();
+    this.lastDisplayHeight = player.getDisplayHeight();
+    this.lastVersion = board.getVersion();
+    this.lastChunkVersions = chunkVersionSum(board, this.lastFirstTileIndex, this.lastSecondTileIndex,
+                                             halfWidth, halfHeight);
+  }
+
+  /**
+   * Draws the Tile display centered on a camera position between tiles, then the
+   * player where it stands relative to it. The display is copied out of the cached
+   * tile layer, which is only drawn into when the camera crosses into another tile
+   * or a tile under the layer changes.
+   * @param player, the player in question
+   * @param cameraX, the camera's position along the first index, in tiles
+   * @param cameraY, the camera's position along the second index, in tiles
+   */
+  public void draw(Player player, double cameraX, double cameraY) {
+    this.matchAtlas(player);
+    int tileWidth = this.atlas.getTileWidth();
+    int tileHeight = this.atlas.getTileHeight();
+    int halfWidth = (player.getDisplayWidth() - 1) / 2;
+    int halfHeight = (player.getDisplayHeight() - 1) / 2;
+    int columns = player.getDisplayWidth() + 2;
+    int rows = player.getDisplayHeight() + 2;
+    if(this.layer == null || this.layer.getWidth() != columns * tileWidth ||
+       this.layer.getHeight() != rows * tileHeight) {
+      this.layer = new BufferedImage(columns * tileWidth, rows * tileHeight, BufferedImage.TYPE_INT_ARGB);
+      this.layerValid = false;
+    }
+
+    // The layer is centered on the tile at or below the camera, so the ring covers a glide either way.
+    TileBoard board = player.getBoard();
+    int baseI = (int) Math.floor(cameraX);
+    int baseJ = (int) Math.floor(cameraY);
+    int dx = baseI - this.layerI;
+    int dy = baseJ - this.layerJ;
+    boolean drawn = true;
+    if(!this.layerValid || board != this.layerBoard || Math.abs(dx) > 1 || Math.abs(dy) > 1 ||
+       board.getVersion() != this.layerVersion ||
+       chunkVersionSum(board, this.layerI, this.layerJ, halfWidth + 1, halfHeight + 1) != this.layerChunkVersions) {
+      this.drawLayer(board, baseI, baseJ, halfWidth, halfHeight);
+    }
+    else if(dx != 0 || dy != 0) {
+      this.scrollLayer(board, dx, dy, halfWidth, halfHeight);
+    }
+    else {
+      drawn = false;
+    }
+    if(drawn) {
+      this.layerVersion = board.getVersion();
+      this.layerChunkVersions = chunkVersionSum(board, this.layerI, this.layerJ, halfWidth + 1, halfHeight + 1);
+    }
+
+    // Copy the display-sized part of the layer under the camera, anchored to the bottom left corner.
+    int displayPixelWidth = player.getDisplayWidth() * tileWidth;
+    int displayPixelHeight = player.getDisplayHeight() * tileHeight;
+    int sx = tileWidth + (int) Math.round((cameraX - baseI) * tileWidth);
+    int sy = tileHeight - (int) Math.round((cameraY - baseJ) * tileHeight);
+    BufferedImage canvas = PennDraw.getOffscreenImage();
+    int[] canvasPixels = StripeRasterizer.getPixels(canvas);
+    if(canvasPixels != null) {
+      StripeRasterizer.copyPixels(StripeRasterizer.getPixels(this.layer), this.layer.getWidth(), sx, sy,
+                                  canvasPixels, canvas.getWidth(), 0, this.height - displayPixelHeight,
+                                  displayPixelWidth, displayPixelHeight);
+    }
+    else {
+      Graphics2D g = canvas.createGraphics();
+      int top = this.height - displayPixelHeight;
+      g.drawImage(this.layer, 0, top, displayPixelWidth, top + displayPixelHeight,
+                  sx, sy, sx + displayPixelWidth, sy + displayPixelHeight, null);
+      g.dispose();
+    }
+    this.drawSprite(player.getImage(), player, player.getFirstTileIndex() - cameraX,
+                    player.getSecondTileIndex() - cameraY);
+
+    // The canvas no longer shows the display around the player's tile, so it cannot be scrolled.
+    this.valid = false;
+    this.cameraFrames++;
+  }
+
+  /**
+   * Forgets what the canvas and the cached tile layer show, so the next draw repaints
+   * every tile. Needed after anything other than this renderer draws over the display,
+   * or after tiles inside the display change their image without the board being told.
+   */
+  public void invalidate() {
+    this.valid = false;
+    this.layerValid = false;
+  }
+
+  /**
+   * Retrieves the rasterizer used for full redraws.
+   */
+  public StripeRasterizer getRasterizer() {
+    return this.rasterizer;
+  }
+
+  /**
+   * Sets the rasterizer used for full redraws, e.g. to change how many stripes
+   * are drawn in parallel.
+   * @param rasterizer, the new rasterizer
+   */
+  public void setRasterizer(StripeRasterizer rasterizer) {
+    this.rasterizer = rasterizer;
+  }
+
+  /**
+   * Retrieves the cache of chunk pictures used to draw boards with more than one layer.
+   */
+  public ChunkBitmapCache getLayerCache() {
+    return this.layerCache;
+  }
+
+  /**
+   * Retrieves the number of displays drawn tile by tile.
+   */
+  public long getFullRedrawCount() {
+    return this.fullRedraws;
+  }
+
+  /**
+   * Retrieves the number of displays drawn by scrolling the previous one.
+   */
+  public long getScrollCount() {
+    return this.scrolls;
+  }
+
+  /**
+   * Retrieves the number of tiles drawn in all, onto the canvas or into the cached tile layer.
+   */
+  public long getTileDrawCount() {
+    return this.tilesDrawn;
+  }
+
+  /**
+   * Retrieves the number of displays drawn from the cached tile layer, for a camera.
+   */
+  public long getCameraFrameCount() {
+    return this.cameraFrames;
+  }
+
+  /**
+   * Retrieves the number of tiles drawn into the cached tile layer.
+   */
+  public long getLayerTileCount() {
+    return this.layerTiles;
+  }
+
+  /**
+   * Rebuilds the sprite atlas if the tile size of the Player's display has changed.
+   * Every image is pre-scaled to the tile size once, so each tile drawn is an unscaled copy.
+   * @param player, the player in question
+   */
+  private void matchAtlas(Player player) {
+    int tileWidth = this.width / player.getDisplayWidth();
+    int tileHeight = this.height / player.getDisplayHeight();
+    if(!this.atlas.matches(tileWidth, tileHeight)) {
+      this.atlas.build(this.game.getReferencedImages(player), tileWidth, tileHeight);
+      this.valid = false;
+      this.layerValid = false;
+    }
+  }
+
+  /**
+   * Draws every tile of the cached tile layer, centered on a tile.
+   * @param board, the board drawn
+   * @param centerI, the horizontal index of the center tile
+   * @param centerJ, the vertical index of the center tile
+   * @param halfWidth, how many tiles of the display are left and right of its center
+   * @param halfHeight, how many tiles of the display are above and below its center
+   */
+  private void drawLayer(TileBoard board, int centerI, int centerJ, int halfWidth, int halfHeight) {
+    EngineEvents.TilePassEvent event = new EngineEvents.TilePassEvent();
+    event.begin();
+    long tiles = this.tilesDrawn;
+    this.layerBoard = board;
+    this.layerI = centerI;
+    this.layerJ = centerJ;
+    this.layerValid = true;
+    int left = centerI - halfWidth - 1;
+    int right = centerI + halfWidth + 1;
+    int bottom = centerJ - halfHeight - 1;
+    int top = centerJ + halfHeight + 1;
+    int columns = right - left + 1;
+    int rows = top - bottom + 1;
+
+    if(board.getLayerCount() > 1) {
+      // Tiles on the board come from the chunk pictures in one copy per chunk; the rest one by one.
+      for(int i = left; i <= right; i++) {
+        for(int j = bottom; j <= top; j++) {
+          if(isOutside(board, i, j)) {
+            this.drawLayerTile(board, i, j);
+          }
+        }
+      }
+      int fromI = Math.max(left, 0);
+      int toI = Math.min(right, board.getNumTilesWidth() - 1);
+      int fromJ = Math.max(bottom, 0);
+      int toJ = Math.min(top, board.getNumTilesHeight() - 1);
+      if(fromI <= toI && fromJ <= toJ) {
+        this.layerCache.draw(board, fromI, fromJ, toI, toJ, this.layer, (fromI - left) * this.atlas.getTileWidth(),
+                             (top - toJ) * this.atlas.getTileHeight());
+        this.layerTiles += (long) (toI - fromI + 1) * (toJ - fromJ + 1);
+        this.tilesDrawn += (long) (toI - fromI + 1) * (toJ - fromJ + 1);
+      }
+      this.commitPass(event, "layer", board, centerI, centerJ, tiles);
+      return;
+    }
+
+    String[] images = new String[columns * rows];
+    for(int i = left; i <= right; i++) {
+      for(int j = bottom; j <= top; j++) {
+        images[(i - left) * rows + (j - bottom)] = imageAt(board, i, j);
+      }
+    }
+    this.pack(images);
+    if(this.layerCells == null || this.layerCells.length != images.length) {
+      this.layerCells = new int[images.length];
+    }
+    for(int k = 0; k < images.length; k++) {
+      this.layerCells[k] = this.atlas.getCell(images[k]);
+    }
+    this.rasterizer.render(this.layer, this.atlas, this.layerCells, columns, rows);
+    this.layerTiles += images.length;
+    this.tilesDrawn += images.length;
+    this.commitPass(event, "layer", board, centerI, centerJ, tiles);
+  }
+
+  /**
+   * Scrolls the cached tile layer by one tile along either index or both, then draws
+   * the newly exposed column and row.
+   * @param board, the board drawn
+   * @param dx, how many tiles the center moves along the first index (-1, 0 or 1)
+   * @param dy, how many tiles the center moves along the second index (-1, 0 or 1)
+   * @param halfWidth, how many tiles of the display are left and right of its center
+   * @param halfHeight, how many tiles of the display are above and below its center
+   */
+  private void scrollLayer(TileBoard board, int dx, int dy, int halfWidth, int halfHeight) {
+    EngineEvents.TilePassEvent event = new EngineEvents.TilePassEvent();
+    event.begin();
+    long tiles = this.tilesDrawn;
+    int shiftX = -dx * this.atlas.getTileWidth();
+    int shiftY = dy * this.atlas.getTileHeight();
+    shiftPixels(this.layer, Math.max(-shiftX, 0), Math.max(-shiftY, 0), this.layer.getWidth() - Math.abs(shiftX),
+                this.layer.getHeight() - Math.abs(shiftY), shiftX, shiftY);
+    this.layerI += dx;
+    this.layerJ += dy;
+    if(dx != 0) {
+      int i = this.layerI + dx * (halfWidth + 1);
+      for(int j = this.layerJ - halfHeight - 1; j <= this.layerJ + halfHeight + 1; j++) {
+        this.drawLayerTile(board, i, j);
+      }
+    }
+    if(dy != 0) {
+      int j = this.layerJ + dy * (halfHeight + 1);
+      for(int i = this.layerI - halfWidth - 1; i <= this.layerI + halfWidth + 1; i++) {
+        this.drawLayerTile(board, i, j);
+      }
+    }
+    this.commitPass(event, "layerScroll", board, this.layerI, this.layerJ, tiles);
+  }
+
+  /**
+   * Commits a flight recorder event for a pass that drew tiles, if one is being recorded.
+   * @param event, the event, begun before the pass
+   * @param kind, how the tiles were drawn
+   * @param board, the board drawn
+   * @param centerI, the horizontal index of the tile the pass was centered on
+   * @param centerJ, the vertical index of the tile the pass was centered on
+   * @param tiles, the number of tiles drawn in all before the pass
+   */
+  private void commitPass(EngineEvents.TilePassEvent event, String kind, TileBoard board, int centerI, int centerJ,
+                          long tiles) {
+    event.end();
+    if(event.shouldCommit()) {
+      event.kind = kind;
+      event.boardId = board.getId();
+      event.centerI = centerI;
+      event.centerJ = centerJ;
+      event.tiles = this.tilesDrawn - tiles;
+      event.commit();
+    }
+  }
+
+  /**
+   * Draws one tile of a board into the cached tile layer, or the past border image if
+   * the tile is outside of the board.
+   * @param board, the board drawn
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  private void drawLayerTile(TileBoard board, int i, int j) {
+    int tileWidth = this.atlas.getTileWidth();
+    int tileHeight = this.atlas.getTileHeight();
+    int left = (i - this.layerI) * tileWidth + this.layer.getWidth() / 2 - tileWidth / 2;
+    int top = (this.layerJ - j) * tileHeight + this.layer.getHeight() / 2 - tileHeight / 2;
+    this.layerTiles++;
+    this.tilesDrawn++;
+    if(board.getLayerCount() > 1 && !isOutside(board, i, j)) {
+      this.layerCache.draw(board, i, j, i, j, this.layer, left, top);
+      return;
+    }
+    String image = imageAt(board, i, j);
+    this.pack(image);
+    int cell = this.atlas.getCell(image);
+    if(!StripeRasterizer.copyOpaque(this.atlas, cell, this.layer, left, top)) {
+      Graphics2D g = this.layer.createGraphics();
+      int sx = this.atlas.getCellX(cell);
+      int sy = this.atlas.getCellY(cell);
+      g.drawImage(this.atlas.getSheet(), left, top, left + tileWidth, top + tileHeight,
+                  sx, sy, sx + tileWidth, sy + tileHeight, null);
+      g.dispose();
+    }
+  }
+
+  /**
+   * Draws every tile of the display, then the player in its center. The tiles are
+   * looked up first, then copied into the canvas in parallel stripes.
+   * @param player, the player in question
+   */
+  private void drawFull(Player player) {
+    if(player.getBoard().getLayerCount() > 1) {
+      this.drawLayered(player);
+      return;
+    }
+    EngineEvents.TilePassEvent event = new EngineEvents.TilePassEvent();
+    event.begin();
+    long tiles = this.tilesDrawn;
+    int columns = player.getDisplayWidth();
+    int rows = player.getDisplayHeight();
+    int halfWidth = (columns - 1) / 2;
+    int halfHeight = (rows - 1) / 2;
+
+    // Draws numTilesWidth by numTilesHeight rectangle around player, such that said rectangle occupies
+    // entire screen.
+    String[] images = new String[columns * rows];
+    for(int a = -halfWidth; a < halfWidth + 1; a++) {
+      for(int b = -halfHeight; b < halfHeight + 1; b++) {
+        images[(a + halfWidth) * rows + (b + halfHeight)] = this.tileImage(player, a, b);
+      }
+    }
+    this.pack(images);
+    if(this.cells == null || this.cells.length != images.length) {
+      this.cells = new int[images.length];
+    }
+    for(int k = 0; k < images.length; k++) {
+      this.cells[k] = this.atlas.getCell(images[k]);
+    }
+    this.rasterizer.render(PennDraw.getOffscreenImage(), this.atlas, this.cells, columns, rows);
+    this.tilesDrawn += images.length;
+
+    this.drawPlayer(player);
+    this.fullRedraws++;
+    this.commitPass(event, "full", player.getBoard(), player.getFirstTileIndex(), player.getSecondTileIndex(), tiles);
+  }
+
+  /**
+   * Draws every tile of a layered board's display from the pictures of its chunks, one
+   * copy per chunk, then the player in its center. Tiles beyond the board's bounds are
+   * drawn one by one.
+   * @param player, the player in question
+   */
+  private void drawLayered(Player player) {
+    EngineEvents.TilePassEvent event = new EngineEvents.TilePassEvent();
+    event.begin();
+    long tiles = this.tilesDrawn;
+    TileBoard board = player.getBoard();
+    int halfWidth = (player.getDisplayWidth() - 1) / 2;
+    int halfHeight = (player.getDisplayHeight() - 1) / 2;
+    int left = Math.max(player.getFirstTileIndex() - halfWidth, 0);
+    int right = Math.min(player.getFirstTileIndex() + halfWidth, board.getNumTilesWidth() - 1);
+    int bottom = Math.max(player.getSecondTileIndex() - halfHeight, 0);
+    int top = Math.min(player.getSecondTileIndex() + halfHeight, board.getNumTilesHeight() - 1);
+
+    for(int a = -halfWidth; a < halfWidth + 1; a++) {
+      for(int b = -halfHeight; b < halfHeight + 1; b++) {
+        if(this.isPastBorder(player, a, b)) {
+          this.drawTile(player, a, b);
+        }
+      }
+    }
+    if(left <= right && bottom <= top) {
+      int x = (left - player.getFirstTileIndex() + halfWidth) * this.atlas.getTileWidth();
+      int y = this.height - (top - player.getSecondTileIndex() + halfHeight + 1) * this.atlas.getTileHeight();
+      this.layerCache.draw(board, left, bottom, right, top, PennDraw.getOffscreenImage(), x, y);
+      this.tilesDrawn += (long) (right - left + 1) * (top - bottom + 1);
+    }
+    this.drawPlayer(player);
+    this.fullRedraws++;
+    this.commitPass(event, "layered", board, player.getFirstTileIndex(), player.getSecondTileIndex(), tiles);
+  }
+
+  /**
+   * Scrolls the previous display by one tile opposite to the player's step, then
+   * draws the newly exposed row or column, the tile the player left and the player.
+   * @param player, the player in question
+   * @param dx, how many tiles the player moved along the first index (-1, 0 or 1)
+   * @param dy, how many tiles the player moved along the second index (-1, 0 or 1)
+   */
+  private void drawScrolled(Player player, int dx, int dy) {
+    EngineEvents.TilePassEvent event = new EngineEvents.TilePassEvent();
+    event.begin();
+    long tiles = this.tilesDrawn;
+    int tileWidth = this.atlas.getTileWidth();
+    int tileHeight = this.atlas.getTileHeight();
+    int halfWidth = (player.getDisplayWidth() - 1) / 2;
+    int halfHeight = (player.getDisplayHeight() - 1) / 2;
+    int displayPixelWidth = player.getDisplayWidth() * tileWidth;
+    int displayPixelHeight = player.getDisplayHeight() * tileHeight;
+    int top = this.height - displayPixelHeight; // the display is anchored to the bottom left corner
+    BufferedImage canvas = PennDraw.getOffscreenImage();
+
+    if(dx != 0) {
+      // Moving right slides the picture left, and the other way around.
+      int from = dx > 0 ? tileWidth : 0;
+      shiftPixels(canvas, from, top, displayPixelWidth - tileWidth, displayPixelHeight, -dx * tileWidth, 0);
+      for(int b = -halfHeight; b < halfHeight + 1; b++) {
+        this.drawTile(player, dx * halfWidth, b);
+      }
+    }
+    else {
+      // Moving up slides the picture down the screen, and the other way around.
+      int from = dy > 0 ? top : top + tileHeight;
+      shiftPixels(canvas, 0, from, displayPixelWidth, displayPixelHeight - tileHeight, 0, dy * tileHeight);
+      for(int a = -halfWidth; a < halfWidth + 1; a++) {
+        this.drawTile(player, a, dy * halfHeight);
+      }
+    }
+
+    // The cell the player left still shows the player, and the center already shows the new tile.
+    this.drawTile(player, -dx, -dy);
+    this.drawPlayer(player);
+    this.scrolls++;
+    this.commitPass(event, "scroll", player.getBoard(), player.getFirstTileIndex(), player.getSecondTileIndex(), tiles);
+  }
+
+  /**
+   * Moves a w by h block of an image by (dx, dy) pixels. Rows are copied straight
+   * within the image's pixels, in an order that reads every row before it is
+   * overwritten; only an image whose pixels cannot be copied directly goes through
+   * Graphics2D.
+   * @param image, the image in question, usually the canvas
+   * @param x, the left pixel column of the block
+   * @param y, the top pixel row of the block
+   * @param w, the width of the block
+   * @param h, the height of the block
+   * @param dx, how many pixels the block moves right
+   * @param dy, how many pixels the block moves down
+   */
+  private static void shiftPixels(BufferedImage image, int x, int y, int w, int h, int dx, int dy) {
+    if(w <= 0 || h <= 0) {
+      return;
+    }
+    int[] pixels = StripeRasterizer.getPixels(image);
+    if(pixels == null) {
+      Graphics2D g = image.createGraphics();
+      g.copyArea(x, y, w, h, dx, dy);
+      g.dispose();
+      return;
+    }
+    int imageWidth = image.getWidth();
+    if(dy > 0) {
+      // Moving down, the lowest row is copied first.
+      for(int row = h - 1; row >= 0; row--) {
+        System.arraycopy(pixels, (y + row) * imageWidth + x, pixels, (y + row + dy) * imageWidth + x + dx, w);
+      }
+    }
+    else {
+      for(int row = 0; row < h; row++) {
+        System.arraycopy(pixels, (y + row) * imageWidth + x, pixels, (y + row + dy) * imageWidth + x + dx, w);
+      }
+    }
+  }
+
+  /**
+   * Adds up the versions of the chunks of a board under the display around a tile.
+   * Chunk versions only grow until the whole board is replaced, which changes the
+   * board's version instead, so the sum changes whenever a tile under the display does.
+   * @param board, the board in question
+   * @param centerI, the horizontal index of the tile the display is centered on
+   * @param centerJ, the vertical index of the tile the display is centered on
+   * @param halfWidth, how many tiles of the display are left and right of its center
+   * @param halfHeight, how many tiles of the display are above and below its center
+   */
+  private static long chunkVersionSum(TileBoard board, int centerI, int centerJ, int halfWidth, int halfHeight) {
+    int left = Math.max(centerI - halfWidth, 0);
+    int right = Math.min(centerI + halfWidth, board.getNumTilesWidth() - 1);
+    int bottom = Math.max(centerJ - halfHeight, 0);
+    int top = Math.min(centerJ + halfHeight, board.getNumTilesHeight() - 1);
+    long sum = 0;
+    if(left > right || bottom > top) {
+      return sum;
+    }
+    for(int chunkX = left / TileBoard.CACHE_CHUNK_SIZE; chunkX <= right / TileBoard.CACHE_CHUNK_SIZE; chunkX++) {
+      for(int chunkY = bottom / TileBoard.CACHE_CHUNK_SIZE; chunkY <= top / TileBoard.CACHE_CHUNK_SIZE; chunkY++) {
+        sum += board.getChunkVersion(chunkX, chunkY);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Draws the tile at an offset from the player, or the past border image if that
+   * tile is outside of the player's board.
+   * @param player, the player in question
+   * @param a, offset from the player along the first index
+   * @param b, offset from the player along the second index
+   */
+  private void drawTile(Player player, int a, int b) {
+    int left = (a + ((player.getDisplayWidth() - 1) / 2)) * this.atlas.getTileWidth();
+    int top = this.height - (b + ((player.getDisplayHeight() - 1) / 2) + 1) * this.atlas.getTileHeight();
+    this.tilesDrawn++;
+    if(player.getBoard().getLayerCount() > 1 && !this.isPastBorder(player, a, b)) {
+      int i = a + player.getFirstTileIndex();
+      int j = b + player.getSecondTileIndex();
+      this.layerCache.draw(player.getBoard(), i, j, i, j, PennDraw.getOffscreenImage(), left, top);
+      return;
+    }
+    String image = this.tileImage(player, a, b);
+    this.pack(image);
+    // Opaque tiles are copied straight into the canvas's pixels; only transparent ones need blending.
+    if(!StripeRasterizer.copyOpaque(this.atlas, this.atlas.getCell(image), PennDraw.getOffscreenImage(), left, top)) {
+      this.drawSprite(image, player, a, b);
+    }
+  }
+
+  /**
+   * Retrieves the image of the tile at an offset from the player, or the past border
+   * image if that tile is outside of the player's board.
+   * @param player, the player in question
+   * @param a, offset from the player along the first index
+   * @param b, offset from the player along the second index
+   */
+  private String tileImage(Player player, int a, int b) {
+    return imageAt(player.getBoard(), a + player.getFirstTileIndex(), b + player.getSecondTileIndex());
+  }
+
+  /**
+   * Retrieves the image of a board's tile, or the past border image if the tile is
+   * outside of the board.
+   * @param board, the board in question
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  private static String imageAt(TileBoard board, int i, int j) {
+    // If tile is past tileboard's bounds, draw past border image.
+    if(isOutside(board, i, j)) {
+      return board.getPastBorderImage();
+    }
+
+    else {
+      // If tile is not past tileboard's bounds, draw tile's image.
+      return board.getTileImage(i, j);
+    }
+  }
+
+  /**
+   * Checks if the tile at an offset from the player is outside of the player's board.
+   * @param player, the player in question
+   * @param a, offset from the player along the first index
+   * @param b, offset from the player along the second index
+   */
+  private boolean isPastBorder(Player player, int a, int b) {
+    return isOutside(player.getBoard(), a + player.getFirstTileIndex(), b + player.getSecondTileIndex());
+  }
+
+  /**
+   * Checks if a tile is outside of a board.
+   * @param board, the board in question
+   * @param i, the horizontal index of the tile
+   * @param j, the vertical index of the tile
+   */
+  private static boolean isOutside(TileBoard board, int i, int j) {
+    return i < 0 || i >= board.getNumTilesWidth() || j < 0 || j >= board.getNumTilesHeight();
+  }
+
+  /**
+   * Draws the player in the center of the display rectangle.
+   * @param player, the player in question
+   */
+  private void drawPlayer(Player player) {
+    this.drawSprite(player.getImage(), player, 0, 0);
+  }
+
+  /**
+   * Draws one tile-sized image out of the sprite atlas at an offset from the
+   * display's center, packing the image first if it has never been drawn before.
+   * @param image, the name of the image
+   * @param player, the player the display is centered on
+   * @param a, offset from the center along the first index, in tiles
+   * @param b, offset from the center along the second index, in tiles
+   */
+  private void drawSprite(String image, Player player, double a, double b) {
+    this.pack(image);
+    int tileWidth = this.atlas.getTileWidth();
+    int tileHeight = this.atlas.getTileHeight();
+    this.atlas.draw(image,
+                    ((a + ((player.getDisplayWidth() - 1) / 2)) * tileWidth) + (tileWidth / 2.0),
+                    ((b + ((player.getDisplayHeight() - 1) / 2)) * tileHeight) + (tileHeight / 2.0));
+  }
+
+  /**
+   * Rebuilds the sprite atlas, once, if any of the inputted images has never been packed.
+   * @param images, the names of the images about to be drawn
+   */
+  private void pack(String... images) {
+    this.atlas.pack(Arrays.asList(images));
+  }
+}
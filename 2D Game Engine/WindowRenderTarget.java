@@ -0,0 +1,64 @@
+/*************************************************************************
+  *  Compilation:  javac WindowRenderTarget.java
+  *  Execution:    java WindowRenderTarget
+  *
+  *  A RenderTarget that shows the game in a PennDraw window, by default the
+  *  size of the user's screen.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.awt.Dimension;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+
+public class WindowRenderTarget implements RenderTarget {
+  private int width;
+  private int height;
+
+  /**
+   * Creates a new WindowRenderTarget the size of the user's screen.
+   * Ex. for a 1920x1080 display, width = 1920, height = 1080
+   */
+  public WindowRenderTarget() {
+    Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+    this.width = (int) screenSize.getWidth();
+    this.height = (int) screenSize.getHeight();
+  }
+
+  /**
+   * Creates a new WindowRenderTarget of the inputted size.
+   * @param width, the width of the window's canvas, in pixels
+   * @param height, the height of the window's canvas, in pixels
+   */
+  public WindowRenderTarget(int width, int height) {
+    if(width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Window size must be positive");
+    }
+    this.width = width;
+    this.height = height;
+  }
+
+  public int getWidth() {
+    return this.width;
+  }
+
+  public int getHeight() {
+    return this.height;
+  }
+
+  public boolean isHeadless() {
+    return false;
+  }
+
+  public void attach() {
+    PennDraw.setHeadless(false);
+    PennDraw.setCanvasSize(this.width, this.height);
+    PennDraw.setXscale(0, this.width);
+    PennDraw.setYscale(0, this.height);
+  }
+
+  public BufferedImage getImage() {
+    return PennDraw.getCanvasImage();
+  }
+}
@@ -0,0 +1,600 @@
+/*************************************************************************
+  *  Compilation:  javac -sourcepath "../2D Game Engine" -d out EngineBenchmarks.java
+  *  Execution:    cd "../2D Game Engine/images" && java -cp ../../benchmarks/out EngineBenchmarks [results.json] [ms]
+  *
+  *  Throughput benchmarks for the engine's hot paths: building boards,
+  *  moving a Player, drawing the display and loading images. Each
+  *  benchmark is warmed up, then measured over several fixed-length
+  *  iterations, and the results are written as JSON (to the given file, or
+  *  to standard output) so runs can be compared between releases.
+  *
+  *  Run from the engine's images directory so the sample images are found.
+  *  The optional second argument is the length of each iteration in
+  *  milliseconds (default 500). A benchmark that fails is reported with
+  *  its error in place of a score, and the others still run.
+  *
+  *  Version 1.01
+  *************************************************************************/
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class EngineBenchmarks {
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int MEASUREMENT_ITERATIONS = 5;
+
+  private static long iterationNanos = 500000000L;
+  private static volatile long sink; // consumes results so the JIT cannot drop the measured work
+
+  private ArrayList<String> results = new ArrayList<String>(); // one JSON object per benchmark
+
+  public static void main(String[] args) throws IOException {
+    if(args.length > 1) {
+      iterationNanos = Long.parseLong(args[1]) * 1000000L;
+    }
+    EngineBenchmarks benchmarks = new EngineBenchmarks();
+    benchmarks.run();
+
+    Writer out = args.length > 0 ? new FileWriter(args[0]) : new PrintWriter(System.out);
+    try {
+      out.write(benchmarks.toJson());
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Runs every benchmark.
+   */
+  public void run() {
+    this.run("populateEntireBoard", this::populateEntireBoard);
+    this.run("playerMove", this::playerMovement);
+    this.run("entityIndex", this::entityIndex);
+    this.run("entityTick", this::entityTick);
+    this.run("tileClaim", this::tileClaim);
+    this.run("pathfinding", this::pathfinding);
+    this.run("inputQueue", this::inputQueue);
+    this.run("drawPlayerDisplay", this::drawPlayerDisplay);
+    this.run("drawLargeDisplay", this::drawLargeDisplay);
+    this.run("drawLayeredDisplay", this::drawLayeredDisplay);
+    this.run("cameraGlide", this::cameraGlide);
+    this.run("metrics", this::metrics);
+    this.run("getImage", this::getImage);
+  }
+
+  // Runs one group of benchmarks, recording a failure while setting it up instead of stopping the suite.
+  private void run(String name, Runnable group) {
+    try {
+      group.run();
+    }
+    catch(RuntimeException e) {
+      this.fail(name, "", e);
+    }
+  }
+
+  // TileBoard.populateEntireBoard at several board sizes, for each storage.
+  private void populateEntireBoard() {
+    int[] sizes = {64, 512, 2048};
+    for(final int size : sizes) {
+      final TileBoard objects = new TileBoard(size, size, "Lava.png");
+      this.measure("populateEntireBoard", "storage=object,size=" + size, new Runnable() {
+        public void run() {
+          objects.populateEntireBoard("Block.png");
+        }
+      });
+      final TileBoard compact = new TileBoard(new CompactTileStorage(size, size), "Lava.png");
+      this.measure("populateEntireBoard", "storage=compact,size=" + size, new Runnable() {
+        public void run() {
+          compact.populateEntireBoard("Block.png");
+        }
+      });
+      final TileBoard chunked = new TileBoard(new ChunkedTileStorage(size, size), "Lava.png");
+      this.measure("populateEntireBoard", "storage=chunked,size=" + size, new Runnable() {
+        public void run() {
+          chunked.populateEntireBoard("Block.png");
+        }
+      });
+    }
+  }
+
+  // Player.moveRight and moveLeft, back and forth across an open board.
+  private void playerMovement() {
+    TileBoard board = new TileBoard(64, 64, "Lava.png");
+    board.populateEntireBoard("Block.png");
+    final Player player = new Player("Mario.png", board, 0, 32, 7, 7);
+    this.measure("playerMove", "board=64", new Runnable() {
+      public void run() {
+        for(int step = 0; step < 63; step++) {
+          player.moveRight();
+        }
+        for(int step = 0; step < 63; step++) {
+          player.moveLeft();
+        }
+        sink += player.getFirstTileIndex();
+      }
+    }, 126);
+  }
+
+  // EntityIndex moves and queries with 100k entities spread over a 2048x2048 board.
+  private void entityIndex() {
+    final int count = 100000;
+    final int size = 2048;
+    final EntityIndex index = new EntityIndex(size, size);
+    final Entity[] entities = new Entity[count];
+    final Random random = new Random(42);
+    for(int k = 0; k < count; k++) {
+      entities[k] = new Entity(Entity.ENEMY, "Lava.png");
+      index.add(entities[k], random.nextInt(size), random.nextInt(size));
+    }
+    this.measure("entityMove", "entities=" + count, new Runnable() {
+      public void run() {
+        // Every entity takes one step in a random direction, staying on the board.
+        for(Entity entity : entities) {
+          int step = random.nextInt(4);
+          int i = Math.min(Math.max(entity.getFirstTileIndex() + (step == 0 ? 1 : step == 1 ? -1 : 0), 0), size - 1);
+          int j = Math.min(Math.max(entity.getSecondTileIndex() + (step == 2 ? 1 : step == 3 ? -1 : 0), 0), size - 1);
+          index.move(entity, i, j);
+        }
+      }
+    }, count);
+    final ArrayList<Entity> found = new ArrayList<Entity>();
+    this.measure("entityWithin", "entities=" + count + ",radius=16", new Runnable() {
+      public void run() {
+        found.clear();
+        sink += index.collectWithin(random.nextInt(size), random.nextInt(size), 16, Entity.ENEMY, found);
+      }
+    });
+    this.measure("entityNearest", "entities=" + count, new Runnable() {
+      public void run() {
+        sink += index.nearest(random.nextInt(size), random.nextInt(size), size, Entity.ENEMY, null).getId();
+      }
+    });
+  }
+
+  // EntityScheduler ticks of 100k wandering enemies on a 2048x2048 board, serially and in parallel.
+  private void entityTick() {
+    final int count = 100000;
+    final int size = 2048;
+    int cores = Runtime.getRuntime().availableProcessors();
+    int[] threads = cores > 1 ? new int[] {1, cores} : new int[] {1};
+    for(int workers : threads) {
+      TileBoard board = new TileBoard(new CompactTileStorage(size, size), "Lava.png");
+      board.populateEntireBoard("Block.png");
+      final EntityScheduler scheduler = new EntityScheduler(board, workers == 1 ? null : new ForkJoinPool(workers));
+      Random random = new Random(42);
+      while(scheduler.size() < count) {
+        int i = random.nextInt(size);
+        int j = random.nextInt(size);
+        if(board.getTilePassable(i, j)) {
+          scheduler.add(new Entity(Entity.ENEMY, "Mario.png", board, i, j), new WanderBehavior(42));
+        }
+      }
+      this.measure("entityTick", "entities=" + count + ",threads=" + workers, new Runnable() {
+        public void run() {
+          scheduler.tick();
+          sink += scheduler.getMoveCount();
+        }
+      }, count);
+    }
+  }
+
+  // Walkers stepping at random on a 256x256 board from several threads, claiming tiles with
+  // TileBoard.claimTile and, for comparison, with the same flag updates behind one global lock.
+  private void tileClaim() {
+    final int size = 256;
+    final int walkersPerThread = 1024;
+    final int steps = 4096;
+    int cores = Runtime.getRuntime().availableProcessors();
+    int[] threads = {1, Math.max(4, cores)};
+    for(final int workers : threads) {
+      for(final boolean locked : new boolean[] {false, true}) {
+        final TileBoard board = new TileBoard(new CompactTileStorage(size, size), "Lava.png");
+        board.populateEntireBoard("Block.png");
+        final Object lock = new Object();
+        final ArrayList<Callable<Long>> walks = new ArrayList<Callable<Long>>();
+        for(int w = 0; w < workers; w++) {
+          final Random random = new Random(w);
+          final int[] is = new int[walkersPerThread];
+          final int[] js = new int[walkersPerThread];
+          for(int k = 0; k < walkersPerThread; k++) {
+            do {
+              is[k] = random.nextInt(size);
+              js[k] = random.nextInt(size);
+            } while(!board.claimTile(is[k], js[k], Entity.ENEMY));
+          }
+          walks.add(new Callable<Long>() {
+            public Long call() {
+              long moved = 0;
+              for(int step = 0; step < steps; step++) {
+                int k = step % walkersPerThread;
+                int direction = random.nextInt(4);
+                int i = Math.min(Math.max(is[k] + (direction == 0 ? 1 : direction == 1 ? -1 : 0), 0), size - 1);
+                int j = Math.min(Math.max(js[k] + (direction == 2 ? 1 : direction == 3 ? -1 : 0), 0), size - 1);
+                if(locked ? claimLocked(board, lock, i, j) : board.claimTile(i, j, Entity.ENEMY)) {
+                  if(locked) {
+                    releaseLocked(board, lock, is[k], js[k]);
+                  }
+                  else {
+                    board.releaseTile(is[k], js[k], Entity.ENEMY);
+                  }
+                  is[k] = i;
+                  js[k] = j;
+                  moved++;
+                }
+              }
+              return moved;
+            }
+          });
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(workers);
+        this.measure("tileClaim", "sync=" + (locked ? "lock" : "cas") + ",threads=" + workers, new Runnable() {
+          public void run() {
+            try {
+              for(Future<Long> moved : pool.invokeAll(walks)) {
+                sink += moved.get();
+              }
+            }
+            catch(InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            catch(ExecutionException e) {
+              throw new RuntimeException(e.getCause());
+            }
+          }
+        }, workers * steps);
+        pool.shutdown();
+      }
+    }
+  }
+
+  // The tile flag updates claimTile makes, made atomic by holding one lock for the whole board.
+  private static boolean claimLocked(TileBoard board, Object lock, int i, int j) {
+    synchronized(lock) {
+      if(!board.getTilePassable(i, j)) {
+        return false;
+      }
+      board.getStorage().setHasEnemy(i, j, true);
+      board.getStorage().setPassable(i, j, false);
+      return true;
+    }
+  }
+
+  private static void releaseLocked(TileBoard board, Object lock, int i, int j) {
+    synchronized(lock) {
+      board.getStorage().setHasEnemy(i, j, false);
+      board.getStorage().setPassable(i, j, true);
+    }
+  }
+
+  // A* and hierarchical routes between random tiles, and flow field builds, on a 1024x1024 board
+  // with 20% walls.
+  private void pathfinding() {
+    final int size = 1024;
+    final TileBoard board = new TileBoard(new CompactTileStorage(size, size), "Lava.png");
+    board.populateEntireBoard("Block.png");
+    final Random random = new Random(42);
+    for(int wall = 0; wall < size * size / 5; wall++) {
+      board.setTilePassable(random.nextInt(size), random.nextInt(size), false);
+    }
+    final Pathfinder finder = new Pathfinder(board);
+    for(final int span : new int[] {64, size}) {
+      this.measure("findPath", "board=" + size + ",walls=20%,span=" + span, new Runnable() {
+        public void run() {
+          int i = random.nextInt(size - span + 1);
+          int j = random.nextInt(size - span + 1);
+          int[] route = finder.findPath(i + random.nextInt(span), j + random.nextInt(span),
+                                        i + random.nextInt(span), j + random.nextInt(span));
+          sink += route == null ? -1 : route.length;
+        }
+      });
+    }
+    final HierarchicalPathfinder hierarchical = new HierarchicalPathfinder(board);
+    for(final int span : new int[] {64, size}) {
+      this.measure("findPath", "board=" + size + ",walls=20%,span=" + span + ",hierarchical", new Runnable() {
+        public void run() {
+          int i = random.nextInt(size - span + 1);
+          int j = random.nextInt(size - span + 1);
+          int[] route = hierarchical.findPath(i + random.nextInt(span), j + random.nextInt(span),
+                                              i + random.nextInt(span), j + random.nextInt(span));
+          sink += route == null ? -1 : route.length;
+        }
+      });
+    }
+    // One wall toggled before each query, so the clusters around it are built again every time.
+    this.measure("findPath", "board=" + size + ",walls=20%,span=" + size + ",hierarchical,changing", new Runnable() {
+      public void run() {
+        int i = random.nextInt(size);
+        int j = random.nextInt(size);
+        board.setTilePassable(i, j, !board.getTilePassable(i, j));
+        int[] route = hierarchical.findPath(random.nextInt(size), random.nextInt(size),
+                                            random.nextInt(size), random.nextInt(size));
+        sink += route == null ? -1 : route.length;
+      }
+    });
+    final FlowField field = new FlowField(board, size / 2, size / 2);
+    this.measure("flowField", "board=" + size + ",walls=20%", new Runnable() {
+      public void run() {
+        field.compute(random.nextInt(size), random.nextInt(size));
+        sink += field.getDistance(0, 0);
+      }
+    });
+  }
+
+  // 64 key events queued and taken again, through an InputQueue and through the locked list of boxed
+  // characters PennDraw used to keep.
+  private void inputQueue() {
+    final InputQueue queue = new InputQueue();
+    final InputQueue.Batch batch = new InputQueue.Batch();
+    this.measure("inputQueue", "events=64,queue=ring,take=poll", new Runnable() {
+      public void run() {
+        for(int k = 0; k < 64; k++) {
+          queue.offer(InputQueue.KEY_TYPED, 'a' + (k & 15));
+        }
+        while(queue.poll()) {
+          sink += queue.getCode();
+        }
+      }
+    }, 64);
+    this.measure("inputQueue", "events=64,queue=ring,take=drain", new Runnable() {
+      public void run() {
+        for(int k = 0; k < 64; k++) {
+          queue.offer(InputQueue.KEY_TYPED, 'a' + (k & 15));
+        }
+        queue.drainTo(batch);
+        for(int k = 0; k < batch.size(); k++) {
+          sink += batch.getCode(k);
+        }
+      }
+    }, 64);
+    final LinkedList<Character> list = new LinkedList<Character>();
+    final Object lock = new Object();
+    this.measure("inputQueue", "events=64,queue=lockedList,take=poll", new Runnable() {
+      public void run() {
+        for(int k = 0; k < 64; k++) {
+          synchronized(lock) {
+            list.addFirst((char) ('a' + (k & 15)));
+          }
+        }
+        while(true) {
+          synchronized(lock) {
+            if(list.isEmpty()) {
+              break;
+            }
+            sink += list.removeLast();
+          }
+        }
+      }
+    }, 64);
+  }
+
+  // Game.drawPlayerDisplay, alternating full redraws and one-tile scrolls.
+  private void drawPlayerDisplay() {
+    // Offscreen at a fixed resolution, so results do not depend on the screen or on Swing.
+    final Game game = new Game(1, new HeadlessRenderTarget(1920, 1080));
+    game.insertGameArea(64, 64, "Block.png", "Lava.png");
+    final Player player = new Player("Mario.png", game.getGameAreas()[0], 32, 32, 7, 7);
+    this.measure("drawPlayerDisplay", "display=7x7,mode=full", new Runnable() {
+      public void run() {
+        game.invalidateDisplay();
+        game.drawPlayerDisplay(player);
+      }
+    });
+    this.measure("drawPlayerDisplay", "display=7x7,mode=scroll", new Runnable() {
+      public void run() {
+        game.movementRight(player);
+        game.movementLeft(player);
+      }
+    }, 2);
+  }
+
+  // Full redraws of a 41x23 display at 4K, drawn serially and in parallel stripes.
+  private void drawLargeDisplay() {
+    final Game game = new Game(1, new HeadlessRenderTarget(3840, 2160));
+    game.insertGameArea(256, 256, "Block.png", "Lava.png");
+    final Player player = new Player("Mario.png", game.getGameAreas()[0], 128, 128, 41, 23);
+    int cores = Runtime.getRuntime().availableProcessors();
+    int[] threads = cores > 1 ? new int[] {1, cores} : new int[] {1};
+    for(int count : threads) {
+      game.setRenderThreads(count);
+      this.measure("drawPlayerDisplay", "display=41x23,resolution=3840x2160,threads=" + count, new Runnable() {
+        public void run() {
+          game.invalidateDisplay();
+          game.drawPlayerDisplay(player);
+        }
+      });
+    }
+  }
+
+  // Full redraws of a 41x23 display at 4K of a board with two layers over the tiles, drawn from
+  // cached chunk pictures.
+  private void drawLayeredDisplay() {
+    final Game game = new Game(1, new HeadlessRenderTarget(3840, 2160));
+    game.insertGameArea(256, 256, "Block.png", "Lava.png");
+    TileBoard board = game.getGameAreas()[0];
+    board.addLayer();
+    board.addLayer();
+    for(int i = 0; i < 256; i++) {
+      for(int j = 0; j < 256; j += 3) {
+        board.setLayerImage(1 + (i + j) % 2, i, j, "Mario.png");
+      }
+    }
+    final Player player = new Player("Mario.png", board, 128, 128, 41, 23);
+    this.measure("drawPlayerDisplay", "display=41x23,resolution=3840x2160,layers=3", new Runnable() {
+      public void run() {
+        game.invalidateDisplay();
+        game.drawPlayerDisplay(player);
+      }
+    });
+  }
+
+  // Frames of a 41x23 display at 4K while a camera glides after a player stepping back and forth
+  // one tile per 8 ticks, next to the same steps with the display snapped to the player.
+  private void cameraGlide() {
+    final Game game = new Game(1, new HeadlessRenderTarget(3840, 2160));
+    game.setRenderOnMove(false);
+    game.insertGameArea(256, 256, "Block.png", "Lava.png");
+    final Player player = new Player("Mario.png", game.getGameAreas()[0], 128, 128, 41, 23);
+    final Runnable glide = new Runnable() {
+      private int steps;
+
+      public void run() {
+        if(this.steps++ % 2 == 0) {
+          game.movementRight(player);
+        }
+        else {
+          game.movementLeft(player);
+        }
+        for(int tick = 0; tick < 8; tick++) {
+          game.tick(player);
+          game.render(player, 0.5);
+        }
+      }
+    };
+    this.measure("cameraGlide", "display=41x23,resolution=3840x2160,camera=none", glide, 8);
+    game.setCamera(new Camera(0.125));
+    this.measure("cameraGlide", "display=41x23,resolution=3840x2160,camera=0.125", glide, 8);
+  }
+
+  // Recording into a Histogram, and the cost of metrics on a scrolling 7x7 display.
+  private void metrics() {
+    final Histogram histogram = new Histogram();
+    this.measure("histogramRecord", "values=64", new Runnable() {
+      public void run() {
+        for(int k = 0; k < 64; k++) {
+          histogram.record(1000 + k * 977);
+        }
+      }
+    }, 64);
+    final Game game = new Game(1, new HeadlessRenderTarget(1920, 1080));
+    game.insertGameArea(64, 64, "Block.png", "Lava.png");
+    final Player player = new Player("Mario.png", game.getGameAreas()[0], 32, 32, 7, 7);
+    boolean[] settings = {false, true};
+    for(boolean enabled : settings) {
+      Metrics.getDefault().setEnabled(enabled);
+      this.measure("drawPlayerDisplay", "display=7x7,mode=scroll,metrics=" + (enabled ? "on" : "off"), new Runnable() {
+        public void run() {
+          game.movementRight(player);
+          game.movementLeft(player);
+        }
+      }, 2);
+    }
+  }
+
+  // PennDraw image loading with an empty and with a warm cache.
+  private void getImage() {
+    this.measure("getImage", "cache=cold", new Runnable() {
+      public void run() {
+        PennDraw.getImageCache().clear();
+        sink += PennDraw.loadImage("Block.png").getWidth();
+      }
+    });
+    this.measure("getImage", "cache=warm", new Runnable() {
+      public void run() {
+        sink += PennDraw.loadImage("Block.png").getWidth();
+      }
+    });
+    final java.util.List<String> images = java.util.Arrays.asList("Block.png", "Lava.png", "Mario.png");
+    int cores = Runtime.getRuntime().availableProcessors();
+    int[] threads = cores > 1 ? new int[] {1, cores} : new int[] {1};
+    for(final int count : threads) {
+      this.measure("preloadImages", "images=3,cache=cold,threads=" + count, new Runnable() {
+        public void run() {
+          PennDraw.getImageCache().clear();
+          sink += PennDraw.preloadImages(images, count);
+        }
+      }, 3);
+    }
+  }
+
+  private void measure(String name, String params, Runnable operation) {
+    this.measure(name, params, operation, 1);
+  }
+
+  // Warms up, then times fixed-length iterations, recording operations per second.
+  private void measure(String name, String params, Runnable operation, int operationsPerCall) {
+    double[] scores = new double[MEASUREMENT_ITERATIONS];
+    double mean = 0;
+    try {
+      for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+        iteration(operation, operationsPerCall);
+      }
+      for(int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+        scores[i] = iteration(operation, operationsPerCall);
+        mean += scores[i] / MEASUREMENT_ITERATIONS;
+      }
+    }
+    catch(RuntimeException e) {
+      this.fail(name, params, e);
+      return;
+    }
+    double variance = 0;
+    for(int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+      variance += (scores[i] - mean) * (scores[i] - mean) / (MEASUREMENT_ITERATIONS - 1);
+    }
+    this.results.add(String.format(Locale.ROOT,
+                                   "{\"benchmark\": \"%s\", \"params\": \"%s\", \"mode\": \"thrpt\", " +
+                                   "\"score\": %.3f, \"scoreError\": %.3f, \"unit\": \"ops/s\", " +
+                                   "\"iterations\": %d}",
+                                   name, params, mean, Math.sqrt(variance), MEASUREMENT_ITERATIONS));
+    System.err.println(String.format(Locale.ROOT, "%-20s %-32s %14.1f ops/s", name, params, mean));
+  }
+
+  // Records a benchmark that threw instead of finishing, with its error in place of a score.
+  private void fail(String name, String params, RuntimeException e) {
+    this.results.add(String.format(Locale.ROOT, "{\"benchmark\": \"%s\", \"params\": \"%s\", \"error\": \"%s\"}",
+                                   name, params, escape(e.toString())));
+    System.err.println(String.format(Locale.ROOT, "%-20s %-32s failed: %s", name, params, e));
+  }
+
+  // Escapes a string for use inside a JSON string.
+  private static String escape(String text) {
+    StringBuilder escaped = new StringBuilder();
+    for(int k = 0; k < text.length(); k++) {
+      char c = text.charAt(k);
+      if(c == '"' || c == '\\') {
+        escaped.append('\\').append(c);
+      }
+      else if(c < ' ') {
+        escaped.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      }
+      else {
+        escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  // Calls the operation until one iteration's worth of time has passed; returns operations per second.
+  private static double iteration(Runnable operation, int operationsPerCall) {
+    long calls = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      operation.run();
+      calls++;
+      elapsed = System.nanoTime() - start;
+    } while(elapsed < iterationNanos);
+    return calls * operationsPerCall * 1e9 / elapsed;
+  }
+
+  private String toJson() {
+    StringBuilder json = new StringBuilder("[\n");
+    for(int i = 0; i < this.results.size(); i++) {
+      json.append("  ").append(this.results.get(i)).append(i + 1 < this.results.size() ? ",\n" : "\n");
+    }
+    return json.append("]\n").toString();
+  }
+}